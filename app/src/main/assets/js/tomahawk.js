@@ -406,6 +406,7 @@ var shouldDoNativeRequest = function (options) {
  *  - needCookieHeader: boolean indicating whether or not the request needs to be able to get the
  *                      "Set-Cookie" response header
  *  - headers: headers set on the request
+ *  - timeout: the connect and read timeout in ms (only used for native requests)
  */
 var doRequest = function(options) {
     if (shouldDoNativeRequest(options)) {
@@ -65,4 +65,121 @@ Tomahawk.error = function (msg, obj) {
     });
     stack = stack.splice(stack[0] == 'Error' ? 2 : 1).join("\n");
     console.error(msg + objString + "\n" + stack + "\n");
-};
\ No newline at end of file
+};
+/**
+ * Resolves a whole batch of queries with a single call from the native side. The results of the
+ * individual queries are being reported back in chunks via Tomahawk.reportScriptJobChunk as soon
+ * as they come in, so that a single slow query doesn't hold back all other results. The returned
+ * promise resolves with the results that haven't been reported yet.
+ */
+Tomahawk.Resolver._adapter_resolveBatch = function (params) {
+    var that = this;
+    var pending = [];
+    var flushTimeout = null;
+
+    var flush = function () {
+        if (flushTimeout !== null) {
+            clearTimeout(flushTimeout);
+            flushTimeout = null;
+        }
+        if (pending.length > 0) {
+            Tomahawk.reportScriptJobChunk(encodeParamsToNativeFunctions({
+                requestId: params.requestId,
+                data: {
+                    results: pending
+                }
+            }));
+            pending = [];
+        }
+    };
+
+    var promises = params.queries.map(function (query) {
+        return new RSVP.Promise(function (resolve) {
+            resolve(that._adapter_resolve(query));
+        }).then(function (results) {
+            pending.push({
+                qid: query.qid,
+                tracks: (results && results.tracks) || []
+            });
+        }, function (error) {
+            pending.push({
+                qid: query.qid,
+                error: error ? error.toString() : "unknown error"
+            });
+        }).then(function () {
+            if (pending.length >= params.chunkSize) {
+                flush();
+            } else if (flushTimeout === null) {
+                flushTimeout = Tomahawk.setTimeout(flush, params.chunkInterval);
+            }
+        });
+    });
+
+    return RSVP.all(promises).then(function () {
+        if (flushTimeout !== null) {
+            clearTimeout(flushTimeout);
+            flushTimeout = null;
+        }
+        var results = pending;
+        pending = [];
+        return {
+            results: results
+        };
+    });
+};
+
+/**
+ * Receives the messages that are being sent from the native side. On API >= 19 the native side only
+ * tells us to pull the waiting messages, so that their payload never has to be inlined into the
+ * source of a script. On older versions every message is being passed to dispatch directly.
+ */
+Tomahawk.MessageChannel = {
+    pull: function () {
+        var messages = JSON.parse(Tomahawk.takeMessages());
+        for (var i = 0; i < messages.length; i++) {
+            this.dispatch(messages[i]);
+        }
+    },
+
+    dispatch: function (message) {
+        try {
+            switch (message.type) {
+                case "invoke":
+                    Tomahawk.PluginManager.invoke(message.requestId, message.objectId,
+                        message.methodName, message.params);
+                    break;
+                case "nativeResult":
+                    if (message.result && message.result.responseId !== undefined) {
+                        this.readResponse(message.result);
+                    }
+                    Tomahawk.NativeScriptJobManager.reportNativeScriptJobResult(message.requestId,
+                        message.result);
+                    break;
+                default:
+                    Tomahawk.log("MessageChannel - unknown message type: " + message.type);
+            }
+        } catch (error) {
+            Tomahawk.error("MessageChannel - failed to dispatch message", error);
+        }
+    },
+
+    /**
+     * Big response bodies aren't being sent along with the result. Instead they are read chunk by
+     * chunk from the native side.
+     */
+    readResponse: function (result) {
+        var chunks = [];
+        try {
+            var chunk;
+            while ((chunk = Tomahawk.readResponseChunk(result.responseId)) !== null
+            && chunk !== undefined) {
+                chunks.push(chunk);
+            }
+        } catch (error) {
+            Tomahawk.discardResponse(result.responseId);
+            throw error;
+        }
+        result.responseText = chunks.join("");
+        delete result.responseId;
+    }
+};
@@ -198,7 +198,8 @@ public class HatchetAuthenticatorUtils extends AuthenticatorUtils {
     @Override
     public void register(final String name, final String password, final String email) {
         ThreadManager.get().execute(
-                new TomahawkRunnable(TomahawkRunnable.PRIORITY_IS_AUTHENTICATING) {
+                new TomahawkRunnable(TomahawkRunnable.PRIORITY_IS_AUTHENTICATING,
+                        TomahawkRunnable.POOL_NETWORK) {
                     @Override
                     public void run() {
                         try {
@@ -243,7 +244,8 @@ public class HatchetAuthenticatorUtils extends AuthenticatorUtils {
     @Override
     public void login(final String name, final String password) {
         ThreadManager.get().execute(
-                new TomahawkRunnable(TomahawkRunnable.PRIORITY_IS_AUTHENTICATING) {
+                new TomahawkRunnable(TomahawkRunnable.PRIORITY_IS_AUTHENTICATING,
+                        TomahawkRunnable.POOL_NETWORK) {
                     @Override
                     public void run() {
                         try {
@@ -158,7 +158,8 @@ public class CollectionManager {
             @Override
             public void onDone(final User user) {
                 TomahawkRunnable r = new TomahawkRunnable(
-                        TomahawkRunnable.PRIORITY_IS_DATABASEACTION) {
+                        TomahawkRunnable.PRIORITY_IS_DATABASEACTION,
+                        TomahawkRunnable.POOL_DISK) {
                     @Override
                     public void run() {
                         user.setPlaylists(DatabaseHelper.get().getPlaylists());
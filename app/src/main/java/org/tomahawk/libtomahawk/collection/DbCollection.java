@@ -25,11 +25,13 @@ import org.tomahawk.libtomahawk.database.CollectionDbManager;
 import org.tomahawk.libtomahawk.resolver.FuzzyIndex;
 import org.tomahawk.libtomahawk.resolver.PipeLine;
 import org.tomahawk.libtomahawk.resolver.Query;
+import org.tomahawk.libtomahawk.resolver.ResolutionCache;
 import org.tomahawk.libtomahawk.resolver.Resolver;
 import org.tomahawk.libtomahawk.resolver.Result;
 import org.tomahawk.libtomahawk.resolver.ScriptAccount;
 import org.tomahawk.libtomahawk.resolver.ScriptResolver;
 import org.tomahawk.libtomahawk.utils.ADeferredObject;
+import org.tomahawk.tomahawk_android.utils.CancellationToken;
 import org.tomahawk.tomahawk_android.utils.ThreadManager;
 import org.tomahawk.tomahawk_android.utils.TomahawkRunnable;
 
@@ -80,7 +82,8 @@ public abstract class DbCollection extends Collection {
             @Override
             public void onDone(final String collectionId) {
                 TomahawkRunnable r = new TomahawkRunnable(
-                        TomahawkRunnable.PRIORITY_IS_DATABASEACTION) {
+                        TomahawkRunnable.PRIORITY_IS_DATABASEACTION,
+                        TomahawkRunnable.POOL_DISK) {
                     @Override
                     public void run() {
                         invokeWaitingJobs();
@@ -105,21 +108,49 @@ public abstract class DbCollection extends Collection {
     public abstract Promise<String, Throwable, Void> getCollectionId();
 
     public void resolve(final Query query) {
+        resolve(query, null);
+    }
+
+    /**
+     * Resolve the given {@link Query} against this collection. Nothing is being reported, if the
+     * given {@link CancellationToken} has been cancelled in the meantime.
+     *
+     * @param token the {@link CancellationToken} of the given {@link Query} or null
+     */
+    public void resolve(final Query query, final CancellationToken token) {
+        if (token != null) {
+            // Keep the token around until we know the collection id
+            token.acquire();
+        }
         getCollectionId().done(new DoneCallback<String>() {
             @Override
             public void onDone(final String collectionId) {
                 final CollectionDb db = CollectionDbManager.get().getCollectionDb(collectionId);
-                if (!mInitialized) {
+                if (token != null && token.isCancelled()) {
+                    PipeLine.get().getResolutionCache().invalidate(query,
+                            ResolutionCache.getSourceId(DbCollection.this));
+                } else if (!mInitialized) {
                     mWaitingQueries.add(query);
                     Log.d(TAG, collectionId + " - Added query to the waiting queue because the "
                             + "FuzzyIndex is still initializing.");
                 } else {
                     TomahawkRunnable r = new TomahawkRunnable(
-                            TomahawkRunnable.PRIORITY_IS_RESOLVING) {
+                            TomahawkRunnable.PRIORITY_IS_RESOLVING, TomahawkRunnable.POOL_DISK) {
                         @Override
                         public void run() {
+                            if (isCancelled()) {
+                                PipeLine.get().getResolutionCache().invalidate(query,
+                                        ResolutionCache.getSourceId(DbCollection.this));
+                                return;
+                            }
                             List<FuzzyIndex.IndexResult> indexResults =
                                     db.getFuzzyIndex().searchIndex(query);
+                            if (isCancelled()) {
+                                // Don't bother looking up and scoring the results
+                                PipeLine.get().getResolutionCache().invalidate(query,
+                                        ResolutionCache.getSourceId(DbCollection.this));
+                                return;
+                            }
                             if (indexResults.size() > 0) {
                                 String[] ids = new String[indexResults.size()];
                                 for (int i = 0; i < indexResults.size(); i++) {
@@ -139,9 +170,25 @@ public abstract class DbCollection extends Collection {
                                 collectionCursor.close();
                                 PipeLine.get().reportResults(query, results, mResolver.getId());
                             }
+                            PipeLine.get().getResolutionCache().onAnswered(query,
+                                    ResolutionCache.getSourceId(DbCollection.this));
+                        }
+
+                        @Override
+                        protected void onRemoved() {
+                            // Make sure that the query is being dispatched again next time
+                            PipeLine.get().getResolutionCache().invalidate(query,
+                                    ResolutionCache.getSourceId(DbCollection.this));
                         }
                     };
-                    ThreadManager.get().execute(r, query);
+                    if (token != null) {
+                        ThreadManager.get().execute(r, token);
+                    } else {
+                        ThreadManager.get().execute(r, query);
+                    }
+                }
+                if (token != null) {
+                    token.release();
                 }
             }
         });
@@ -181,7 +228,8 @@ public abstract class DbCollection extends Collection {
                                 return;
                         }
                         CollectionDb db = CollectionDbManager.get().getCollectionDb(collectionId);
-                        String currentRevision = String.valueOf(db.tracksCurrentRevision());
+                        // The change log's revision also changes when tracks have been removed
+                        String currentRevision = String.valueOf(db.getChangeLogRevision());
                         Playlist playlist = Playlist.get(
                                 collectionId + "_tracks_" + currentRevision + "_" + sortMode);
                         if (playlist.getCurrentRevision().isEmpty()) {
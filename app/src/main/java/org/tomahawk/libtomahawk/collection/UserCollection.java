@@ -20,6 +20,7 @@ package org.tomahawk.libtomahawk.collection;
 
 import org.jdeferred.Deferred;
 import org.jdeferred.Promise;
+import org.tomahawk.libtomahawk.collection.tags.TagReader;
 import org.tomahawk.libtomahawk.database.CollectionDb;
 import org.tomahawk.libtomahawk.database.CollectionDbManager;
 import org.tomahawk.libtomahawk.database.DatabaseHelper;
@@ -55,13 +56,19 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.greenrobot.event.EventBus;
 
@@ -75,6 +82,11 @@ public class UserCollection extends DbCollection {
     private static final String HAS_SET_DEFAULTDIRS
             = "org.tomahawk.tomahawk_android.has_set_defaultdirs";
 
+    // Set while media items have been stored, but not yet been applied to the UserCollection. If
+    // the process is being killed in between, the next scan has to rebuild the whole collection.
+    private static final String HAS_PENDING_CHANGES
+            = "org.tomahawk.tomahawk_android.collection_has_pending_changes";
+
     private static final List<String> TYPE_WHITELIST = Arrays.asList("vfat", "exfat", "sdcardfs",
             "fuse", "ntfs", "fat32", "ext3", "ext4", "esdfs");
 
@@ -88,6 +100,14 @@ public class UserCollection extends DbCollection {
     private static final String[] DEVICE_WHITELIST = {"/dev/block/vold", "/dev/fuse",
             "/mnt/media_rw"};
 
+    // The number of threads that parse the metadata of media files in parallel
+    private static final int PARSER_COUNT =
+            Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final int PIPELINE_QUEUE_CAPACITY = 64;
+
+    private static final int WRITE_BATCH_SIZE = 100;
+
     public final static HashSet<String> FOLDER_BLACKLIST;
 
     static {
@@ -102,10 +122,13 @@ public class UserCollection extends DbCollection {
         }
     }
 
-    private boolean mIsStopping = false;
+    private volatile boolean mIsStopping = false;
 
     private boolean mRestart = false;
 
+    // Whether or not the next scan has to rebuild the whole UserCollection
+    private volatile boolean mFullScanPending = false;
+
     private Thread mLoadingThread;
 
     private final ConcurrentHashMap<Query, Long> mQueryTimeStamps
@@ -117,6 +140,18 @@ public class UserCollection extends DbCollection {
     private final ConcurrentHashMap<Album, Long> mAlbumTimeStamps
             = new ConcurrentHashMap<>();
 
+    /**
+     * Posted periodically while new or changed media files are being parsed.
+     */
+    public static class ScanProgressEvent {
+
+        // The number of files that have to be parsed so far
+        public int mSubmittedCount;
+
+        public int mParsedCount;
+
+    }
+
     public UserCollection() {
         super(UserCollectionStubResolver.get());
     }
@@ -135,6 +170,7 @@ public class UserCollection extends DbCollection {
         if (fullScan) {
             Log.d(TAG, "Executing full scan. Wiping cache...");
             DatabaseHelper.get().removeAllMedias();
+            mFullScanPending = true;
         }
         if (isWorking()) {
             if (fullScan) {
@@ -192,17 +228,34 @@ public class UserCollection extends DbCollection {
                 Log.d(TAG, "Scanning directory: " + dir);
             }
 
-            // get all existing media items
-            HashMap<String, MediaWrapper> existingMedias = DatabaseHelper.get().getMedias();
+            // get the last modified date and size of all existing media items
+            HashMap<String, DatabaseHelper.MediaStamp> existingStamps =
+                    DatabaseHelper.get().getMediaStamps();
+
+            // A full scan rebuilds the whole UserCollection. Otherwise only the changes are
+            // being applied to it.
+            boolean fullScan = mFullScanPending
+                    || PreferenceUtils.getBoolean(HAS_PENDING_CHANGES);
+            mFullScanPending = false;
+            CollectionDb collectionDb = CollectionDbManager.get().getCollectionDb(getId());
+            if (!fullScan && collectionDb.trackCount() == 0) {
+                fullScan = true;
+            }
 
             // list of all added files
             HashSet<String> addedLocations = new HashSet<>();
 
-            ArrayList<File> mediaToScan = new ArrayList<>();
+            int fileCount = 0;
+            // The sizes of unchanged files that haven't been stored by older versions
+            HashMap<String, Long> backfilledSizes = new HashMap<>();
+            // The stored versions of all changed files, before they're being overwritten
+            ArrayList<MediaWrapper> replacedMediaWrappers = new ArrayList<>();
+            // New and changed files are being parsed in parallel while we're still listing files
+            MediaParsePipeline pipeline = new MediaParsePipeline();
             try {
                 long listFilesTimeBefore = System.currentTimeMillis();
                 final HashSet<String> directoriesScanned = new HashSet<>();
-                // Count total files, and stack them
+                // List all files and hand the ones that have to be parsed over to the pipeline
                 while (!directories.isEmpty()) {
                     File dir = directories.pop();
                     String dirPath = dir.getAbsolutePath();
@@ -232,23 +285,54 @@ public class UserCollection extends DbCollection {
                     }
 
                     // Filter the extensions and the folders
+                    File[] f;
                     try {
-                        File[] f = dir.listFiles(new MediaItemFilter());
-                        if (f != null) {
-                            for (File file : f) {
-                                if (file.isFile()) {
-                                    mediaToScan.add(file);
-                                } else if (file.isDirectory()) {
-                                    directories.push(file);
-                                }
-                            }
-                        }
+                        f = dir.listFiles(new MediaItemFilter());
                     } catch (Exception e) {
                         // listFiles can fail in OutOfMemoryError, go to the next folder
                         Log.e(TAG, "GetMediaItemsRunnable#run() - " + e.getClass() + ": "
                                 + e.getLocalizedMessage());
                         continue;
                     }
+                    if (f != null) {
+                        for (File file : f) {
+                            if (file.isDirectory()) {
+                                directories.push(file);
+                                continue;
+                            } else if (!file.isFile()) {
+                                continue;
+                            }
+                            fileCount++;
+                            String fileURI = AndroidUtil.FileToUri(file).toString();
+                            // only add file if it is not already in the list. eg. if a user
+                            // selects a subfolder as well
+                            if (!addedLocations.add(fileURI)) {
+                                continue;
+                            }
+                            DatabaseHelper.MediaStamp existingStamp =
+                                    existingStamps.get(fileURI);
+                            long size = file.length();
+                            if (existingStamp != null
+                                    && existingStamp.lastModified == file.lastModified()
+                                    && (existingStamp.size == size || existingStamp.size == 0)) {
+                                //Log.d(TAG, "File has already been scanned: " + fileURI);
+                                if (existingStamp.size == 0) {
+                                    // The size hasn't been stored by older versions, so we add
+                                    // it now
+                                    backfilledSizes.put(fileURI, size);
+                                }
+                                continue;
+                            }
+                            if (existingStamp != null && !fullScan) {
+                                // Load the stored version before the pipeline overwrites it
+                                replacedMediaWrappers.addAll(DatabaseHelper.get()
+                                        .getMedias(Collections.singleton(fileURI)));
+                            }
+                            if (!pipeline.submit(file)) {
+                                break;
+                            }
+                        }
+                    }
 
                     if (mIsStopping) {
                         Log.d(TAG, "Stopping scan");
@@ -256,65 +340,58 @@ public class UserCollection extends DbCollection {
                     }
                 }
                 long listFilesTime = System.currentTimeMillis() - listFilesTimeBefore;
-                int parseCounter = 0;
-                long parsingTimeBefore = System.currentTimeMillis();
-                ArrayList<MediaWrapper> mediaWrappers = new ArrayList<>();
-                // Process the stacked items
-                for (File file : mediaToScan) {
-                    String fileURI = AndroidUtil.FileToUri(file).toString();
-                    if (existingMedias.containsKey(fileURI)) {
-                        //Log.d(TAG, "File has already been scanned: " + fileURI);
-                        // only add file if it is not already in the list. eg. if a user selects a
-                        // subfolder as well
-                        if (!addedLocations.contains(fileURI)) {
-                            //Log.d(TAG, "File added to processing queue: " + fileURI);
-                            // get existing media item from database
-                            mediaWrappers.add(existingMedias.get(fileURI));
-                            addedLocations.add(fileURI);
-                        }
-                    } else {
-                        // create new media item
-                        final Media media = new Media(VLCMediaPlayer.getLibVlcInstance(),
-                                Uri.parse(fileURI));
-                        media.parse();
-                        parseCounter++;
-                        // skip files with .mod extension and no duration
-                        if ((media.getDuration() == 0 || (media.getTrackCount() != 0
-                                && TextUtils.isEmpty(media.getTrack(0).codec)))
-                                && fileURI.endsWith(".mod")) {
-                            Log.d(TAG, "File skipped: " + fileURI);
-                            continue;
+                List<MediaWrapper> parsedMediaWrappers = pipeline.finish();
+                if (mIsStopping) {
+                    Log.d(TAG, "Stopping scan");
+                    return;
+                }
+                for (String location : pipeline.getSkippedLocations()) {
+                    addedLocations.remove(location);
+                }
+                Log.d(TAG, "Listing files took " + listFilesTime + "ms.");
+                Log.d(TAG, "Scanned " + fileCount + " files.");
+                Log.d(TAG, "Actually parsed " + pipeline.getParsedCount() + " files with "
+                        + PARSER_COUNT + " threads.");
+                Log.d(TAG, "Parsed with " + pipeline.getParserStats());
+                Log.d(TAG, "Listing and parsing took "
+                        + (System.currentTimeMillis() - listFilesTimeBefore) + "ms.");
+                // Store the sizes that have been added to already existing items. New and changed
+                // items have already been stored by the pipeline.
+                DatabaseHelper.get().setMediaSizes(backfilledSizes);
+
+                if (fullScan) {
+                    processMediaWrappers(collectionDb, addedLocations);
+                } else {
+                    List<MediaWrapper> removedMediaWrappers = new ArrayList<>();
+                    if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+                        Set<String> removedLocations = new HashSet<>();
+                        for (String location : existingStamps.keySet()) {
+                            if (!addedLocations.contains(location)) {
+                                removedLocations.add(location);
+                            }
                         }
-                        //Log.d(TAG, "File added to database and processing queue: " + fileURI);
-                        MediaWrapper mw = new MediaWrapper(media);
-                        media.release();
-                        mw.setLastModified(file.lastModified());
-                        mediaWrappers.add(mw);
-                    }
-                    if (mIsStopping) {
-                        Log.d(TAG, "Stopping scan");
-                        return;
+                        removedMediaWrappers = DatabaseHelper.get().getMedias(removedLocations);
                     }
+                    processChanges(collectionDb, addedLocations, parsedMediaWrappers,
+                            replacedMediaWrappers, removedMediaWrappers);
                 }
-                Log.d(TAG, "Listing files took " + listFilesTime + "ms.");
-                Log.d(TAG, "Scanned " + mediaToScan.size() + " files.");
-                Log.d(TAG, "Actually parsed " + parseCounter + " files.");
-                Log.d(TAG,
-                        "Parsing took " + (System.currentTimeMillis() - parsingTimeBefore) + "ms.");
-                // Add all items to the database
-                DatabaseHelper.get().addMedias(mediaWrappers);
-
-                processMediaWrappers(mediaWrappers);
+                PreferenceUtils.edit().putBoolean(HAS_PENDING_CHANGES, false).commit();
             } finally {
+                // Make sure that no thread of the pipeline outlives the scan
+                pipeline.cancel();
+                if (mIsStopping && fullScan) {
+                    // Make sure that the next scan finishes rebuilding the UserCollection
+                    mFullScanPending = true;
+                }
                 // remove old files & folders from database if storage is mounted
                 if (!mIsStopping && Environment.getExternalStorageState()
                         .equals(Environment.MEDIA_MOUNTED)) {
                     for (String fileURI : addedLocations) {
-                        existingMedias.remove(fileURI);
+                        existingStamps.remove(fileURI);
                     }
-                    Log.d(TAG, "Removed " + existingMedias.keySet().size()
+                    Log.d(TAG, "Removed " + existingStamps.keySet().size()
                             + " media items from database");
-                    DatabaseHelper.get().removeMedias(existingMedias.keySet());
+                    DatabaseHelper.get().removeMedias(existingStamps.keySet());
                 }
 
                 if (mRestart) {
@@ -328,39 +405,345 @@ public class UserCollection extends DbCollection {
             }
         }
 
-        private void processMediaWrappers(List<MediaWrapper> mws) {
-            Log.d(TAG, "Processing " + mws.size() + " media items...");
-            Map<String, Set<String>> albumArtistsMap = new HashMap<>();
-            for (MediaWrapper mw : mws) {
-                if (mw.getType() == MediaWrapper.TYPE_AUDIO) {
-                    String albumKey = mw.getAlbum() != null ? mw.getAlbum().toLowerCase() : "";
-                    if (albumArtistsMap.get(albumKey) == null) {
-                        albumArtistsMap.put(albumKey, new HashSet<String>());
+        /**
+         * Rebuild the given {@link CollectionDb} from the stored media items. The media items are
+         * being loaded page by page.
+         *
+         * @param locations the locations of all media items that have been found by this scan
+         */
+        private void processMediaWrappers(CollectionDb db, Set<String> locations) {
+            Log.d(TAG, "Processing " + locations.size() + " media items...");
+            List<ScriptResolverTrack> tracks = new ArrayList<>();
+            Iterator<MediaWrapper> iterator = DatabaseHelper.get().iterateMedias();
+            while (iterator.hasNext()) {
+                MediaWrapper mw = iterator.next();
+                if (locations.contains(mw.getLocation())) {
+                    ScriptResolverTrack track = toTrack(mw);
+                    if (track != null) {
+                        tracks.add(track);
                     }
-                    albumArtistsMap.get(albumKey).add(mw.getArtist());
                 }
             }
+            db.wipe();
+            db.addTracks(tracks);
+            Log.d(TAG, "Processed " + locations.size() + " media items. " + tracks.size()
+                    + " tracks have been added to the UserCollection.");
+        }
+
+        /**
+         * Apply the changes of an incremental scan to the given {@link CollectionDb} without
+         * wiping it. Whether or not an album is a compilation is decided by looking at all of its
+         * tracks at once. That's why every album that contains a new, changed or removed track
+         * is being removed and added again as a whole.
+         *
+         * @param locations   the locations of all media items that have been found by this scan
+         * @param changedMws  all new or changed media items, as they have been parsed
+         * @param replacedMws the previously stored versions of all changed media items
+         * @param removedMws  all media items whose file doesn't exist anymore
+         */
+        private void processChanges(CollectionDb db, Set<String> locations,
+                List<MediaWrapper> changedMws, List<MediaWrapper> replacedMws,
+                List<MediaWrapper> removedMws) {
+            Set<String> affectedAlbums = new HashSet<>();
+            for (MediaWrapper mw : changedMws) {
+                affectedAlbums.add(getAlbumKey(mw));
+            }
+            for (MediaWrapper mw : replacedMws) {
+                affectedAlbums.add(getAlbumKey(mw));
+            }
+            for (MediaWrapper mw : removedMws) {
+                affectedAlbums.add(getAlbumKey(mw));
+            }
+            if (affectedAlbums.isEmpty()) {
+                Log.d(TAG, "UserCollection is up to date");
+                return;
+            }
+            Set<String> removedUrls = new HashSet<>();
+            for (MediaWrapper mw : replacedMws) {
+                removedUrls.add(mw.getLocation());
+            }
+            // The stored media items already contain the changed ones, but not yet the removal of
+            // the removed ones
             List<ScriptResolverTrack> tracks = new ArrayList<>();
-            for (MediaWrapper mw : mws) {
-                if (mw.getType() == MediaWrapper.TYPE_AUDIO) {
-                    ScriptResolverTrack track = new ScriptResolverTrack();
-                    track.album = mw.getAlbum();
-                    track.albumArtist = mw.getAlbumArtist();
-                    track.track = mw.getTitle();
-                    track.artist = mw.getArtist();
-                    track.duration = mw.getLength() / 1000;
-                    track.albumpos = mw.getTrackNumber();
-                    track.url = mw.getLocation();
-                    track.imagePath = mw.getArtworkURL();
-                    track.lastModified = mw.getLastModified();
-                    tracks.add(track);
+            Iterator<MediaWrapper> iterator = DatabaseHelper.get().iterateMedias();
+            while (iterator.hasNext()) {
+                MediaWrapper mw = iterator.next();
+                if (affectedAlbums.contains(getAlbumKey(mw))) {
+                    removedUrls.add(mw.getLocation());
+                    if (locations.contains(mw.getLocation())) {
+                        ScriptResolverTrack track = toTrack(mw);
+                        if (track != null) {
+                            tracks.add(track);
+                        }
+                    }
                 }
             }
-            CollectionDb db = CollectionDbManager.get().getCollectionDb(getId());
-            db.wipe();
+            db.removeTracks(removedUrls);
             db.addTracks(tracks);
-            Log.d(TAG, "Processed " + mws.size() + " media items. " + tracks.size()
-                    + " tracks have been added to the UserCollection.");
+            Log.d(TAG, "Processed " + changedMws.size() + " changed and " + removedMws.size()
+                    + " removed media items. " + affectedAlbums.size() + " albums have been "
+                    + "updated in the UserCollection.");
+        }
+
+        private String getAlbumKey(MediaWrapper mw) {
+            return (mw.getAlbum() != null ? mw.getAlbum() : "") + "♠"
+                    + (mw.getAlbumArtist() != null ? mw.getAlbumArtist() : "");
+        }
+
+        /**
+         * @return the {@link ScriptResolverTrack} of the given media item, or null if it isn't an
+         * audio file
+         */
+        private ScriptResolverTrack toTrack(MediaWrapper mw) {
+            if (mw.getType() != MediaWrapper.TYPE_AUDIO) {
+                return null;
+            }
+            ScriptResolverTrack track = new ScriptResolverTrack();
+            track.album = mw.getAlbum();
+            track.albumArtist = mw.getAlbumArtist();
+            track.track = mw.getTitle();
+            track.artist = mw.getArtist();
+            track.duration = mw.getLength() / 1000;
+            track.albumpos = mw.getTrackNumber();
+            track.url = mw.getLocation();
+            track.imagePath = mw.getArtworkURL();
+            track.lastModified = mw.getLastModified();
+            return track;
+        }
+    }
+
+    /**
+     * Parses new and changed media files on a pool of {@link #PARSER_COUNT} threads, while the
+     * directories are still being listed. The listing thread hands the files over through a bounded
+     * queue, so it blocks as soon as it gets too far ahead of the parsers. The parsed items are
+     * being stored in the database in batches by a single writer thread, which also posts a {@link
+     * ScanProgressEvent} after every batch. All stages stop as soon as {@link #stop()} has been
+     * called.
+     */
+    private class MediaParsePipeline {
+
+        private final File mEndOfQueue = new File("");
+
+        private final BlockingQueue<File> mParseQueue =
+                new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+
+        private final BlockingQueue<MediaWrapper> mWriteQueue =
+                new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+
+        private final List<MediaWrapper> mParsedMediaWrappers =
+                Collections.synchronizedList(new ArrayList<MediaWrapper>());
+
+        private final Set<String> mSkippedLocations =
+                Collections.synchronizedSet(new HashSet<String>());
+
+        private final AtomicInteger mSubmittedCount = new AtomicInteger();
+
+        private final AtomicInteger mParsedCount = new AtomicInteger();
+
+        private final TagReader mTagReader = new TagReader();
+
+        private final AtomicInteger mVlcParseCount = new AtomicInteger();
+
+        private final AtomicLong mVlcParseNanos = new AtomicLong();
+
+        private final CountDownLatch mParsersFinished = new CountDownLatch(PARSER_COUNT);
+
+        private final List<Thread> mThreads = new ArrayList<>();
+
+        private boolean mStarted;
+
+        private final Runnable mParseRunnable = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    File file;
+                    while ((file = mParseQueue.take()) != mEndOfQueue) {
+                        if (mIsStopping) {
+                            // Keep on draining the queue, so that the listing thread never blocks
+                            continue;
+                        }
+                        MediaWrapper mw = parse(file);
+                        mParsedCount.incrementAndGet();
+                        if (mw != null) {
+                            mParsedMediaWrappers.add(mw);
+                            while (!mIsStopping
+                                    && !mWriteQueue.offer(mw, 100, TimeUnit.MILLISECONDS)) {
+                                // wait until the writer has caught up
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "MediaParsePipeline - parser has been interrupted");
+                } finally {
+                    mParsersFinished.countDown();
+                }
+            }
+        };
+
+        private final Runnable mWriteRunnable = new Runnable() {
+            @Override
+            public void run() {
+                List<MediaWrapper> batch = new ArrayList<>();
+                boolean hasPendingChanges = false;
+                try {
+                    while (!mIsStopping) {
+                        MediaWrapper mw = mWriteQueue.poll(100, TimeUnit.MILLISECONDS);
+                        if (mw != null) {
+                            batch.add(mw);
+                            mWriteQueue.drainTo(batch, WRITE_BATCH_SIZE - batch.size());
+                        }
+                        boolean done = mw == null && mParsersFinished.getCount() == 0
+                                && mWriteQueue.isEmpty();
+                        if (batch.size() >= WRITE_BATCH_SIZE
+                                || (!batch.isEmpty() && (mw == null || done))) {
+                            if (!hasPendingChanges) {
+                                // Make sure that the stored items are being applied to the
+                                // UserCollection, even if the scan doesn't get to do it
+                                PreferenceUtils.edit().putBoolean(HAS_PENDING_CHANGES, true)
+                                        .commit();
+                                hasPendingChanges = true;
+                            }
+                            DatabaseHelper.get().addMedias(batch);
+                            batch.clear();
+                            ScanProgressEvent event = new ScanProgressEvent();
+                            event.mSubmittedCount = mSubmittedCount.get();
+                            event.mParsedCount = mParsedCount.get();
+                            EventBus.getDefault().post(event);
+                        }
+                        if (done) {
+                            break;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "MediaParsePipeline - writer has been interrupted");
+                }
+            }
+        };
+
+        /**
+         * Hand the given file over to the parsers. Blocks while the parsers are busy.
+         *
+         * @return false, if the scan has been stopped in the meantime
+         */
+        public boolean submit(File file) {
+            if (!mStarted) {
+                mStarted = true;
+                for (int i = 0; i < PARSER_COUNT; i++) {
+                    mThreads.add(new Thread(mParseRunnable, "MediaParser-" + i));
+                }
+                mThreads.add(new Thread(mWriteRunnable, "MediaWriter"));
+                for (Thread thread : mThreads) {
+                    thread.start();
+                }
+            }
+            mSubmittedCount.incrementAndGet();
+            try {
+                while (!mParseQueue.offer(file, 100, TimeUnit.MILLISECONDS)) {
+                    if (mIsStopping) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Log.e(TAG, "MediaParsePipeline#submit() - " + e.getClass() + ": "
+                        + e.getLocalizedMessage());
+                return false;
+            }
+        }
+
+        /**
+         * Wait until all submitted files have been parsed and stored.
+         *
+         * @return all {@link MediaWrapper}s that have been parsed
+         */
+        public List<MediaWrapper> finish() {
+            if (mStarted) {
+                try {
+                    for (int i = 0; i < PARSER_COUNT; i++) {
+                        mParseQueue.put(mEndOfQueue);
+                    }
+                    for (Thread thread : mThreads) {
+                        thread.join();
+                    }
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "MediaParsePipeline#finish() - " + e.getClass() + ": "
+                            + e.getLocalizedMessage());
+                    cancel();
+                }
+            }
+            return new ArrayList<>(mParsedMediaWrappers);
+        }
+
+        /**
+         * Stop all stages without waiting for the remaining files to be parsed.
+         */
+        public void cancel() {
+            for (Thread thread : mThreads) {
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * @return the locations of all files that have been parsed, but aren't valid media items
+         */
+        public Set<String> getSkippedLocations() {
+            return mSkippedLocations;
+        }
+
+        public int getParsedCount() {
+            return mParsedCount.get();
+        }
+
+        /**
+         * @return a summary of how many files have been parsed by the {@link TagReader} and by
+         * LibVLC and how long it took on average
+         */
+        public String getParserStats() {
+            int readCount = mTagReader.getReadCount();
+            int vlcParseCount = mVlcParseCount.get();
+            return "TagReader: " + readCount + " files"
+                    + (readCount > 0 ? " (" + mTagReader.getReadNanos() / 1000 / readCount
+                    + "\u00b5s per file)" : "")
+                    + ", LibVLC: " + vlcParseCount + " files"
+                    + (vlcParseCount > 0 ? " (" + mVlcParseNanos.get() / 1000 / vlcParseCount
+                    + "\u00b5s per file)" : "");
+        }
+
+        private MediaWrapper parse(File file) {
+            MediaWrapper mw = mTagReader.read(file);
+            if (mw != null) {
+                mw.setLastModified(file.lastModified());
+                mw.setSize(file.length());
+                return mw;
+            }
+            mVlcParseCount.incrementAndGet();
+            long time = System.nanoTime();
+            try {
+                return parseWithVlc(file);
+            } finally {
+                mVlcParseNanos.addAndGet(System.nanoTime() - time);
+            }
+        }
+
+        private MediaWrapper parseWithVlc(File file) {
+            String fileURI = AndroidUtil.FileToUri(file).toString();
+            final Media media = new Media(VLCMediaPlayer.getLibVlcInstance(), Uri.parse(fileURI));
+            media.parse();
+            // skip files with .mod extension and no duration
+            if ((media.getDuration() == 0 || (media.getTrackCount() != 0
+                    && TextUtils.isEmpty(media.getTrack(0).codec)))
+                    && fileURI.endsWith(".mod")) {
+                Log.d(TAG, "File skipped: " + fileURI);
+                media.release();
+                mSkippedLocations.add(fileURI);
+                return null;
+            }
+            //Log.d(TAG, "File added to database and processing queue: " + fileURI);
+            MediaWrapper mw = new MediaWrapper(media);
+            media.release();
+            mw.setLastModified(file.lastModified());
+            mw.setSize(file.length());
+            return mw;
         }
     }
 
@@ -0,0 +1,74 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.collection.tags;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads the STREAMINFO and VORBIS_COMMENT metadata blocks of a FLAC file.
+ */
+class FlacTagParser {
+
+    private static final int BLOCK_STREAMINFO = 0;
+
+    private static final int BLOCK_VORBIS_COMMENT = 4;
+
+    private static final int BLOCK_PICTURE = 6;
+
+    // Comment blocks bigger than this most probably contain embedded artwork
+    private static final int MAX_COMMENT_SIZE = 256 * 1024;
+
+    static void parse(RandomAccessFile file, TagReader.Tags tags) throws IOException {
+        // Some FLAC files start with an ID3v2 tag, which we simply skip
+        file.seek(Id3TagParser.skipId3v2(file));
+        byte[] header = new byte[4];
+        file.readFully(header);
+        if (header[0] != 'f' || header[1] != 'L' || header[2] != 'a' || header[3] != 'C') {
+            throw new IOException("Not a FLAC file");
+        }
+        boolean lastBlock = false;
+        while (!lastBlock) {
+            file.readFully(header);
+            lastBlock = (header[0] & 0x80) != 0;
+            int type = header[0] & 0x7F;
+            int length = (header[1] & 0xFF) << 16 | (header[2] & 0xFF) << 8 | (header[3] & 0xFF);
+            if (type == BLOCK_STREAMINFO && length >= 18) {
+                byte[] data = new byte[length];
+                file.readFully(data);
+                long sampleRate = (data[10] & 0xFFL) << 12 | (data[11] & 0xFFL) << 4
+                        | (data[12] & 0xFFL) >> 4;
+                long totalSamples = (data[13] & 0x0FL) << 32 | (data[14] & 0xFFL) << 24
+                        | (data[15] & 0xFFL) << 16 | (data[16] & 0xFFL) << 8 | (data[17] & 0xFFL);
+                if (sampleRate > 0 && totalSamples > 0) {
+                    tags.duration = totalSamples * 1000 / sampleRate;
+                }
+            } else if (type == BLOCK_VORBIS_COMMENT) {
+                byte[] data = new byte[Math.min(length, MAX_COMMENT_SIZE)];
+                file.readFully(data);
+                file.seek(file.getFilePointer() + length - data.length);
+                VorbisComments.parse(data, 0, tags);
+            } else {
+                if (type == BLOCK_PICTURE) {
+                    tags.hasArtwork = true;
+                }
+                file.seek(file.getFilePointer() + length);
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.collection.tags;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the ID3v2 (versions 2.2 to 2.4) or ID3v1 tag of an MP3 file. The duration is being taken
+ * from the TLEN frame, a Xing/VBRI header or, for CBR files, the bitrate of the first frame.
+ */
+class Id3TagParser {
+
+    private static final int HEADER_SIZE = 10;
+
+    private static final int ID3V1_SIZE = 128;
+
+    // The number of bytes after the ID3v2 tag that are being searched for the first MPEG frame
+    private static final int FRAME_SEARCH_SIZE = 16 * 1024;
+
+    // Text frames bigger than this are being skipped
+    private static final int MAX_TEXT_FRAME_SIZE = 64 * 1024;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Bitrates in kbit/s, indexed by [MPEG version 1 ? 0 : 1][layer - 1][bitrate index]
+    private static final int[][][] BITRATES = new int[][][]{
+            {
+                    {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+                    {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}
+            },
+            {
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+            }
+    };
+
+    // Sample rates in Hz, indexed by [version bits][sample rate index]
+    private static final int[][] SAMPLE_RATES = new int[][]{
+            {11025, 12000, 8000}, // MPEG 2.5
+            {0, 0, 0}, // reserved
+            {22050, 24000, 16000}, // MPEG 2
+            {44100, 48000, 32000} // MPEG 1
+    };
+
+    static void parse(RandomAccessFile file, TagReader.Tags tags) throws IOException {
+        long audioStart = 0;
+        byte[] header = new byte[HEADER_SIZE];
+        file.seek(0);
+        file.readFully(header);
+        if (isId3v2Header(header)) {
+            audioStart = parseId3v2(file, header, tags);
+        } else if (file.length() > ID3V1_SIZE) {
+            parseId3v1(file, tags);
+        }
+        if (tags.duration <= 0) {
+            tags.duration = readDuration(file, audioStart);
+        }
+    }
+
+    /**
+     * @return the offset of the first byte after the ID3v2 tag at the beginning of the given
+     * file, or 0 if there is none
+     */
+    static long skipId3v2(RandomAccessFile file) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        file.seek(0);
+        file.readFully(header);
+        if (!isId3v2Header(header)) {
+            return 0;
+        }
+        return getTagEnd(header);
+    }
+
+    private static boolean isId3v2Header(byte[] header) {
+        return header[0] == 'I' && header[1] == 'D' && header[2] == '3';
+    }
+
+    private static long getTagEnd(byte[] header) {
+        boolean footer = header[3] == 4 && (header[5] & 0x10) != 0;
+        return HEADER_SIZE + readSyncSafeInt(header, 6) + (footer ? HEADER_SIZE : 0);
+    }
+
+    /**
+     * @return the offset of the first byte after the tag
+     */
+    private static long parseId3v2(RandomAccessFile file, byte[] header, TagReader.Tags tags)
+            throws IOException {
+        int version = header[3];
+        int flags = header[5] & 0xFF;
+        long tagEnd = getTagEnd(header);
+        long framesEnd = HEADER_SIZE + readSyncSafeInt(header, 6);
+        if (version < 2 || version > 4 || (flags & 0x80) != 0
+                || (version == 2 && (flags & 0x40) != 0)) {
+            // Unsynchronised or compressed tags are too rare to be worth the effort
+            throw new IOException("Unsupported ID3v2 tag");
+        }
+        if ((flags & 0x40) != 0 && version > 2) {
+            byte[] size = new byte[4];
+            file.readFully(size);
+            if (version == 3) {
+                file.seek(file.getFilePointer() + readInt(size, 0));
+            } else {
+                file.seek(file.getFilePointer() + readSyncSafeInt(size, 0) - 4);
+            }
+        }
+        int idLength = version == 2 ? 3 : 4;
+        int frameHeaderSize = version == 2 ? 6 : 10;
+        byte[] frameHeader = new byte[frameHeaderSize];
+        while (file.getFilePointer() + frameHeaderSize <= framesEnd) {
+            file.readFully(frameHeader);
+            if (frameHeader[0] == 0) {
+                // We've reached the padding
+                break;
+            }
+            String id = new String(frameHeader, 0, idLength, ISO_8859_1);
+            long size;
+            boolean skip = false;
+            if (version == 2) {
+                size = (frameHeader[3] & 0xFF) << 16 | (frameHeader[4] & 0xFF) << 8
+                        | (frameHeader[5] & 0xFF);
+            } else if (version == 3) {
+                size = readInt(frameHeader, 4);
+                // compressed or encrypted
+                skip = (frameHeader[9] & 0xC0) != 0;
+            } else {
+                size = readSyncSafeInt(frameHeader, 4);
+                // compressed, encrypted, unsynchronised or with a data length indicator
+                skip = (frameHeader[9] & 0x0F) != 0;
+            }
+            long frameEnd = file.getFilePointer() + size;
+            if (size <= 0 || frameEnd > framesEnd) {
+                break;
+            }
+            if (id.equals("APIC") || id.equals("PIC")) {
+                tags.hasArtwork = true;
+            } else if (!skip && size <= MAX_TEXT_FRAME_SIZE && id.charAt(0) == 'T') {
+                byte[] data = new byte[(int) size];
+                file.readFully(data);
+                setTextFrame(id, decodeText(data), tags);
+            }
+            file.seek(frameEnd);
+        }
+        return tagEnd;
+    }
+
+    private static void setTextFrame(String id, String value, TagReader.Tags tags) {
+        switch (id) {
+            case "TIT2":
+            case "TT2":
+                tags.set("TITLE", value);
+                break;
+            case "TPE1":
+            case "TP1":
+                tags.set("ARTIST", value);
+                break;
+            case "TALB":
+            case "TAL":
+                tags.set("ALBUM", value);
+                break;
+            case "TPE2":
+            case "TP2":
+                tags.set("ALBUMARTIST", value);
+                break;
+            case "TCON":
+            case "TCO":
+                tags.set("GENRE", value);
+                break;
+            case "TRCK":
+            case "TRK":
+                tags.set("TRACKNUMBER", value);
+                break;
+            case "TPOS":
+            case "TPA":
+                tags.set("DISCNUMBER", value);
+                break;
+            case "TLEN":
+            case "TLE":
+                try {
+                    tags.duration = Long.parseLong(value.trim());
+                } catch (NumberFormatException e) {
+                    tags.duration = -1;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Decode the content of a text frame. Only the first value of frames that contain multiple
+     * null-separated values is being returned.
+     */
+    private static String decodeText(byte[] data) {
+        if (data.length < 2) {
+            return "";
+        }
+        Charset charset;
+        switch (data[0]) {
+            case 1:
+                charset = UTF_16;
+                break;
+            case 2:
+                charset = UTF_16BE;
+                break;
+            case 3:
+                charset = UTF_8;
+                break;
+            default:
+                charset = ISO_8859_1;
+        }
+        String text = new String(data, 1, data.length - 1, charset);
+        int end = text.indexOf('\u0000');
+        return end >= 0 ? text.substring(0, end) : text;
+    }
+
+    private static void parseId3v1(RandomAccessFile file, TagReader.Tags tags) throws IOException {
+        byte[] data = new byte[ID3V1_SIZE];
+        file.seek(file.length() - ID3V1_SIZE);
+        file.readFully(data);
+        if (data[0] != 'T' || data[1] != 'A' || data[2] != 'G') {
+            return;
+        }
+        tags.set("TITLE", readId3v1String(data, 3, 30));
+        tags.set("ARTIST", readId3v1String(data, 33, 30));
+        tags.set("ALBUM", readId3v1String(data, 63, 30));
+        if (data[125] == 0 && data[126] != 0) {
+            tags.trackNumber = data[126] & 0xFF;
+        }
+    }
+
+    private static String readId3v1String(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0) {
+            end++;
+        }
+        return new String(data, offset, end - offset, ISO_8859_1);
+    }
+
+    /**
+     * Read the duration from the first MPEG frame after the given offset.
+     *
+     * @return the duration in ms, or -1 if it couldn't be determined
+     */
+    private static long readDuration(RandomAccessFile file, long audioStart) throws IOException {
+        byte[] data = new byte[(int) Math.min(FRAME_SEARCH_SIZE, file.length() - audioStart)];
+        file.seek(audioStart);
+        file.readFully(data);
+        for (int i = 0; i + 4 <= data.length; i++) {
+            if ((data[i] & 0xFF) != 0xFF || (data[i + 1] & 0xE0) != 0xE0) {
+                continue;
+            }
+            int versionBits = (data[i + 1] >> 3) & 0x03;
+            int layer = 4 - ((data[i + 1] >> 1) & 0x03);
+            int bitrateIndex = (data[i + 2] >> 4) & 0x0F;
+            int sampleRateIndex = (data[i + 2] >> 2) & 0x03;
+            boolean mono = ((data[i + 3] >> 6) & 0x03) == 3;
+            if (versionBits == 1 || layer == 4 || bitrateIndex == 0 || bitrateIndex == 15
+                    || sampleRateIndex == 3) {
+                // Not a valid frame header
+                continue;
+            }
+            boolean mpeg1 = versionBits == 3;
+            int sampleRate = SAMPLE_RATES[versionBits][sampleRateIndex];
+            int bitrate = BITRATES[mpeg1 ? 0 : 1][layer - 1][bitrateIndex];
+            int samplesPerFrame = layer == 1 ? 384 : (layer == 3 && !mpeg1 ? 576 : 1152);
+
+            // A Xing/Info header contains the number of frames of VBR files
+            int xingOffset = i + 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+            if (xingOffset + 12 <= data.length
+                    && (matches(data, xingOffset, "Xing") || matches(data, xingOffset, "Info"))
+                    && (data[xingOffset + 7] & 0x01) != 0) {
+                long frames = readInt(data, xingOffset + 8);
+                return frames * samplesPerFrame * 1000 / sampleRate;
+            }
+            int vbriOffset = i + 4 + 32;
+            if (vbriOffset + 18 <= data.length && matches(data, vbriOffset, "VBRI")) {
+                long frames = readInt(data, vbriOffset + 14);
+                return frames * samplesPerFrame * 1000 / sampleRate;
+            }
+            // Assume that the file has a constant bitrate
+            long audioSize = file.length() - audioStart - i;
+            return audioSize * 8 / bitrate;
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] data, int offset, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (data[offset + i] != (byte) s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFFL) << 24 | (data[offset + 1] & 0xFFL) << 16
+                | (data[offset + 2] & 0xFFL) << 8 | (data[offset + 3] & 0xFFL);
+    }
+
+    private static long readSyncSafeInt(byte[] data, int offset) {
+        return (data[offset] & 0x7FL) << 21 | (data[offset + 1] & 0x7FL) << 14
+                | (data[offset + 2] & 0x7FL) << 7 | (data[offset + 3] & 0x7FL);
+    }
+}
@@ -0,0 +1,199 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.collection.tags;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the iTunes-style metadata atoms (moov/udta/meta/ilst) and the duration (moov/mvhd) of an
+ * MP4 audio file. Only the atoms on the way to these are being visited, everything else (like the
+ * media data and the sample tables) is being skipped.
+ */
+class Mp4TagParser {
+
+    private static final int ATOM_HEADER_SIZE = 8;
+
+    // Metadata items bigger than this are being skipped
+    private static final int MAX_ITEM_SIZE = 64 * 1024;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static void parse(RandomAccessFile file, TagReader.Tags tags) throws IOException {
+        long[] moov = findAtom(file, 0, file.length(), "moov");
+        if (moov == null) {
+            throw new IOException("No moov atom found");
+        }
+        long[] mvhd = findAtom(file, moov[0], moov[1], "mvhd");
+        if (mvhd != null) {
+            readDuration(file, mvhd[0], tags);
+        }
+        long[] udta = findAtom(file, moov[0], moov[1], "udta");
+        if (udta != null) {
+            long[] meta = findAtom(file, udta[0], udta[1], "meta");
+            if (meta != null) {
+                // meta is a full atom, its children start after version and flags
+                long[] ilst = findAtom(file, meta[0] + 4, meta[1], "ilst");
+                if (ilst != null) {
+                    readItems(file, ilst[0], ilst[1], tags);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the first child atom with the given type between the given offsets.
+     *
+     * @return the start and end offset of the atom's content, or null if no such atom exists
+     */
+    private static long[] findAtom(RandomAccessFile file, long start, long end, String type)
+            throws IOException {
+        long pos = start;
+        byte[] header = new byte[ATOM_HEADER_SIZE];
+        while (pos + ATOM_HEADER_SIZE <= end) {
+            file.seek(pos);
+            file.readFully(header);
+            long size = readInt(header, 0);
+            long contentStart = pos + ATOM_HEADER_SIZE;
+            if (size == 1) {
+                // 64-bit size
+                byte[] largeSize = new byte[8];
+                file.readFully(largeSize);
+                size = readInt(largeSize, 0) << 32 | readInt(largeSize, 4);
+                contentStart += 8;
+            } else if (size == 0) {
+                // The atom extends to the end
+                size = end - pos;
+            }
+            if (size < contentStart - pos || pos + size > end) {
+                return null;
+            }
+            if (matches(header, 4, type)) {
+                return new long[]{contentStart, pos + size};
+            }
+            pos += size;
+        }
+        return null;
+    }
+
+    private static void readDuration(RandomAccessFile file, long start, TagReader.Tags tags)
+            throws IOException {
+        file.seek(start);
+        int version = file.readUnsignedByte();
+        long timeScale;
+        long duration;
+        if (version == 1) {
+            // flags, creation time, modification time
+            file.seek(start + 4 + 16);
+            timeScale = file.readInt() & 0xFFFFFFFFL;
+            duration = file.readLong();
+        } else {
+            file.seek(start + 4 + 8);
+            timeScale = file.readInt() & 0xFFFFFFFFL;
+            duration = file.readInt() & 0xFFFFFFFFL;
+        }
+        if (timeScale > 0 && duration > 0) {
+            tags.duration = duration * 1000 / timeScale;
+        }
+    }
+
+    private static void readItems(RandomAccessFile file, long start, long end,
+            TagReader.Tags tags) throws IOException {
+        long pos = start;
+        byte[] header = new byte[ATOM_HEADER_SIZE];
+        while (pos + ATOM_HEADER_SIZE <= end) {
+            file.seek(pos);
+            file.readFully(header);
+            long size = readInt(header, 0);
+            if (size < ATOM_HEADER_SIZE || pos + size > end) {
+                return;
+            }
+            String type = new String(header, 4, 4, ISO_8859_1);
+            if (type.equals("covr")) {
+                tags.hasArtwork = true;
+            } else if (size <= MAX_ITEM_SIZE) {
+                byte[] item = new byte[(int) size - ATOM_HEADER_SIZE];
+                file.readFully(item);
+                readItem(type, item, tags);
+            }
+            pos += size;
+        }
+    }
+
+    /**
+     * Read the "data" atom of a single metadata item.
+     */
+    private static void readItem(String type, byte[] item, TagReader.Tags tags) {
+        // data atom header (8 bytes), type indicator (4 bytes), locale (4 bytes)
+        int valueOffset = 16;
+        if (item.length < valueOffset || !matches(item, 4, "data")) {
+            return;
+        }
+        long dataSize = readInt(item, 0);
+        int valueLength = (int) Math.min(dataSize, item.length) - valueOffset;
+        if (valueLength < 0) {
+            return;
+        }
+        switch (type) {
+            case "\u00A9nam":
+                tags.set("TITLE", new String(item, valueOffset, valueLength, UTF_8));
+                break;
+            case "\u00A9ART":
+                tags.set("ARTIST", new String(item, valueOffset, valueLength, UTF_8));
+                break;
+            case "\u00A9alb":
+                tags.set("ALBUM", new String(item, valueOffset, valueLength, UTF_8));
+                break;
+            case "aART":
+                tags.set("ALBUMARTIST", new String(item, valueOffset, valueLength, UTF_8));
+                break;
+            case "\u00A9gen":
+                tags.set("GENRE", new String(item, valueOffset, valueLength, UTF_8));
+                break;
+            case "trkn":
+                if (valueLength >= 4) {
+                    tags.trackNumber = (item[valueOffset + 2] & 0xFF) << 8
+                            | (item[valueOffset + 3] & 0xFF);
+                }
+                break;
+            case "disk":
+                if (valueLength >= 4) {
+                    tags.discNumber = (item[valueOffset + 2] & 0xFF) << 8
+                            | (item[valueOffset + 3] & 0xFF);
+                }
+                break;
+        }
+    }
+
+    private static boolean matches(byte[] data, int offset, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (data[offset + i] != (byte) s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFFL) << 24 | (data[offset + 1] & 0xFFL) << 16
+                | (data[offset + 2] & 0xFFL) << 8 | (data[offset + 3] & 0xFFL);
+    }
+}
@@ -0,0 +1,172 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.collection.tags;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads the identification and comment headers of Ogg Vorbis and Opus files. The duration is
+ * being calculated from the granule position of the last page.
+ */
+class OggTagParser {
+
+    private static final int PAGE_HEADER_SIZE = 27;
+
+    // The comment header is being truncated after this many bytes. Bigger headers most probably
+    // contain embedded artwork.
+    private static final int MAX_PACKET_SIZE = 256 * 1024;
+
+    // The size of the area at the end of the file that is being searched for the last page
+    private static final int LAST_PAGE_SEARCH_SIZE = 64 * 1024;
+
+    // Opus always uses a granule position rate of 48kHz
+    private static final int OPUS_SAMPLE_RATE = 48000;
+
+    private static class PacketReader {
+
+        private final RandomAccessFile mFile;
+
+        private long mSerial = -1;
+
+        private byte[] mSegmentTable;
+
+        private int mSegmentIndex;
+
+        private boolean mTruncated;
+
+        PacketReader(RandomAccessFile file) {
+            mFile = file;
+        }
+
+        /**
+         * @return the next packet of the first logical stream, truncated to {@link
+         * #MAX_PACKET_SIZE}
+         */
+        byte[] nextPacket() throws IOException {
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            mTruncated = false;
+            while (true) {
+                if (mSegmentTable == null || mSegmentIndex >= mSegmentTable.length) {
+                    readPageHeader();
+                }
+                int segmentSize = mSegmentTable[mSegmentIndex++] & 0xFF;
+                if (packet.size() + segmentSize <= MAX_PACKET_SIZE) {
+                    byte[] segment = new byte[segmentSize];
+                    mFile.readFully(segment);
+                    packet.write(segment);
+                } else {
+                    mFile.seek(mFile.getFilePointer() + segmentSize);
+                    mTruncated = true;
+                }
+                if (segmentSize < 255) {
+                    return packet.toByteArray();
+                }
+            }
+        }
+
+        private void readPageHeader() throws IOException {
+            while (true) {
+                byte[] header = new byte[PAGE_HEADER_SIZE];
+                mFile.readFully(header);
+                if (header[0] != 'O' || header[1] != 'g' || header[2] != 'g' || header[3] != 'S') {
+                    throw new IOException("Not an Ogg page");
+                }
+                long serial = VorbisComments.readIntLE(header, 14);
+                mSegmentTable = new byte[header[26] & 0xFF];
+                mFile.readFully(mSegmentTable);
+                mSegmentIndex = 0;
+                if (mSerial < 0) {
+                    mSerial = serial;
+                }
+                if (serial == mSerial && mSegmentTable.length > 0) {
+                    return;
+                }
+                // Skip pages of other logical streams
+                int bodySize = 0;
+                for (byte segmentSize : mSegmentTable) {
+                    bodySize += segmentSize & 0xFF;
+                }
+                mFile.seek(mFile.getFilePointer() + bodySize);
+            }
+        }
+    }
+
+    static void parse(RandomAccessFile file, TagReader.Tags tags) throws IOException {
+        PacketReader reader = new PacketReader(file);
+        byte[] packet = reader.nextPacket();
+        long sampleRate;
+        long preSkip = 0;
+        boolean opus;
+        if (startsWith(packet, 0, "\u0001vorbis") && packet.length >= 16) {
+            opus = false;
+            sampleRate = VorbisComments.readIntLE(packet, 12);
+        } else if (startsWith(packet, 0, "OpusHead") && packet.length >= 12) {
+            opus = true;
+            sampleRate = OPUS_SAMPLE_RATE;
+            preSkip = (packet[10] & 0xFF) | (packet[11] & 0xFF) << 8;
+        } else {
+            throw new IOException("Unsupported Ogg stream");
+        }
+        packet = reader.nextPacket();
+        if (!opus && startsWith(packet, 0, "\u0003vorbis")) {
+            VorbisComments.parse(packet, 7, tags);
+        } else if (opus && startsWith(packet, 0, "OpusTags")) {
+            VorbisComments.parse(packet, 8, tags);
+        }
+        if (reader.mTruncated) {
+            tags.hasArtwork = true;
+        }
+
+        long granule = readLastGranule(file, reader.mSerial);
+        if (sampleRate > 0 && granule > preSkip) {
+            tags.duration = (granule - preSkip) * 1000 / sampleRate;
+        }
+    }
+
+    private static long readLastGranule(RandomAccessFile file, long serial) throws IOException {
+        int size = (int) Math.min(file.length(), LAST_PAGE_SEARCH_SIZE);
+        byte[] data = new byte[size];
+        file.seek(file.length() - size);
+        file.readFully(data);
+        for (int i = size - PAGE_HEADER_SIZE; i >= 0; i--) {
+            if (data[i] == 'O' && data[i + 1] == 'g' && data[i + 2] == 'g' && data[i + 3] == 'S'
+                    && VorbisComments.readIntLE(data, i + 14) == serial) {
+                long granule = VorbisComments.readIntLE(data, i + 6)
+                        | VorbisComments.readIntLE(data, i + 10) << 32;
+                if (granule > 0) {
+                    return granule;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, String prefix) {
+        if (data.length < offset + prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[offset + i] != (byte) prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,277 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.collection.tags;
+
+import org.tomahawk.tomahawk_android.utils.MediaWrapper;
+
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lightweight reader for the tags of the most common audio formats (ID3 in MP3, Vorbis comments
+ * in FLAC and Ogg, iTunes-style atoms in MP4 audio). Only the few KB that contain the tags and the
+ * stream info are being read, which is a lot cheaper than a full LibVLC parse.
+ *
+ * If a file can't be read completely (unknown container, missing duration, embedded artwork that
+ * only LibVLC can extract), {@link #read(File)} returns null and the caller has to fall back to
+ * LibVLC.
+ *
+ * Instances are thread-safe and are meant to be used for a single scan.
+ */
+public class TagReader {
+
+    private final static String TAG = TagReader.class.getSimpleName();
+
+    // The file names that LibVLC looks for when searching for album art in a media folder
+    private static final String[] FOLDER_ART_NAMES = new String[]{"folder.jpg", "cover.jpg",
+            "front.jpg", "albumart.jpg", "albumartsmall.jpg", "folder.png", "cover.png",
+            "front.png"};
+
+    private static final String NO_FOLDER_ART = "";
+
+    /**
+     * The tags and stream info that have been read from a single file.
+     */
+    static class Tags {
+
+        String title;
+
+        String artist;
+
+        String album;
+
+        String albumArtist;
+
+        String genre;
+
+        int trackNumber;
+
+        int discNumber;
+
+        // The duration in ms, or -1 if unknown
+        long duration = -1;
+
+        boolean hasArtwork;
+
+        /**
+         * Set the value of the given tag, if it's one of the tags we're interested in. The keys
+         * are the field names of Vorbis comments, which are used by FLAC and Ogg.
+         */
+        void set(String key, String value) {
+            key = key.toUpperCase(Locale.US);
+            if (key.equals("TITLE")) {
+                title = firstNonEmpty(title, value);
+            } else if (key.equals("ARTIST")) {
+                artist = firstNonEmpty(artist, value);
+            } else if (key.equals("ALBUM")) {
+                album = firstNonEmpty(album, value);
+            } else if (key.equals("ALBUMARTIST") || key.equals("ALBUM ARTIST")) {
+                albumArtist = firstNonEmpty(albumArtist, value);
+            } else if (key.equals("GENRE")) {
+                genre = firstNonEmpty(genre, value);
+            } else if (key.equals("TRACKNUMBER") && trackNumber == 0) {
+                trackNumber = parseNumber(value);
+            } else if (key.equals("DISCNUMBER") && discNumber == 0) {
+                discNumber = parseNumber(value);
+            } else if (key.equals("METADATA_BLOCK_PICTURE") || key.equals("COVERART")) {
+                hasArtwork = true;
+            }
+        }
+
+        private static String firstNonEmpty(String current, String value) {
+            if (current != null) {
+                return current;
+            }
+            value = value != null ? value.trim() : null;
+            return TextUtils.isEmpty(value) ? null : value;
+        }
+
+        /**
+         * Parse numbers like "3" or "3/12".
+         */
+        static int parseNumber(String value) {
+            if (value == null) {
+                return 0;
+            }
+            int slash = value.indexOf('/');
+            if (slash >= 0) {
+                value = value.substring(0, slash);
+            }
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    private final Map<String, String> mFolderArt = new ConcurrentHashMap<>();
+
+    private final AtomicInteger mReadCount = new AtomicInteger();
+
+    private final AtomicInteger mFallbackCount = new AtomicInteger();
+
+    private final AtomicLong mReadNanos = new AtomicLong();
+
+    /**
+     * @return whether or not we are able to read tags from files with the given name
+     */
+    public static boolean isSupported(String fileName) {
+        return getFormat(fileName) != null;
+    }
+
+    private static String getFormat(String fileName) {
+        int dotIndex = fileName.lastIndexOf('.');
+        if (dotIndex < 0) {
+            return null;
+        }
+        String extension = fileName.substring(dotIndex + 1).toLowerCase(Locale.US);
+        switch (extension) {
+            case "mp3":
+                return "mp3";
+            case "flac":
+                return "flac";
+            case "ogg":
+            case "oga":
+            case "opus":
+                return "ogg";
+            case "m4a":
+            case "m4b":
+                return "mp4";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Read the tags of the given file.
+     *
+     * @return a {@link MediaWrapper} of type {@link MediaWrapper#TYPE_AUDIO} containing all tags,
+     * or null if the file has to be parsed by LibVLC instead
+     */
+    public MediaWrapper read(File file) {
+        String format = getFormat(file.getName());
+        if (format == null) {
+            return null;
+        }
+        long time = System.nanoTime();
+        Tags tags = new Tags();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            switch (format) {
+                case "mp3":
+                    Id3TagParser.parse(raf, tags);
+                    break;
+                case "flac":
+                    FlacTagParser.parse(raf, tags);
+                    break;
+                case "ogg":
+                    OggTagParser.parse(raf, tags);
+                    break;
+                case "mp4":
+                    Mp4TagParser.parse(raf, tags);
+                    break;
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "read - " + file.getPath() + " - " + e.getClass() + ": "
+                    + e.getLocalizedMessage());
+            tags = null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "read: " + e.getClass() + ": " + e.getLocalizedMessage());
+                }
+            }
+        }
+        if (tags == null || tags.duration <= 0 || tags.hasArtwork) {
+            // Only LibVLC is able to get the duration or to extract the embedded artwork
+            mFallbackCount.incrementAndGet();
+            return null;
+        }
+        MediaWrapper mw = new MediaWrapper(Uri.fromFile(file), 0, tags.duration,
+                MediaWrapper.TYPE_AUDIO, null, tags.title, tags.artist, tags.genre, tags.album,
+                tags.albumArtist, 0, 0, getFolderArt(file.getParentFile()), -2, -2,
+                tags.trackNumber, tags.discNumber, 0);
+        mReadNanos.addAndGet(System.nanoTime() - time);
+        mReadCount.incrementAndGet();
+        return mw;
+    }
+
+    /**
+     * @return the url of the album art image in the given folder, or null if there is none
+     */
+    private String getFolderArt(File folder) {
+        if (folder == null) {
+            return null;
+        }
+        String folderArt = mFolderArt.get(folder.getPath());
+        if (folderArt == null) {
+            folderArt = NO_FOLDER_ART;
+            String[] fileNames = folder.list();
+            if (fileNames != null) {
+                int bestIndex = FOLDER_ART_NAMES.length;
+                for (String fileName : fileNames) {
+                    String lowerCaseName = fileName.toLowerCase(Locale.US);
+                    for (int i = 0; i < bestIndex; i++) {
+                        if (lowerCaseName.equals(FOLDER_ART_NAMES[i])) {
+                            folderArt = Uri.fromFile(new File(folder, fileName)).toString();
+                            bestIndex = i;
+                            break;
+                        }
+                    }
+                }
+            }
+            mFolderArt.put(folder.getPath(), folderArt);
+        }
+        return folderArt == NO_FOLDER_ART ? null : folderArt;
+    }
+
+    /**
+     * @return the number of files that have been read successfully
+     */
+    public int getReadCount() {
+        return mReadCount.get();
+    }
+
+    /**
+     * @return the number of files that have to be parsed by LibVLC
+     */
+    public int getFallbackCount() {
+        return mFallbackCount.get();
+    }
+
+    /**
+     * @return the time spent reading the files that have been read successfully, in ns
+     */
+    public long getReadNanos() {
+        return mReadNanos.get();
+    }
+}
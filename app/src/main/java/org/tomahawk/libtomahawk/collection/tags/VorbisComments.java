@@ -0,0 +1,78 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.collection.tags;
+
+import java.nio.charset.Charset;
+
+/**
+ * Parses a Vorbis comment block, which is used by FLAC, Ogg Vorbis and Opus.
+ */
+class VorbisComments {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Parse the comment block that starts at the given offset. A truncated block is being parsed
+     * as far as possible.
+     */
+    static void parse(byte[] data, int offset, TagReader.Tags tags) {
+        int pos = offset;
+        if (pos + 4 > data.length) {
+            return;
+        }
+        long vendorLength = readIntLE(data, pos);
+        pos += 4 + vendorLength;
+        if (vendorLength < 0 || pos + 4 > data.length) {
+            return;
+        }
+        long count = readIntLE(data, pos);
+        pos += 4;
+        for (long i = 0; i < count && pos + 4 <= data.length; i++) {
+            long length = readIntLE(data, pos);
+            pos += 4;
+            if (length < 0 || pos + length > data.length) {
+                // The comment has been truncated
+                String key = readKey(data, pos, data.length - pos);
+                if (key != null) {
+                    tags.set(key, null);
+                }
+                return;
+            }
+            String comment = new String(data, pos, (int) length, UTF_8);
+            int separator = comment.indexOf('=');
+            if (separator > 0) {
+                tags.set(comment.substring(0, separator), comment.substring(separator + 1));
+            }
+            pos += length;
+        }
+    }
+
+    private static String readKey(byte[] data, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (data[offset + i] == '=') {
+                return new String(data, offset, i, UTF_8);
+            }
+        }
+        return null;
+    }
+
+    static long readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xFFL) | (data[offset + 1] & 0xFFL) << 8
+                | (data[offset + 2] & 0xFFL) << 16 | (data[offset + 3] & 0xFFL) << 24;
+    }
+}
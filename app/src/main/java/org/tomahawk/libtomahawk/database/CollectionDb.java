@@ -18,9 +18,12 @@
 package org.tomahawk.libtomahawk.database;
 
 import org.tomahawk.libtomahawk.collection.Artist;
+import org.tomahawk.libtomahawk.collection.Collection;
 import org.tomahawk.libtomahawk.collection.CollectionManager;
 import org.tomahawk.libtomahawk.collection.DbCollection;
 import org.tomahawk.libtomahawk.resolver.FuzzyIndex;
+import org.tomahawk.libtomahawk.resolver.PipeLine;
+import org.tomahawk.libtomahawk.resolver.ResolutionCache;
 import org.tomahawk.libtomahawk.resolver.models.ScriptResolverTrack;
 import org.tomahawk.libtomahawk.utils.StringUtils;
 import org.tomahawk.tomahawk_android.utils.PreferenceUtils;
@@ -28,13 +31,16 @@ import org.tomahawk.tomahawk_android.utils.PreferenceUtils;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -109,10 +115,31 @@ public class CollectionDb extends SQLiteOpenHelper {
 
     public static final String REVISIONHISTORY_TIMESTAMP = "timeStamp";
 
+    public static final String TABLE_TRACKCHANGES = "trackChanges";
+
+    public static final String TRACKCHANGES_TRACKID = "trackId";
+
+    public static final String TRACKCHANGES_ACTION = "action";
+
     protected static final int ACTION_WIPE = 0;
 
     protected static final int ACTION_ADDTRACKS = 1;
 
+    protected static final int ACTION_REMOVETRACKS = 2;
+
+    private static final int CHANGE_ADDED = 0;
+
+    private static final int CHANGE_REMOVED = 1;
+
+    private static final int CHANGE_WIPED = 2;
+
+    // The change log only keeps this many changes. Consumers that are further behind have to
+    // rebuild from scratch.
+    private static final int MAX_TRACKCHANGES = 20000;
+
+    // Max number of variables in a single SQLite statement is 999
+    private static final int MAX_QUERY_IDS = 500;
+
     protected static final int TYPE_DEFAULT = 0;
 
     // This type marks an entry that has been explicitly loved.
@@ -195,10 +222,52 @@ public class CollectionDb extends SQLiteOpenHelper {
             + REVISIONHISTORY_REVISION + " TEXT,"
             + REVISIONHISTORY_TIMESTAMP + " INTEGER );";
 
-    private static final int DB_VERSION = 5;
+    // The change log. Its ids are the revisions, which consumers can ask for the changes since.
+    private static final String CREATE_TABLE_TRACKCHANGES = "CREATE TABLE IF NOT EXISTS "
+            + TABLE_TRACKCHANGES + " ("
+            + ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + TRACKCHANGES_TRACKID + " INTEGER,"
+            + TRACKCHANGES_ACTION + " INTEGER );";
+
+    // Indexes for the joins, lookups and sort orders of the browse queries. The UNIQUE constraints
+    // of the tables only cover lookups by name.
+    private static final String[] CREATE_INDEXES = new String[]{
+            "CREATE INDEX IF NOT EXISTS " + TABLE_TRACKS + "_" + TRACKS_ARTISTID + " ON "
+                    + TABLE_TRACKS + " (" + TRACKS_ARTISTID + ", " + TRACKS_ALBUMID + ");",
+            "CREATE INDEX IF NOT EXISTS " + TABLE_TRACKS + "_" + TRACKS_ALBUMID + " ON "
+                    + TABLE_TRACKS + " (" + TRACKS_ALBUMID + ", " + TRACKS_ALBUMPOS + ");",
+            "CREATE INDEX IF NOT EXISTS " + TABLE_TRACKS + "_" + TRACKS_URL + " ON "
+                    + TABLE_TRACKS + " (" + TRACKS_URL + ");",
+            "CREATE INDEX IF NOT EXISTS " + TABLE_TRACKS + "_" + TRACKS_LASTMODIFIED + " ON "
+                    + TABLE_TRACKS + " (" + TRACKS_LASTMODIFIED + ");",
+            "CREATE INDEX IF NOT EXISTS " + TABLE_ARTISTALBUMS + "_" + ARTISTALBUMS_ARTISTID
+                    + " ON " + TABLE_ARTISTALBUMS + " (" + ARTISTALBUMS_ARTISTID + ", "
+                    + ARTISTALBUMS_ALBUMID + ");",
+            "CREATE INDEX IF NOT EXISTS " + TABLE_ALBUMS + "_" + ALBUMS_ALBUMARTISTID + " ON "
+                    + TABLE_ALBUMS + " (" + ALBUMS_ALBUMARTISTID + ");",
+            "CREATE INDEX IF NOT EXISTS " + TABLE_ALBUMS + "_" + ALBUMS_ALBUM + "_nocase ON "
+                    + TABLE_ALBUMS + " (" + ALBUMS_ALBUM + " COLLATE NOCASE);",
+            "CREATE INDEX IF NOT EXISTS " + TABLE_ALBUMS + "_" + ALBUMS_LASTMODIFIED + " ON "
+                    + TABLE_ALBUMS + " (" + ALBUMS_LASTMODIFIED + ");",
+            "CREATE INDEX IF NOT EXISTS " + TABLE_ARTISTS + "_" + ARTISTS_ARTIST + "_nocase ON "
+                    + TABLE_ARTISTS + " (" + ARTISTS_ARTIST + " COLLATE NOCASE);",
+            "CREATE INDEX IF NOT EXISTS " + TABLE_ARTISTS + "_" + ARTISTS_LASTMODIFIED + " ON "
+                    + TABLE_ARTISTS + " (" + ARTISTS_LASTMODIFIED + ");",
+            "CREATE INDEX IF NOT EXISTS " + TABLE_ALBUMARTISTS + "_" + ALBUMARTISTS_ALBUMARTIST
+                    + "_nocase ON " + TABLE_ALBUMARTISTS + " (" + ALBUMARTISTS_ALBUMARTIST
+                    + " COLLATE NOCASE);"
+    };
+
+    private static final int DB_VERSION = 7;
 
     private static final String DB_FILE_SUFFIX = "_collection.db";
 
+    /**
+     * The database is opened in write-ahead logging mode. All writes go through the synchronized
+     * methods of this class, so that there's only a single writer at a time. Reads aren't
+     * synchronized. They are being executed on their own connections and see the last committed
+     * state of the database, so they neither wait for nor block an ongoing write transaction.
+     */
     protected final SQLiteDatabase mDb;
 
     private static final String LAST_COLLECTION_DB_UPDATE_SUFFIX = "_last_collection_db_update";
@@ -213,6 +282,67 @@ public class CollectionDb extends SQLiteOpenHelper {
 
     }
 
+    /**
+     * Describes which tracks have been added to or removed from the {@link CollectionDb} by a
+     * single write operation, so that dependent structures like the {@link FuzzyIndex} can be
+     * updated incrementally.
+     */
+    public static class ChangeSet {
+
+        public static class Entry {
+
+            public final int id;
+
+            public final String artist;
+
+            public final String album;
+
+            public final String track;
+
+            public Entry(int id, String artist, String album, String track) {
+                this.id = id;
+                this.artist = artist;
+                this.album = album;
+                this.track = track;
+            }
+        }
+
+        private boolean mWiped;
+
+        private long mRevision = -1;
+
+        private final List<Entry> mAddedTracks = new ArrayList<>();
+
+        private final List<Integer> mRemovedTrackIds = new ArrayList<>();
+
+        /**
+         * @return whether or not all tracks have been removed before the added tracks were inserted
+         */
+        public boolean isWiped() {
+            return mWiped;
+        }
+
+        /**
+         * @return the revision of the change log that this ChangeSet brings a consumer to, or -1
+         * if nothing has been changed
+         */
+        public long getRevision() {
+            return mRevision;
+        }
+
+        public List<Entry> getAddedTracks() {
+            return mAddedTracks;
+        }
+
+        public List<Integer> getRemovedTrackIds() {
+            return mRemovedTrackIds;
+        }
+
+        public boolean isEmpty() {
+            return !mWiped && mAddedTracks.isEmpty() && mRemovedTrackIds.isEmpty();
+        }
+    }
+
     private static class JoinInfo {
 
         String table;
@@ -235,6 +365,10 @@ public class CollectionDb extends SQLiteOpenHelper {
 
         close();
         mDb = getWritableDatabase();
+        if (!mDb.enableWriteAheadLogging()) {
+            Log.e(TAG, "Couldn't enable write-ahead logging for CollectionDb '" + collectionId
+                    + DB_FILE_SUFFIX + "'");
+        }
 
         mFuzzyIndex = new FuzzyIndex(this);
     }
@@ -253,6 +387,8 @@ public class CollectionDb extends SQLiteOpenHelper {
         db.execSQL(CREATE_TABLE_ARTISTALBUMS);
         db.execSQL(CREATE_TABLE_TRACKS);
         db.execSQL(CREATE_TABLE_REVISIONHISTORY);
+        db.execSQL(CREATE_TABLE_TRACKCHANGES);
+        createIndexes(db);
         Log.d(TAG, "onCreate finished - CollectionDb '" + db.getPath() + "' with version "
                 + db.getVersion() + ", objectId: " + this.hashCode());
     }
@@ -272,13 +408,30 @@ public class CollectionDb extends SQLiteOpenHelper {
                 storeNewRevision(db, String.valueOf(lastDbUpdate), ACTION_ADDTRACKS);
             }
         }
+        if (oldVersion < 6) {
+            createIndexes(db);
+        }
+        if (oldVersion < 7) {
+            db.execSQL(CREATE_TABLE_TRACKCHANGES);
+        }
     }
 
+    private static void createIndexes(SQLiteDatabase db) {
+        for (String createIndex : CREATE_INDEXES) {
+            db.execSQL(createIndex);
+        }
+    }
+
+    /**
+     * Add the given tracks together with their artists, albumArtists and albums in a single
+     * transaction. All rows are being inserted through precompiled statements and the ids of
+     * artists and albums are being cached, so that every one of them is only looked up once.
+     */
     public synchronized void addTracks(List<ScriptResolverTrack> tracks) {
         long time = System.currentTimeMillis();
 
         // Check if we want to store the album as a compilation album (with artist "Various Artists")
-        Map<String, Set<String>> albumArtists = new HashMap<>();
+        KeyMap<Set<String>> albumArtists = new KeyMap<>();
         for (ScriptResolverTrack track : tracks) {
             if (track.artist == null) {
                 track.artist = "";
@@ -298,179 +451,480 @@ public class CollectionDb extends SQLiteOpenHelper {
             if (track.track == null) {
                 track.track = "";
             }
-            Set<String> artists = albumArtists.get(track.album + "♠" + track.albumArtist);
+            Set<String> artists = albumArtists.get(track.album, track.albumArtist);
             if (artists == null) {
                 artists = new HashSet<>();
-                albumArtists.put(track.album + "♠" + track.albumArtist, artists);
+                albumArtists.put(track.album, track.albumArtist, artists);
             }
             if (artists.size() < 2) {
                 artists.add(track.artist);
             }
         }
+        boolean[] compilations = new boolean[tracks.size()];
+        KeyMap<Long> artistLastModifiedMap = new KeyMap<>();
+        for (int i = 0; i < tracks.size(); i++) {
+            ScriptResolverTrack track = tracks.get(i);
+            compilations[i] = albumArtists.get(track.album, track.albumArtist).size() > 1;
+            if (compilations[i]) {
+                putMax(artistLastModifiedMap, Artist.COMPILATION_ARTIST.getName(), "",
+                        track.lastModified);
+            }
+            putMax(artistLastModifiedMap, track.artist, track.artistDisambiguation,
+                    track.lastModified);
+        }
 
-        Map<String, Long> artistLastModifiedMap = new HashMap<>();
-        // First we insert all artists and albumArtists
+        ChangeSet changeSet = new ChangeSet();
+        SQLiteStatement insertArtist = mDb.compileStatement("INSERT INTO " + TABLE_ARTISTS
+                + " (" + ARTISTS_ARTIST + ", " + ARTISTS_ARTISTDISAMBIGUATION + ", "
+                + ARTISTS_LASTMODIFIED + ", " + ARTISTS_TYPE + ") VALUES (?, ?, ?, ?)");
+        SQLiteStatement selectArtist = mDb.compileStatement("SELECT " + ID + " FROM "
+                + TABLE_ARTISTS + " WHERE " + ARTISTS_ARTIST + " = ? AND "
+                + ARTISTS_ARTISTDISAMBIGUATION + " = ? AND " + ARTISTS_TYPE + " = ?");
+        SQLiteStatement insertAlbumArtist = mDb.compileStatement("INSERT INTO "
+                + TABLE_ALBUMARTISTS + " (" + ALBUMARTISTS_ALBUMARTIST + ", "
+                + ALBUMARTISTS_ALBUMARTISTDISAMBIGUATION + ", " + ALBUMARTISTS_LASTMODIFIED
+                + ") VALUES (?, ?, ?)");
+        SQLiteStatement insertAlbum = mDb.compileStatement("INSERT INTO " + TABLE_ALBUMS + " ("
+                + ALBUMS_ALBUM + ", " + ALBUMS_ALBUMARTISTID + ", " + ALBUMS_IMAGEPATH + ", "
+                + ALBUMS_LASTMODIFIED + ", " + ALBUMS_TYPE + ") VALUES (?, ?, ?, ?, ?)");
+        SQLiteStatement selectAlbum = mDb.compileStatement("SELECT " + ID + " FROM "
+                + TABLE_ALBUMS + " WHERE " + ALBUMS_ALBUM + " = ? AND " + ALBUMS_ALBUMARTISTID
+                + " = ? AND " + ALBUMS_TYPE + " = ?");
+        SQLiteStatement insertArtistAlbum = mDb.compileStatement("INSERT INTO "
+                + TABLE_ARTISTALBUMS + " (" + ARTISTALBUMS_ARTISTID + ", "
+                + ARTISTALBUMS_ALBUMID + ") VALUES (?, ?)");
+        SQLiteStatement insertTrack = mDb.compileStatement("INSERT INTO " + TABLE_TRACKS + " ("
+                + TRACKS_TRACK + ", " + TRACKS_ARTISTID + ", " + TRACKS_ALBUMID + ", "
+                + TRACKS_URL + ", " + TRACKS_DURATION + ", " + TRACKS_LINKURL + ", "
+                + TRACKS_ALBUMPOS + ", " + TRACKS_LASTMODIFIED
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement insertChange = compileInsertChange(mDb);
         mDb.beginTransaction();
-        for (ScriptResolverTrack track : tracks) {
-            if (albumArtists.get(track.album + "♠" + track.albumArtist).size() > 1) {
-                ContentValues values = new ContentValues();
-                values.put(ARTISTS_ARTIST, Artist.COMPILATION_ARTIST.getName());
-                values.put(ARTISTS_ARTISTDISAMBIGUATION, "");
-                String artistKey = Artist.COMPILATION_ARTIST.getName() + "♠" + "";
-                Long lastModified = artistLastModifiedMap.get(artistKey);
-                if (lastModified == null || lastModified < track.lastModified) {
-                    artistLastModifiedMap.put(artistKey, track.lastModified);
-                    lastModified = track.lastModified;
+        try {
+            // First we insert all artists and albumArtists
+            KeyMap<Long> cachedArtists = new KeyMap<>();
+            KeyMap<Boolean> insertedAlbumArtists = new KeyMap<>();
+            long[] artistIds = new long[tracks.size()];
+            long[] albumArtistIds = new long[tracks.size()];
+            KeyMap<Long> albumLastModifiedMap = new KeyMap<>();
+            for (int i = 0; i < tracks.size(); i++) {
+                ScriptResolverTrack track = tracks.get(i);
+                artistIds[i] = getOrInsertArtist(insertArtist, selectArtist, cachedArtists,
+                        artistLastModifiedMap, track.artist, track.artistDisambiguation);
+                if (insertedAlbumArtists.get(track.albumArtist,
+                        track.albumArtistDisambiguation) == null) {
+                    insertAlbumArtist.bindString(1, track.albumArtist);
+                    insertAlbumArtist.bindString(2, track.albumArtistDisambiguation);
+                    insertAlbumArtist.bindLong(3, artistLastModifiedMap.get(track.artist,
+                            track.artistDisambiguation));
+                    insertAlbumArtist.executeInsert();
+                    insertedAlbumArtists.put(track.albumArtist, track.albumArtistDisambiguation,
+                            true);
                 }
-                values.put(ARTISTS_LASTMODIFIED, lastModified);
-                values.put(ARTISTS_TYPE, TYPE_DEFAULT);
-                mDb.insert(TABLE_ARTISTS, null, values);
-            }
-            ContentValues values = new ContentValues();
-            values.put(ARTISTS_ARTIST, track.artist);
-            values.put(ARTISTS_ARTISTDISAMBIGUATION, track.artistDisambiguation);
-            String artistKey = track.artist + "♠" + track.artistDisambiguation;
-            Long lastModified = artistLastModifiedMap.get(artistKey);
-            if (lastModified == null || lastModified < track.lastModified) {
-                artistLastModifiedMap.put(artistKey, track.lastModified);
-                lastModified = track.lastModified;
-            }
-            values.put(ARTISTS_LASTMODIFIED, lastModified);
-            values.put(ARTISTS_TYPE, TYPE_DEFAULT);
-            mDb.insert(TABLE_ARTISTS, null, values);
-            values = new ContentValues();
-            values.put(ALBUMARTISTS_ALBUMARTIST, track.albumArtist);
-            values.put(ALBUMARTISTS_ALBUMARTISTDISAMBIGUATION, track.albumArtistDisambiguation);
-            values.put(ALBUMARTISTS_LASTMODIFIED, lastModified);
-            mDb.insert(TABLE_ALBUMARTISTS, null, values);
-        }
-        mDb.setTransactionSuccessful();
-        mDb.endTransaction();
-
-        Cursor cursor = mDb.query(TABLE_ARTISTS,
-                new String[]{ID, ARTISTS_ARTIST, ARTISTS_ARTISTDISAMBIGUATION},
-                null, null, null, null, null);
-        Map<String, Integer> cachedArtists = cursorToMap(cursor);
-
-        Map<String, Long> albumLastModifiedMap = new HashMap<>();
-        mDb.beginTransaction();
-        for (ScriptResolverTrack track : tracks) {
-            ContentValues values = new ContentValues();
-            values.put(ALBUMS_ALBUM, track.album);
-            int albumArtistId;
-            if (albumArtists.get(track.album + "♠" + track.albumArtist).size() == 1) {
-                albumArtistId = cachedArtists.get(
-                        concatKeys(track.artist, track.artistDisambiguation));
-            } else {
-                albumArtistId = cachedArtists.get(
-                        concatKeys(Artist.COMPILATION_ARTIST.getName(), ""));
+                if (compilations[i]) {
+                    albumArtistIds[i] = getOrInsertArtist(insertArtist, selectArtist,
+                            cachedArtists, artistLastModifiedMap,
+                            Artist.COMPILATION_ARTIST.getName(), "");
+                } else {
+                    albumArtistIds[i] = artistIds[i];
+                }
+                putMax(albumLastModifiedMap, track.album, albumArtistIds[i], track.lastModified);
             }
-            values.put(ALBUMS_ALBUMARTISTID, albumArtistId);
-            values.put(ALBUMS_IMAGEPATH, track.imagePath);
-            String artistKey = track.album + "♠" + albumArtistId;
-            Long lastModified = albumLastModifiedMap.get(artistKey);
-            if (lastModified == null || lastModified < track.lastModified) {
-                albumLastModifiedMap.put(artistKey, track.lastModified);
-                lastModified = track.lastModified;
+
+            // Then we insert all albums and tracks
+            KeyMap<Long> cachedAlbums = new KeyMap<>();
+            for (int i = 0; i < tracks.size(); i++) {
+                ScriptResolverTrack track = tracks.get(i);
+                Long albumId = cachedAlbums.get(track.album, albumArtistIds[i]);
+                if (albumId == null) {
+                    insertAlbum.bindString(1, track.album);
+                    insertAlbum.bindLong(2, albumArtistIds[i]);
+                    bindStringOrNull(insertAlbum, 3, track.imagePath);
+                    insertAlbum.bindLong(4,
+                            albumLastModifiedMap.get(track.album, albumArtistIds[i]));
+                    insertAlbum.bindLong(5, TYPE_DEFAULT);
+                    albumId = insertAlbum.executeInsert();
+                    if (albumId < 0) {
+                        // The album has already been stored before
+                        selectAlbum.bindString(1, track.album);
+                        selectAlbum.bindLong(2, albumArtistIds[i]);
+                        selectAlbum.bindLong(3, TYPE_DEFAULT);
+                        albumId = selectAlbum.simpleQueryForLong();
+                    }
+                    cachedAlbums.put(track.album, albumArtistIds[i], albumId);
+                }
+                insertArtistAlbum.bindLong(1, artistIds[i]);
+                insertArtistAlbum.bindLong(2, albumId);
+                insertArtistAlbum.executeInsert();
+                insertTrack.bindString(1, track.track);
+                insertTrack.bindLong(2, artistIds[i]);
+                insertTrack.bindLong(3, albumId);
+                bindStringOrNull(insertTrack, 4, track.url);
+                insertTrack.bindLong(5, (int) track.duration);
+                bindStringOrNull(insertTrack, 6, track.linkUrl);
+                insertTrack.bindLong(7, track.albumpos);
+                insertTrack.bindLong(8, track.lastModified);
+                long trackId = insertTrack.executeInsert();
+                if (trackId >= 0) {
+                    changeSet.mAddedTracks.add(new ChangeSet.Entry(
+                            (int) trackId, track.artist, track.album, track.track));
+                    changeSet.mRevision = logChange(insertChange, trackId, CHANGE_ADDED);
+                }
             }
-            values.put(ALBUMS_LASTMODIFIED, lastModified);
-            values.put(ALBUMS_TYPE, TYPE_DEFAULT);
-            mDb.insert(TABLE_ALBUMS, null, values);
+            pruneChanges(mDb);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            insertArtist.close();
+            selectArtist.close();
+            insertAlbumArtist.close();
+            insertAlbum.close();
+            selectAlbum.close();
+            insertArtistAlbum.close();
+            insertTrack.close();
+            insertChange.close();
         }
-        mDb.setTransactionSuccessful();
-        mDb.endTransaction();
-
-        cursor = mDb.query(TABLE_ALBUMS,
-                new String[]{ID, ALBUMS_ALBUM, ALBUMS_ALBUMARTISTID},
-                null, null, null, null, null);
-        Map<String, Integer> cachedAlbums = cursorToMap(cursor);
-
-        mDb.beginTransaction();
-        for (ScriptResolverTrack track : tracks) {
-            ContentValues values = new ContentValues();
-            int albumArtistId;
-            if (albumArtists.get(track.album + "♠" + track.albumArtist).size() == 1) {
-                albumArtistId = cachedArtists.get(
-                        concatKeys(track.artist, track.artistDisambiguation));
-            } else {
-                albumArtistId = cachedArtists.get(
-                        concatKeys(Artist.COMPILATION_ARTIST.getName(), ""));
-            }
-            int artistId = cachedArtists.get(concatKeys(track.artist, track.artistDisambiguation));
-            int albumId = cachedAlbums.get(concatKeys(track.album, albumArtistId));
-            values.put(ARTISTALBUMS_ARTISTID, artistId);
-            values.put(ARTISTALBUMS_ALBUMID, albumId);
-            mDb.insert(TABLE_ARTISTALBUMS, null, values);
-            values = new ContentValues();
-            values.put(TRACKS_TRACK, track.track);
-            values.put(TRACKS_ARTISTID, artistId);
-            values.put(TRACKS_ALBUMID, albumId);
-            values.put(TRACKS_URL, track.url);
-            values.put(TRACKS_DURATION, (int) track.duration);
-            values.put(TRACKS_LINKURL, track.linkUrl);
-            values.put(TRACKS_ALBUMPOS, track.albumpos);
-            values.put(TRACKS_LASTMODIFIED, track.lastModified);
-            mDb.insert(TABLE_TRACKS, null, values);
-        }
-        mDb.setTransactionSuccessful();
-        mDb.endTransaction();
 
         Log.d(TAG, "Added " + tracks.size() + " tracks in " + (System.currentTimeMillis() - time)
                 + "ms");
         if (tracks.size() > 0) {
             storeNewRevision(String.valueOf(System.currentTimeMillis()), ACTION_ADDTRACKS);
         }
-        mFuzzyIndex.ensureIndex();
+        if (!changeSet.isEmpty()) {
+            onContentChanged(changeSet);
+        }
         ((DbCollection) CollectionManager.get().getCollection(mCollectionId)).setInitialized(true);
     }
 
-    private static Map<String, Integer> cursorToMap(Cursor cursor) {
-        Map<String, Integer> map = new HashMap<>();
+    /**
+     * Get the id of the given artist from the cache, or insert the artist if it isn't cached yet.
+     *
+     * @return the id of the given artist
+     */
+    private static long getOrInsertArtist(SQLiteStatement insertArtist,
+            SQLiteStatement selectArtist, KeyMap<Long> cachedArtists,
+            KeyMap<Long> lastModifiedMap, String artist, String artistDisambiguation) {
+        Long artistId = cachedArtists.get(artist, artistDisambiguation);
+        if (artistId != null) {
+            return artistId;
+        }
+        long lastModified = lastModifiedMap.get(artist, artistDisambiguation);
+        insertArtist.bindString(1, artist);
+        insertArtist.bindString(2, artistDisambiguation);
+        insertArtist.bindLong(3, lastModified);
+        insertArtist.bindLong(4, TYPE_DEFAULT);
+        artistId = insertArtist.executeInsert();
+        if (artistId < 0) {
+            // The artist has already been stored before
+            selectArtist.bindString(1, artist);
+            selectArtist.bindString(2, artistDisambiguation);
+            selectArtist.bindLong(3, TYPE_DEFAULT);
+            artistId = selectArtist.simpleQueryForLong();
+        }
+        cachedArtists.put(artist, artistDisambiguation, artistId);
+        return artistId;
+    }
+
+    /**
+     * Store the given value, if it's bigger than the currently stored one.
+     */
+    private static void putMax(KeyMap<Long> map, String name, Object key, long value) {
+        Long current = map.get(name, key);
+        if (current == null || current < value) {
+            map.put(name, key, value);
+        }
+    }
+
+    private static SQLiteStatement compileInsertChange(SQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO " + TABLE_TRACKCHANGES + " ("
+                + TRACKCHANGES_TRACKID + ", " + TRACKCHANGES_ACTION + ") VALUES (?, ?)");
+    }
+
+    /**
+     * Add an entry to the change log.
+     *
+     * @return the new revision
+     */
+    private static long logChange(SQLiteStatement insertChange, long trackId, int action) {
+        insertChange.bindLong(1, trackId);
+        insertChange.bindLong(2, action);
+        return insertChange.executeInsert();
+    }
+
+    /**
+     * Remove the oldest entries from the change log, so that it doesn't exceed {@link
+     * #MAX_TRACKCHANGES} entries.
+     */
+    private static void pruneChanges(SQLiteDatabase db) {
+        db.delete(TABLE_TRACKCHANGES, ID + " <= (SELECT MAX(" + ID + ") FROM "
+                + TABLE_TRACKCHANGES + ") - " + MAX_TRACKCHANGES, null);
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * A map with a composite key made of a name and a second key (e.g. a disambiguation or an
+     * id), which doesn't need to concatenate both keys for every lookup.
+     */
+    private static class KeyMap<V> {
+
+        private final Map<String, Map<Object, V>> mMap = new HashMap<>();
+
+        V get(String name, Object key) {
+            Map<Object, V> values = mMap.get(name);
+            return values != null ? values.get(key) : null;
+        }
+
+        void put(String name, Object key, V value) {
+            Map<Object, V> values = mMap.get(name);
+            if (values == null) {
+                values = new HashMap<>();
+                mMap.put(name, values);
+            }
+            values.put(key, value);
+        }
+    }
+
+    public synchronized void wipe() {
+        ChangeSet changeSet = new ChangeSet();
+        changeSet.mRevision = wipe(mDb);
+        changeSet.mWiped = true;
+        onContentChanged(changeSet);
+    }
+
+    /**
+     * Remove all tracks with the given urls. Artists, albums and albumArtists that are no longer
+     * referenced by any track are being removed as well. Entries with a type other than {@link
+     * #TYPE_DEFAULT} (e.g. loved items) are being kept.
+     */
+    public synchronized void removeTracks(Set<String> urls) {
+        if (urls.isEmpty()) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        ChangeSet changeSet = new ChangeSet();
+        SQLiteStatement insertChange = compileInsertChange(mDb);
+        mDb.beginTransaction();
         try {
-            cursor.moveToFirst();
-            if (!cursor.isAfterLast()) {
-                do {
-                    map.put(concatKeys(cursor.getString(1), cursor.getString(2)),
-                            cursor.getInt(0));
-                } while (cursor.moveToNext());
+            for (String url : urls) {
+                Cursor cursor = mDb.query(TABLE_TRACKS, new String[]{ID}, TRACKS_URL + " = ?",
+                        new String[]{url}, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        changeSet.mRemovedTrackIds.add(cursor.getInt(0));
+                        changeSet.mRevision =
+                                logChange(insertChange, cursor.getInt(0), CHANGE_REMOVED);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                mDb.delete(TABLE_TRACKS, TRACKS_URL + " = ?", new String[]{url});
             }
+            mDb.delete(TABLE_ARTISTALBUMS, "NOT EXISTS (SELECT 1 FROM " + TABLE_TRACKS
+                    + " WHERE " + TABLE_TRACKS + "." + TRACKS_ARTISTID + " = "
+                    + TABLE_ARTISTALBUMS + "." + ARTISTALBUMS_ARTISTID
+                    + " AND " + TABLE_TRACKS + "." + TRACKS_ALBUMID + " = "
+                    + TABLE_ARTISTALBUMS + "." + ARTISTALBUMS_ALBUMID + ")", null);
+            mDb.delete(TABLE_ALBUMS, ALBUMS_TYPE + " = " + TYPE_DEFAULT
+                    + " AND " + ID + " NOT IN (SELECT " + TRACKS_ALBUMID + " FROM "
+                    + TABLE_TRACKS + ")", null);
+            mDb.delete(TABLE_ARTISTS, ARTISTS_TYPE + " = " + TYPE_DEFAULT
+                    + " AND " + ID + " NOT IN (SELECT " + TRACKS_ARTISTID + " FROM "
+                    + TABLE_TRACKS + ")"
+                    + " AND " + ID + " NOT IN (SELECT " + ALBUMS_ALBUMARTISTID + " FROM "
+                    + TABLE_ALBUMS + ")", null);
+            // albumArtists aren't linked to the tracks, so we only remove those whose name
+            // doesn't match any remaining artist
+            mDb.delete(TABLE_ALBUMARTISTS, ALBUMARTISTS_ALBUMARTIST + " NOT IN (SELECT "
+                    + ARTISTS_ARTIST + " FROM " + TABLE_ARTISTS + ")", null);
+            pruneChanges(mDb);
+            mDb.setTransactionSuccessful();
         } finally {
-            if (cursor != null) {
+            mDb.endTransaction();
+            insertChange.close();
+        }
+        Log.d(TAG, "Removed " + changeSet.mRemovedTrackIds.size() + " tracks in "
+                + (System.currentTimeMillis() - time) + "ms");
+        if (!changeSet.isEmpty()) {
+            storeNewRevision(String.valueOf(System.currentTimeMillis()), ACTION_REMOVETRACKS);
+            onContentChanged(changeSet);
+        }
+    }
+
+    /**
+     * @return the number of tracks in this {@link CollectionDb}
+     */
+    public long trackCount() {
+        return DatabaseUtils.queryNumEntries(mDb, TABLE_TRACKS);
+    }
+
+    /**
+     * @return the current revision of the change log, which can be passed to {@link
+     * #getChangesSince(long)} later on
+     */
+    public long getChangeLogRevision() {
+        Cursor cursor = mDb.rawQuery("SELECT MAX(" + ID + ") FROM " + TABLE_TRACKCHANGES, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Get all tracks that have been added or removed after the given revision of the change log.
+     * Tracks that have been added and removed again are only contained as removed.
+     *
+     * @param revision a revision previously returned by {@link #getChangeLogRevision()} or {@link
+     *                 ChangeSet#getRevision()}
+     * @return the changes since the given revision, or null if the change log doesn't reach back
+     * that far, in which case the consumer has to rebuild from scratch
+     */
+    public ChangeSet getChangesSince(long revision) {
+        ChangeSet changeSet = new ChangeSet();
+        Set<Integer> addedIds = new LinkedHashSet<>();
+        Set<Integer> removedIds = new LinkedHashSet<>();
+        Cursor cursor = mDb.rawQuery("SELECT MIN(" + ID + "), MAX(" + ID + ") FROM "
+                + TABLE_TRACKCHANGES, null);
+        try {
+            long oldest = 1;
+            long newest = 0;
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                oldest = cursor.getLong(0);
+                newest = cursor.getLong(1);
+            }
+            if (revision < oldest - 1 || revision > newest) {
+                return null;
+            }
+            changeSet.mRevision = newest;
+        } finally {
+            cursor.close();
+        }
+        cursor = mDb.query(TABLE_TRACKCHANGES,
+                new String[]{ID, TRACKCHANGES_TRACKID, TRACKCHANGES_ACTION},
+                ID + " > ? AND " + ID + " <= ?",
+                new String[]{String.valueOf(revision), String.valueOf(changeSet.mRevision)},
+                null, null, ID);
+        try {
+            while (cursor.moveToNext()) {
+                int trackId = cursor.getInt(1);
+                switch (cursor.getInt(2)) {
+                    case CHANGE_ADDED:
+                        removedIds.remove(trackId);
+                        addedIds.add(trackId);
+                        break;
+                    case CHANGE_REMOVED:
+                        addedIds.remove(trackId);
+                        removedIds.add(trackId);
+                        break;
+                    case CHANGE_WIPED:
+                        addedIds.clear();
+                        removedIds.clear();
+                        changeSet.mWiped = true;
+                        break;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        changeSet.mRemovedTrackIds.addAll(removedIds);
+        List<Integer> ids = new ArrayList<>(addedIds);
+        for (int i = 0; i < ids.size(); i += MAX_QUERY_IDS) {
+            List<Integer> chunk = ids.subList(i, Math.min(i + MAX_QUERY_IDS, ids.size()));
+            String[] args = new String[chunk.size()];
+            String placeholders = "";
+            for (int j = 0; j < chunk.size(); j++) {
+                args[j] = String.valueOf(chunk.get(j));
+                placeholders += j > 0 ? ", ?" : "?";
+            }
+            cursor = mDb.rawQuery("SELECT " + TABLE_TRACKS + "." + ID + ", " + ARTISTS_ARTIST
+                    + ", " + ALBUMS_ALBUM + ", " + TRACKS_TRACK + " FROM " + TABLE_TRACKS
+                    + " INNER JOIN " + TABLE_ARTISTS + " ON " + TABLE_TRACKS + "."
+                    + TRACKS_ARTISTID + " = " + TABLE_ARTISTS + "." + ID
+                    + " INNER JOIN " + TABLE_ALBUMS + " ON " + TABLE_TRACKS + "."
+                    + TRACKS_ALBUMID + " = " + TABLE_ALBUMS + "." + ID
+                    + " WHERE " + TABLE_TRACKS + "." + ID + " IN (" + placeholders + ")", args);
+            try {
+                while (cursor.moveToNext()) {
+                    changeSet.mAddedTracks.add(new ChangeSet.Entry(cursor.getInt(0),
+                            cursor.getString(1), cursor.getString(2), cursor.getString(3)));
+                }
+            } finally {
                 cursor.close();
             }
         }
-        return map;
+        return changeSet;
     }
 
-    public synchronized void wipe() {
-        wipe(mDb);
+    /**
+     * Update everything that depends on the content of this {@link CollectionDb}.
+     */
+    private void onContentChanged(ChangeSet changeSet) {
+        mFuzzyIndex.applyChanges(changeSet);
+        Collection collection = CollectionManager.get().getCollection(mCollectionId);
+        if (collection != null) {
+            PipeLine.get().getResolutionCache().invalidate(
+                    ResolutionCache.getSourceId(collection));
+        }
     }
 
-    private void wipe(SQLiteDatabase db) {
-        db.execSQL("DROP TABLE IF EXISTS `" + TABLE_ARTISTS + "`;");
-        db.execSQL(CREATE_TABLE_ARTISTS);
-        db.execSQL("DROP TABLE IF EXISTS `" + TABLE_ALBUMARTISTS + "`;");
-        db.execSQL(CREATE_TABLE_ALBUMARTISTS);
-        db.execSQL("DROP TABLE IF EXISTS `" + TABLE_ALBUMS + "`;");
-        db.execSQL(CREATE_TABLE_ALBUMS);
-        db.execSQL("DROP TABLE IF EXISTS `" + TABLE_ARTISTALBUMS + "`;");
-        db.execSQL(CREATE_TABLE_ARTISTALBUMS);
-        db.execSQL("DROP TABLE IF EXISTS `" + TABLE_TRACKS + "`;");
-        db.execSQL(CREATE_TABLE_TRACKS);
-        storeNewRevision(db, String.valueOf(System.currentTimeMillis()), ACTION_WIPE);
+    /**
+     * Drop and recreate all tables within a single transaction, so that concurrent readers never
+     * see a missing table. They keep reading the old content until the transaction has been
+     * committed.
+     *
+     * @return the revision of the change log that marks the wipe
+     */
+    private long wipe(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL("DROP TABLE IF EXISTS `" + TABLE_ARTISTS + "`;");
+            db.execSQL(CREATE_TABLE_ARTISTS);
+            db.execSQL("DROP TABLE IF EXISTS `" + TABLE_ALBUMARTISTS + "`;");
+            db.execSQL(CREATE_TABLE_ALBUMARTISTS);
+            db.execSQL("DROP TABLE IF EXISTS `" + TABLE_ALBUMS + "`;");
+            db.execSQL(CREATE_TABLE_ALBUMS);
+            db.execSQL("DROP TABLE IF EXISTS `" + TABLE_ARTISTALBUMS + "`;");
+            db.execSQL(CREATE_TABLE_ARTISTALBUMS);
+            db.execSQL("DROP TABLE IF EXISTS `" + TABLE_TRACKS + "`;");
+            db.execSQL(CREATE_TABLE_TRACKS);
+            createIndexes(db);
+            storeNewRevision(db, String.valueOf(System.currentTimeMillis()), ACTION_WIPE);
+            // All previous changes are superseded by the wipe. The table is cleared instead of
+            // being dropped, so that the revisions keep increasing.
+            db.execSQL(CREATE_TABLE_TRACKCHANGES);
+            db.delete(TABLE_TRACKCHANGES, null, null);
+            long revision;
+            SQLiteStatement insertChange = compileInsertChange(db);
+            try {
+                revision = logChange(insertChange, -1, CHANGE_WIPED);
+            } finally {
+                insertChange.close();
+            }
+            db.setTransactionSuccessful();
+            return revision;
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /**
      * Convenience method. Uses a default set of fields.
      */
-    public synchronized Cursor tracks(WhereInfo where, String[] orderBy) {
+    public Cursor tracks(WhereInfo where, String[] orderBy) {
         String[] fields = new String[]{ARTISTS_ARTIST, ARTISTS_ARTISTDISAMBIGUATION, ALBUMS_ALBUM,
                 TRACKS_TRACK, TRACKS_DURATION, TRACKS_URL, TRACKS_LINKURL, TRACKS_ALBUMPOS,
                 TRACKS_LASTMODIFIED, TRACKS_ALBUMID};
         return tracks(where, orderBy, fields);
     }
 
-    public synchronized Cursor tracks(WhereInfo where, String[] orderBy, String[] fields) {
+    public Cursor tracks(WhereInfo where, String[] orderBy, String[] fields) {
         List<JoinInfo> joinInfos = new ArrayList<>();
         JoinInfo joinInfo = new JoinInfo();
         joinInfo.table = TABLE_ARTISTS;
@@ -485,7 +939,7 @@ public class CollectionDb extends SQLiteOpenHelper {
                 TRACKS_LASTMODIFIED, false);
     }
 
-    public synchronized long tracksCurrentRevision() {
+    public long tracksCurrentRevision() {
         String[] fields = new String[]{TRACKS_LASTMODIFIED};
         long currentRevision = -1;
         Cursor cursor = null;
@@ -506,7 +960,7 @@ public class CollectionDb extends SQLiteOpenHelper {
         return currentRevision;
     }
 
-    public synchronized Cursor albums(String[] orderBy) {
+    public Cursor albums(String[] orderBy) {
         String[] fields = new String[]{ALBUMS_ALBUM, ARTISTS_ARTIST, ARTISTS_ARTISTDISAMBIGUATION,
                 ALBUMS_IMAGEPATH, ALBUMS_LASTMODIFIED};
         List<JoinInfo> joinInfos = new ArrayList<>();
@@ -524,7 +978,7 @@ public class CollectionDb extends SQLiteOpenHelper {
                 ALBUMS_LASTMODIFIED, false);
     }
 
-    public synchronized Cursor artists(String[] orderBy) {
+    public Cursor artists(String[] orderBy) {
         String[] fields = new String[]{ARTISTS_ARTIST, ARTISTS_ARTISTDISAMBIGUATION,
                 ARTISTS_LASTMODIFIED};
         JoinInfo joinInfo = new JoinInfo();
@@ -538,7 +992,7 @@ public class CollectionDb extends SQLiteOpenHelper {
                 ARTISTS_LASTMODIFIED, false);
     }
 
-    public synchronized Cursor albumArtists(String[] orderBy) {
+    public Cursor albumArtists(String[] orderBy) {
         String[] fields = new String[]{ALBUMARTISTS_ALBUMARTIST,
                 ALBUMARTISTS_ALBUMARTISTDISAMBIGUATION, ALBUMARTISTS_LASTMODIFIED};
         String[] groupBy = new String[]{ALBUMARTISTS_ALBUMARTIST,
@@ -551,7 +1005,7 @@ public class CollectionDb extends SQLiteOpenHelper {
                 ALBUMARTISTS_LASTMODIFIED, false);
     }
 
-    public synchronized long artistCurrentRevision(String artist, String artistDisambiguation) {
+    public long artistCurrentRevision(String artist, String artistDisambiguation) {
         String[] fields = new String[]{ARTISTS_LASTMODIFIED};
         WhereInfo whereInfo = new WhereInfo();
         whereInfo.connection = "AND";
@@ -576,7 +1030,7 @@ public class CollectionDb extends SQLiteOpenHelper {
         return currentRevision;
     }
 
-    public synchronized Cursor artistAlbums(String artist, String artistDisambiguation) {
+    public Cursor artistAlbums(String artist, String artistDisambiguation) {
         String[] fields = new String[]{ID};
         WhereInfo whereInfo = new WhereInfo();
         whereInfo.connection = "AND";
@@ -618,7 +1072,7 @@ public class CollectionDb extends SQLiteOpenHelper {
                 new String[]{ALBUMS_ALBUM}, null, ALBUMS_TYPE, null, true);
     }
 
-    public synchronized long albumCurrentRevision(String album, String albumArtist,
+    public long albumCurrentRevision(String album, String albumArtist,
             String albumArtistDisambiguation) {
         String[] fields = new String[]{ID};
         WhereInfo whereInfo = new WhereInfo();
@@ -665,7 +1119,7 @@ public class CollectionDb extends SQLiteOpenHelper {
         return currentRevision;
     }
 
-    public synchronized Cursor albumTracks(String album, String albumArtist,
+    public Cursor albumTracks(String album, String albumArtist,
             String albumArtistDisambiguation) {
         String[] fields = new String[]{ID};
         WhereInfo whereInfo = new WhereInfo();
@@ -716,7 +1170,7 @@ public class CollectionDb extends SQLiteOpenHelper {
         return tracks(whereInfo, new String[]{TRACKS_ALBUMPOS});
     }
 
-    public synchronized Cursor artistTracks(String artist, String artistDisambiguation) {
+    public Cursor artistTracks(String artist, String artistDisambiguation) {
         String[] fields = new String[]{ID};
         WhereInfo whereInfo = new WhereInfo();
         whereInfo.connection = "AND";
@@ -885,17 +1339,6 @@ public class CollectionDb extends SQLiteOpenHelper {
         }
     }
 
-    private static String concatKeys(Object... keys) {
-        String result = "";
-        for (int i = 0; i < keys.length; i++) {
-            if (i > 0) {
-                result += "♣";
-            }
-            result += keys[i];
-        }
-        return result;
-    }
-
     public FuzzyIndex getFuzzyIndex() {
         return mFuzzyIndex;
     }
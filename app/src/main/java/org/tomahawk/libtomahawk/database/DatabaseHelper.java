@@ -36,14 +36,19 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import de.greenrobot.event.EventBus;
@@ -62,7 +67,28 @@ public class DatabaseHelper {
 
     public static final int TRUE = 1;
 
-    public static final int CHUNK_SIZE = 50;
+    public static final int CHUNK_SIZE = 500;
+
+    private static final String[] MEDIA_COLUMNS = new String[]{
+            TomahawkSQLiteHelper.MEDIA_LOCATION, //0 string
+            TomahawkSQLiteHelper.MEDIA_TIME, //1 long
+            TomahawkSQLiteHelper.MEDIA_LENGTH, //2 long
+            TomahawkSQLiteHelper.MEDIA_TYPE, //3 int
+            TomahawkSQLiteHelper.MEDIA_TITLE, //4 string
+            TomahawkSQLiteHelper.MEDIA_ARTIST, //5 string
+            TomahawkSQLiteHelper.MEDIA_GENRE, //6 string
+            TomahawkSQLiteHelper.MEDIA_ALBUM, //7 string
+            TomahawkSQLiteHelper.MEDIA_ALBUMARTIST, //8 string
+            TomahawkSQLiteHelper.MEDIA_WIDTH, //9 int
+            TomahawkSQLiteHelper.MEDIA_HEIGHT, //10 int
+            TomahawkSQLiteHelper.MEDIA_ARTWORKURL, //11 string
+            TomahawkSQLiteHelper.MEDIA_AUDIOTRACK, //12 int
+            TomahawkSQLiteHelper.MEDIA_SPUTRACK, //13 int
+            TomahawkSQLiteHelper.MEDIA_TRACKNUMBER, // 14 int
+            TomahawkSQLiteHelper.MEDIA_DISCNUMBER, //15 int
+            TomahawkSQLiteHelper.MEDIA_LASTMODIFIED, //16 long
+            TomahawkSQLiteHelper.MEDIA_SIZE //17 long
+    };
 
     private static class Holder {
 
@@ -70,6 +96,82 @@ public class DatabaseHelper {
 
     }
 
+    /**
+     * The part of a stored media item that is needed to find out whether or not its file has been
+     * changed.
+     */
+    public static class MediaStamp {
+
+        public final long lastModified;
+
+        // The size in bytes, or 0 if unknown
+        public final long size;
+
+        public MediaStamp(long lastModified, long size) {
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+    }
+
+    /**
+     * A Track entry of an already stored {@link Playlist}, which is being compared against the
+     * {@link PlaylistEntry}s of the {@link Playlist} that is being stored.
+     */
+    private static class StoredEntry {
+
+        static final String[] COLUMNS = new String[]{
+                TomahawkSQLiteHelper.TRACKS_COLUMN_ID,
+                TomahawkSQLiteHelper.TRACKS_COLUMN_PLAYLISTENTRYID,
+                TomahawkSQLiteHelper.TRACKS_COLUMN_PLAYLISTENTRYINDEX,
+                TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNAME,
+                TomahawkSQLiteHelper.TRACKS_COLUMN_ARTISTNAME,
+                TomahawkSQLiteHelper.TRACKS_COLUMN_ALBUMNAME,
+                TomahawkSQLiteHelper.TRACKS_COLUMN_RESULTHINT,
+                TomahawkSQLiteHelper.TRACKS_COLUMN_ISFETCHEDVIAHATCHET};
+
+        final long rowId;
+
+        final String entryId;
+
+        final int index;
+
+        final String trackName;
+
+        final String artistName;
+
+        final String albumName;
+
+        final String resultHint;
+
+        final boolean isFetchedViaHatchet;
+
+        StoredEntry(Cursor cursor) {
+            rowId = cursor.getLong(0);
+            entryId = cursor.getString(1);
+            index = cursor.getInt(2);
+            trackName = cursor.getString(3);
+            artistName = cursor.getString(4);
+            albumName = cursor.getString(5);
+            resultHint = cursor.getString(6);
+            isFetchedViaHatchet = cursor.getInt(7) == TRUE;
+        }
+
+        /**
+         * @return whether or not this Track entry already stores the given {@link PlaylistEntry}
+         * at the given index
+         */
+        boolean matches(PlaylistEntry entry, int index) {
+            Query query = entry.getQuery();
+            return this.index == index
+                    && TextUtils.equals(trackName, query.getBasicTrack().getName())
+                    && TextUtils.equals(artistName, query.getBasicTrack().getArtist().getName())
+                    && TextUtils.equals(albumName, query.getBasicTrack().getAlbum().getName())
+                    && TextUtils.equals(resultHint, query.getTopTrackResultKey())
+                    && isFetchedViaHatchet == query.isFetchedViaHatchet();
+        }
+    }
+
     public static class PlaylistsUpdatedEvent {
 
         public String mPlaylistId;
@@ -78,10 +180,14 @@ public class DatabaseHelper {
     // Database fields
     private final SQLiteDatabase mDatabase;
 
+    // All loved items, so that isItemLoved doesn't have to query the database
+    private final LovedItemsIndex mLovedItems = new LovedItemsIndex();
+
     private DatabaseHelper() {
         TomahawkSQLiteHelper dbHelper = new TomahawkSQLiteHelper(TomahawkApp.getContext());
         dbHelper.close();
         mDatabase = dbHelper.getWritableDatabase();
+        loadLovedItems();
     }
 
     public static DatabaseHelper get() {
@@ -133,17 +239,38 @@ public class DatabaseHelper {
                 playlist.getHatchetId());
         values.put(TomahawkSQLiteHelper.PLAYLISTS_COLUMN_TRACKCOUNT, entries.size());
 
+        long time = System.currentTimeMillis();
+        int insertCount = 0;
+        int updateCount = 0;
+        int deleteCount = 0;
         mDatabase.beginTransaction();
         mDatabase.insertWithOnConflict(TomahawkSQLiteHelper.TABLE_PLAYLISTS, null,
                 values,
                 SQLiteDatabase.CONFLICT_REPLACE);
-        // Delete every already associated Track entry
-        mDatabase.delete(TomahawkSQLiteHelper.TABLE_TRACKS,
-                TomahawkSQLiteHelper.TRACKS_COLUMN_PLAYLISTID + " = ?",
-                new String[]{playlistId});
 
-        // Store every single Track in the database and store the relationship
-        // by storing the playlists's id with it
+        // Get every already associated Track entry, mapped to its entry id
+        Map<String, StoredEntry> storedEntries = new HashMap<>();
+        List<Long> obsoleteRowIds = new ArrayList<>();
+        Cursor tracksCursor = mDatabase.query(TomahawkSQLiteHelper.TABLE_TRACKS,
+                StoredEntry.COLUMNS, TomahawkSQLiteHelper.TRACKS_COLUMN_PLAYLISTID + " = ?",
+                new String[]{playlistId}, null, null, null);
+        try {
+            while (tracksCursor.moveToNext()) {
+                StoredEntry storedEntry = new StoredEntry(tracksCursor);
+                if (storedEntry.entryId == null
+                        || storedEntries.containsKey(storedEntry.entryId)) {
+                    // Entries without a unique entry id can't be matched
+                    obsoleteRowIds.add(storedEntry.rowId);
+                } else {
+                    storedEntries.put(storedEntry.entryId, storedEntry);
+                }
+            }
+        } finally {
+            tracksCursor.close();
+        }
+
+        // Only insert or update the Track entries that differ from the stored ones and store
+        // the relationship by storing the playlists's id with it
         for (int i = 0; i < entries.size(); i++) {
             PlaylistEntry entry;
             if (reverseEntries) {
@@ -151,6 +278,10 @@ public class DatabaseHelper {
             } else {
                 entry = entries.get(i);
             }
+            StoredEntry storedEntry = storedEntries.remove(entry.getId());
+            if (storedEntry != null && storedEntry.matches(entry, i)) {
+                continue;
+            }
             values.clear();
             values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_PLAYLISTID, playlistId);
             values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNAME,
@@ -171,10 +302,34 @@ public class DatabaseHelper {
             }
             values.put(TomahawkSQLiteHelper.TRACKS_COLUMN_PLAYLISTENTRYID,
                     entry.getId());
-            mDatabase.insert(TomahawkSQLiteHelper.TABLE_TRACKS, null, values);
+            if (storedEntry != null) {
+                mDatabase.update(TomahawkSQLiteHelper.TABLE_TRACKS, values,
+                        TomahawkSQLiteHelper.TRACKS_COLUMN_ID + " = ?",
+                        new String[]{String.valueOf(storedEntry.rowId)});
+                updateCount++;
+            } else {
+                mDatabase.insert(TomahawkSQLiteHelper.TABLE_TRACKS, null, values);
+                insertCount++;
+            }
+        }
+
+        // Delete every Track entry that is no longer part of the playlist
+        for (StoredEntry storedEntry : storedEntries.values()) {
+            obsoleteRowIds.add(storedEntry.rowId);
+        }
+        for (Long rowId : obsoleteRowIds) {
+            deleteCount += mDatabase.delete(TomahawkSQLiteHelper.TABLE_TRACKS,
+                    TomahawkSQLiteHelper.TRACKS_COLUMN_ID + " = ?",
+                    new String[]{String.valueOf(rowId)});
         }
         mDatabase.setTransactionSuccessful();
         mDatabase.endTransaction();
+        Log.d(TAG, "storePlaylist - " + playlistId + ": " + entries.size() + " entries, "
+                + insertCount + " inserted, " + updateCount + " updated, " + deleteCount
+                + " deleted in " + (System.currentTimeMillis() - time) + "ms");
+        if (LOVEDITEMS_PLAYLIST_ID.equals(playlistId)) {
+            loadLovedItems();
+        }
         PlaylistsUpdatedEvent event = new PlaylistsUpdatedEvent();
         event.mPlaylistId = playlistId;
         EventBus.getDefault().post(event);
@@ -532,6 +687,9 @@ public class DatabaseHelper {
                 new String[]{playlistId});
         mDatabase.setTransactionSuccessful();
         mDatabase.endTransaction();
+        if (LOVEDITEMS_PLAYLIST_ID.equals(playlistId)) {
+            mLovedItems.clear();
+        }
         PlaylistsUpdatedEvent event = new PlaylistsUpdatedEvent();
         event.mPlaylistId = playlistId;
         EventBus.getDefault().post(event);
@@ -555,6 +713,9 @@ public class DatabaseHelper {
                 new String[]{playlistId});
         mDatabase.setTransactionSuccessful();
         mDatabase.endTransaction();
+        if (LOVEDITEMS_PLAYLIST_ID.equals(playlistId)) {
+            loadLovedItems();
+        }
         PlaylistsUpdatedEvent event = new PlaylistsUpdatedEvent();
         event.mPlaylistId = playlistId;
         EventBus.getDefault().post(event);
@@ -602,6 +763,12 @@ public class DatabaseHelper {
                 new String[]{playlistId});
         mDatabase.setTransactionSuccessful();
         mDatabase.endTransaction();
+        if (LOVEDITEMS_PLAYLIST_ID.equals(playlistId)) {
+            for (Query query : queries) {
+                mLovedItems.add(query.getBasicTrack().getName(),
+                        query.getBasicTrack().getArtist().getName());
+            }
+        }
         PlaylistsUpdatedEvent event = new PlaylistsUpdatedEvent();
         event.mPlaylistId = playlistId;
         EventBus.getDefault().post(event);
@@ -652,6 +819,12 @@ public class DatabaseHelper {
                 new String[]{playlistId});
         mDatabase.setTransactionSuccessful();
         mDatabase.endTransaction();
+        if (LOVEDITEMS_PLAYLIST_ID.equals(playlistId)) {
+            for (PlaylistEntry entry : entries) {
+                mLovedItems.add(entry.getQuery().getBasicTrack().getName(),
+                        entry.getQuery().getBasicTrack().getArtist().getName());
+            }
+        }
         PlaylistsUpdatedEvent event = new PlaylistsUpdatedEvent();
         event.mPlaylistId = playlistId;
         EventBus.getDefault().post(event);
@@ -664,26 +837,28 @@ public class DatabaseHelper {
      * @return whether or not the given query is loved
      */
     public boolean isItemLoved(Query query) {
+        return mLovedItems.contains(query.getName(), query.getArtist().getName());
+    }
+
+    /**
+     * (Re-)load the {@link LovedItemsIndex} from the lovedItems Playlist
+     */
+    private void loadLovedItems() {
         String[] columns = new String[]{TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNAME,
                 TomahawkSQLiteHelper.TRACKS_COLUMN_ARTISTNAME};
-
         Cursor tracksCursor = mDatabase.query(TomahawkSQLiteHelper.TABLE_TRACKS, columns,
                 TomahawkSQLiteHelper.TRACKS_COLUMN_PLAYLISTID + " = ?",
-                new String[]{LOVEDITEMS_PLAYLIST_ID}, null, null, null
-        );
-        tracksCursor.moveToFirst();
-        while (!tracksCursor.isAfterLast()) {
-            String trackName = tracksCursor.getString(0);
-            String artistName = tracksCursor.getString(1);
-            if (query.getName().equalsIgnoreCase(trackName)
-                    && query.getArtist().getName().equalsIgnoreCase(artistName)) {
-                tracksCursor.close();
-                return true;
+                new String[]{LOVEDITEMS_PLAYLIST_ID}, null, null, null);
+        try {
+            synchronized (mLovedItems) {
+                mLovedItems.clear();
+                while (tracksCursor.moveToNext()) {
+                    mLovedItems.add(tracksCursor.getString(0), tracksCursor.getString(1));
+                }
             }
-            tracksCursor.moveToNext();
+        } finally {
+            tracksCursor.close();
         }
-        tracksCursor.close();
-        return false;
     }
 
     /**
@@ -696,15 +871,32 @@ public class DatabaseHelper {
             queries.add(query);
             addQueriesToPlaylist(LOVEDITEMS_PLAYLIST_ID, queries);
         } else {
+            String trackName = query.getName();
+            String artistName = query.getArtist().getName();
+            // SQLite's NOCASE only folds ASCII chars. So the rows are being matched the same way
+            // the LovedItemsIndex matches them, in order to keep both in sync.
+            String[] columns = new String[]{TomahawkSQLiteHelper.TRACKS_COLUMN_ID,
+                    TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNAME,
+                    TomahawkSQLiteHelper.TRACKS_COLUMN_ARTISTNAME};
             mDatabase.beginTransaction();
-            mDatabase.delete(TomahawkSQLiteHelper.TABLE_TRACKS,
-                    TomahawkSQLiteHelper.TRACKS_COLUMN_PLAYLISTID + " = ? AND "
-                            + TomahawkSQLiteHelper.TRACKS_COLUMN_TRACKNAME + " = ? AND "
-                            + TomahawkSQLiteHelper.TRACKS_COLUMN_ARTISTNAME + " = ?",
-                    new String[]{LOVEDITEMS_PLAYLIST_ID, query.getName(),
-                            query.getArtist().getName()});
-            mDatabase.setTransactionSuccessful();
-            mDatabase.endTransaction();
+            Cursor tracksCursor = mDatabase.query(TomahawkSQLiteHelper.TABLE_TRACKS, columns,
+                    TomahawkSQLiteHelper.TRACKS_COLUMN_PLAYLISTID + " = ?",
+                    new String[]{LOVEDITEMS_PLAYLIST_ID}, null, null, null);
+            try {
+                while (tracksCursor.moveToNext()) {
+                    if (trackName.equalsIgnoreCase(tracksCursor.getString(1))
+                            && artistName.equalsIgnoreCase(tracksCursor.getString(2))) {
+                        mDatabase.delete(TomahawkSQLiteHelper.TABLE_TRACKS,
+                                TomahawkSQLiteHelper.TRACKS_COLUMN_ID + " = ?",
+                                new String[]{String.valueOf(tracksCursor.getLong(0))});
+                    }
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                tracksCursor.close();
+                mDatabase.endTransaction();
+            }
+            mLovedItems.remove(trackName, artistName);
             PlaylistsUpdatedEvent event = new PlaylistsUpdatedEvent();
             event.mPlaylistId = LOVEDITEMS_PLAYLIST_ID;
             EventBus.getDefault().post(event);
@@ -895,6 +1087,7 @@ public class DatabaseHelper {
             values.put(TomahawkSQLiteHelper.MEDIA_TRACKNUMBER, mw.getTrackNumber());
             values.put(TomahawkSQLiteHelper.MEDIA_DISCNUMBER, mw.getDiscNumber());
             values.put(TomahawkSQLiteHelper.MEDIA_LASTMODIFIED, mw.getLastModified());
+            values.put(TomahawkSQLiteHelper.MEDIA_SIZE, mw.getSize());
             mDatabase.replace(TomahawkSQLiteHelper.TABLE_MEDIA, "NULL", values);
         }
         mDatabase.setTransactionSuccessful();
@@ -902,76 +1095,175 @@ public class DatabaseHelper {
 
     }
 
-    public synchronized HashMap<String, MediaWrapper> getMedias() {
-        Cursor cursor;
+    /**
+     * @return all media items, mapped to their location. Prefer {@link #getMediaStamps()} or
+     * {@link #iterateMedias()}, which don't need to hold all {@link MediaWrapper}s in memory.
+     */
+    public HashMap<String, MediaWrapper> getMedias() {
         HashMap<String, MediaWrapper> medias = new HashMap<>();
-        int chunk_count = 0;
-        int count;
+        Iterator<MediaWrapper> iterator = iterateMedias();
+        while (iterator.hasNext()) {
+            MediaWrapper mw = iterator.next();
+            medias.put(mw.getUri().toString(), mw);
+        }
+        return medias;
+    }
 
+    /**
+     * @return the {@link MediaStamp}s of all media items, mapped to their location
+     */
+    public synchronized HashMap<String, MediaStamp> getMediaStamps() {
+        HashMap<String, MediaStamp> stamps = new HashMap<>();
+        String lastLocation = "";
+        int count;
         do {
             count = 0;
-            cursor = mDatabase.rawQuery(String.format(Locale.US,
-                    "SELECT %s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s FROM %s LIMIT %d OFFSET %d",
-                    TomahawkSQLiteHelper.MEDIA_LOCATION, //0 string
-                    TomahawkSQLiteHelper.MEDIA_TIME, //1 long
-                    TomahawkSQLiteHelper.MEDIA_LENGTH, //2 long
-                    TomahawkSQLiteHelper.MEDIA_TYPE, //3 int
-                    TomahawkSQLiteHelper.MEDIA_TITLE, //4 string
-                    TomahawkSQLiteHelper.MEDIA_ARTIST, //5 string
-                    TomahawkSQLiteHelper.MEDIA_GENRE, //6 string
-                    TomahawkSQLiteHelper.MEDIA_ALBUM, //7 string
-                    TomahawkSQLiteHelper.MEDIA_ALBUMARTIST, //8 string
-                    TomahawkSQLiteHelper.MEDIA_WIDTH, //9 int
-                    TomahawkSQLiteHelper.MEDIA_HEIGHT, //10 int
-                    TomahawkSQLiteHelper.MEDIA_ARTWORKURL, //11 string
-                    TomahawkSQLiteHelper.MEDIA_AUDIOTRACK, //12 int
-                    TomahawkSQLiteHelper.MEDIA_SPUTRACK, //13 int
-                    TomahawkSQLiteHelper.MEDIA_TRACKNUMBER, // 14 int
-                    TomahawkSQLiteHelper.MEDIA_DISCNUMBER, //15 int
-                    TomahawkSQLiteHelper.MEDIA_LASTMODIFIED, //16 long
-                    TomahawkSQLiteHelper.TABLE_MEDIA,
-                    CHUNK_SIZE,
-                    chunk_count * CHUNK_SIZE), null);
-
-            if (cursor.moveToFirst()) {
-                try {
-                    do {
-                        final Uri uri = AndroidUtil.LocationToUri(cursor.getString(0));
-                        MediaWrapper media = new MediaWrapper(uri,
-                                cursor.getLong(1),      // MEDIA_TIME
-                                cursor.getLong(2),      // MEDIA_LENGTH
-                                cursor.getInt(3),       // MEDIA_TYPE
-                                null,                   // MEDIA_PICTURE
-                                cursor.getString(4),    // MEDIA_TITLE
-                                cursor.getString(5),    // MEDIA_ARTIST
-                                cursor.getString(6),    // MEDIA_GENRE
-                                cursor.getString(7),    // MEDIA_ALBUM
-                                cursor.getString(8),    // MEDIA_ALBUMARTIST
-                                cursor.getInt(9),       // MEDIA_WIDTH
-                                cursor.getInt(10),       // MEDIA_HEIGHT
-                                cursor.getString(11),   // MEDIA_ARTWORKURL
-                                cursor.getInt(12),      // MEDIA_AUDIOTRACK
-                                cursor.getInt(13),      // MEDIA_SPUTRACK
-                                cursor.getInt(14),      // MEDIA_TRACKNUMBER
-                                cursor.getInt(15),     // MEDIA_DISCNUMBER
-                                cursor.getLong(16));     // MEDIA_LAST_MODIFIED
-                        medias.put(media.getUri().toString(), media);
-
-                        count++;
-                    } while (cursor.moveToNext());
-                } catch (IllegalStateException e) {
-                    //Google bug causing IllegalStateException, see
-                    //https://code.google.com/p/android/issues/detail?id=32472
+            Cursor cursor = mDatabase.query(TomahawkSQLiteHelper.TABLE_MEDIA,
+                    new String[]{TomahawkSQLiteHelper.MEDIA_LOCATION,
+                            TomahawkSQLiteHelper.MEDIA_LASTMODIFIED,
+                            TomahawkSQLiteHelper.MEDIA_SIZE},
+                    TomahawkSQLiteHelper.MEDIA_LOCATION + " > ?", new String[]{lastLocation},
+                    null, null, TomahawkSQLiteHelper.MEDIA_LOCATION, String.valueOf(CHUNK_SIZE));
+            try {
+                while (cursor.moveToNext()) {
+                    lastLocation = cursor.getString(0);
+                    stamps.put(lastLocation,
+                            new MediaStamp(cursor.getLong(1), cursor.getLong(2)));
+                    count++;
                 }
+            } finally {
+                cursor.close();
             }
-
-            cursor.close();
-            chunk_count++;
         } while (count == CHUNK_SIZE);
+        return stamps;
+    }
+
+    /**
+     * @return an {@link Iterator} over all media items. The media items are being loaded page by
+     * page, so that only a single page has to be held in memory at once.
+     */
+    public Iterator<MediaWrapper> iterateMedias() {
+        return new Iterator<MediaWrapper>() {
+
+            private final LinkedList<MediaWrapper> mPage = new LinkedList<>();
+
+            private String mLastLocation = "";
 
+            private boolean mExhausted;
+
+            @Override
+            public boolean hasNext() {
+                if (mPage.isEmpty() && !mExhausted) {
+                    mLastLocation = loadMediaPage(mLastLocation, mPage);
+                    mExhausted = mPage.size() < CHUNK_SIZE;
+                }
+                return !mPage.isEmpty();
+            }
+
+            @Override
+            public MediaWrapper next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return mPage.removeFirst();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return the media items with the given locations. Locations that aren't in the database are
+     * being ignored.
+     */
+    public synchronized List<MediaWrapper> getMedias(Set<String> locations) {
+        List<MediaWrapper> medias = new ArrayList<>();
+        for (String location : locations) {
+            Cursor cursor = mDatabase.query(TomahawkSQLiteHelper.TABLE_MEDIA, MEDIA_COLUMNS,
+                    TomahawkSQLiteHelper.MEDIA_LOCATION + " = ?", new String[]{location},
+                    null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    medias.add(cursorToMedia(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
         return medias;
     }
 
+    /**
+     * Load the next page of media items, ordered by their location.
+     *
+     * @return the location of the last media item in the page
+     */
+    private synchronized String loadMediaPage(String lastLocation, List<MediaWrapper> page) {
+        Cursor cursor = mDatabase.query(TomahawkSQLiteHelper.TABLE_MEDIA, MEDIA_COLUMNS,
+                TomahawkSQLiteHelper.MEDIA_LOCATION + " > ?", new String[]{lastLocation},
+                null, null, TomahawkSQLiteHelper.MEDIA_LOCATION, String.valueOf(CHUNK_SIZE));
+        try {
+            while (cursor.moveToNext()) {
+                lastLocation = cursor.getString(0);
+                page.add(cursorToMedia(cursor));
+            }
+        } catch (IllegalStateException e) {
+            //Google bug causing IllegalStateException, see
+            //https://code.google.com/p/android/issues/detail?id=32472
+        } finally {
+            cursor.close();
+        }
+        return lastLocation;
+    }
+
+    private static MediaWrapper cursorToMedia(Cursor cursor) {
+        final Uri uri = AndroidUtil.LocationToUri(cursor.getString(0));
+        MediaWrapper media = new MediaWrapper(uri,
+                cursor.getLong(1),      // MEDIA_TIME
+                cursor.getLong(2),      // MEDIA_LENGTH
+                cursor.getInt(3),       // MEDIA_TYPE
+                null,                   // MEDIA_PICTURE
+                cursor.getString(4),    // MEDIA_TITLE
+                cursor.getString(5),    // MEDIA_ARTIST
+                cursor.getString(6),    // MEDIA_GENRE
+                cursor.getString(7),    // MEDIA_ALBUM
+                cursor.getString(8),    // MEDIA_ALBUMARTIST
+                cursor.getInt(9),       // MEDIA_WIDTH
+                cursor.getInt(10),      // MEDIA_HEIGHT
+                cursor.getString(11),   // MEDIA_ARTWORKURL
+                cursor.getInt(12),      // MEDIA_AUDIOTRACK
+                cursor.getInt(13),      // MEDIA_SPUTRACK
+                cursor.getInt(14),      // MEDIA_TRACKNUMBER
+                cursor.getInt(15),      // MEDIA_DISCNUMBER
+                cursor.getLong(16));    // MEDIA_LAST_MODIFIED
+        media.setSize(cursor.getLong(17));
+        return media;
+    }
+
+    /**
+     * Store the given file sizes without touching any other column of the media items.
+     *
+     * @param sizes the file sizes mapped to the location of the media item
+     */
+    public synchronized void setMediaSizes(Map<String, Long> sizes) {
+        mDatabase.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+                values.put(TomahawkSQLiteHelper.MEDIA_SIZE, entry.getValue());
+                mDatabase.update(TomahawkSQLiteHelper.TABLE_MEDIA, values,
+                        TomahawkSQLiteHelper.MEDIA_LOCATION + "=?",
+                        new String[]{entry.getKey()});
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
     public synchronized void removeMedias(Set<String> locations) {
         mDatabase.beginTransaction();
         try {
@@ -0,0 +1,144 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.database;
+
+/**
+ * An in-memory hash set of the (track name, artist name) pairs of all loved items. Names are
+ * compared ignoring case, just like {@link String#equalsIgnoreCase(String)} does. The hash is
+ * computed char by char, so that lookups don't need to allocate lowercased copies of the names.
+ */
+class LovedItemsIndex {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static class Entry {
+
+        final String trackName;
+
+        final String artistName;
+
+        final int hash;
+
+        Entry next;
+
+        Entry(String trackName, String artistName, int hash, Entry next) {
+            this.trackName = trackName;
+            this.artistName = artistName;
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    private Entry[] mBuckets = new Entry[INITIAL_CAPACITY];
+
+    private int mSize;
+
+    public synchronized boolean contains(String trackName, String artistName) {
+        if (trackName == null || artistName == null) {
+            return false;
+        }
+        int hash = hash(trackName, artistName);
+        for (Entry e = mBuckets[indexFor(hash, mBuckets.length)]; e != null; e = e.next) {
+            if (e.hash == hash && e.trackName.equalsIgnoreCase(trackName)
+                    && e.artistName.equalsIgnoreCase(artistName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void add(String trackName, String artistName) {
+        if (trackName == null || artistName == null || contains(trackName, artistName)) {
+            return;
+        }
+        if (mSize + 1 > mBuckets.length * LOAD_FACTOR) {
+            resize(mBuckets.length * 2);
+        }
+        int hash = hash(trackName, artistName);
+        int index = indexFor(hash, mBuckets.length);
+        mBuckets[index] = new Entry(trackName, artistName, hash, mBuckets[index]);
+        mSize++;
+    }
+
+    public synchronized void remove(String trackName, String artistName) {
+        if (trackName == null || artistName == null) {
+            return;
+        }
+        int hash = hash(trackName, artistName);
+        int index = indexFor(hash, mBuckets.length);
+        Entry previous = null;
+        for (Entry e = mBuckets[index]; e != null; e = e.next) {
+            if (e.hash == hash && e.trackName.equalsIgnoreCase(trackName)
+                    && e.artistName.equalsIgnoreCase(artistName)) {
+                if (previous == null) {
+                    mBuckets[index] = e.next;
+                } else {
+                    previous.next = e.next;
+                }
+                mSize--;
+                return;
+            }
+            previous = e;
+        }
+    }
+
+    public synchronized void clear() {
+        mBuckets = new Entry[INITIAL_CAPACITY];
+        mSize = 0;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private void resize(int capacity) {
+        Entry[] buckets = new Entry[capacity];
+        for (Entry bucket : mBuckets) {
+            Entry e = bucket;
+            while (e != null) {
+                Entry next = e.next;
+                int index = indexFor(e.hash, capacity);
+                e.next = buckets[index];
+                buckets[index] = e;
+                e = next;
+            }
+        }
+        mBuckets = buckets;
+    }
+
+    private static int indexFor(int hash, int capacity) {
+        return (hash ^ (hash >>> 16)) & (capacity - 1);
+    }
+
+    /**
+     * @return a hash of the given names that is equal for all names that are equal ignoring case
+     */
+    private static int hash(String trackName, String artistName) {
+        return hashIgnoreCase(hashIgnoreCase(17, trackName), artistName);
+    }
+
+    private static int hashIgnoreCase(int hash, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            // The same normalization that String#equalsIgnoreCase applies to every char
+            hash = 31 * hash + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+        }
+        return hash;
+    }
+}
@@ -154,11 +154,13 @@ public class TomahawkSQLiteHelper extends SQLiteOpenHelper {
 
     public static final String MEDIA_TRACKNUMBER = "track_number";
 
+    public static final String MEDIA_SIZE = "size";
+
     public enum mediaColumn {
         MEDIA_TABLE_NAME, MEDIA_PATH, MEDIA_TIME, MEDIA_LENGTH,
         MEDIA_TYPE, MEDIA_PICTURE, MEDIA_TITLE, MEDIA_ARTIST, MEDIA_GENRE, MEDIA_ALBUM,
         MEDIA_ALBUMARTIST, MEDIA_WIDTH, MEDIA_HEIGHT, MEDIA_ARTWORKURL, MEDIA_AUDIOTRACK,
-        MEDIA_SPUTRACK, MEDIA_TRACKNUMBER, MEDIA_DISCNUMBER, MEDIA_LAST_MODIFIED
+        MEDIA_SPUTRACK, MEDIA_TRACKNUMBER, MEDIA_DISCNUMBER, MEDIA_LAST_MODIFIED, MEDIA_SIZE
     }
 
     public static final String TABLE_MEDIADIRS = "mediadirs";
@@ -172,7 +174,7 @@ public class TomahawkSQLiteHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "userplaylists.db";
 
-    private static final int DATABASE_VERSION = 20;
+    private static final int DATABASE_VERSION = 22;
 
     // Database creation sql statements
     private static final String CREATE_TABLE_PLAYLISTS =
@@ -200,6 +202,11 @@ public class TomahawkSQLiteHelper extends SQLiteOpenHelper {
                     + " REFERENCES `" + TABLE_PLAYLISTS + "` (`" + PLAYLISTS_COLUMN_ID
                     + "`));";
 
+    // Used to look up the tracks of a single playlist, e.g. the loved items
+    private static final String CREATE_INDEX_TRACKS_PLAYLISTID =
+            "CREATE INDEX IF NOT EXISTS `" + TABLE_TRACKS + "_" + TRACKS_COLUMN_PLAYLISTID
+                    + "` ON `" + TABLE_TRACKS + "` (`" + TRACKS_COLUMN_PLAYLISTID + "`);";
+
     private static final String CREATE_TABLE_SEARCHHISTORY =
             "CREATE TABLE `" + TABLE_SEARCHHISTORY + "` (  `"
                     + SEARCHHISTORY_COLUMN_ID + "` INTEGER PRIMARY KEY AUTOINCREMENT, `"
@@ -248,7 +255,8 @@ public class TomahawkSQLiteHelper extends SQLiteOpenHelper {
             + MEDIA_SPUTRACK + " INTEGER, "
             + MEDIA_TRACKNUMBER + " INTEGER, "
             + MEDIA_DISCNUMBER + " INTEGER, "
-            + MEDIA_LASTMODIFIED + " INTEGER"
+            + MEDIA_LASTMODIFIED + " INTEGER, "
+            + MEDIA_SIZE + " INTEGER"
             + ");";
 
     private static final String CREATE_TABLE_MEDIADIRS = "CREATE TABLE "
@@ -275,6 +283,7 @@ public class TomahawkSQLiteHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase database) {
         database.execSQL(CREATE_TABLE_PLAYLISTS);
         database.execSQL(CREATE_TABLE_TRACKS);
+        database.execSQL(CREATE_INDEX_TRACKS_PLAYLISTID);
         database.execSQL(CREATE_TABLE_SEARCHHISTORY);
         database.execSQL(CREATE_TABLE_INFOSYSTEMOPLOGINFO);
         database.execSQL(CREATE_TABLE_INFOSYSTEMOPLOG);
@@ -323,6 +332,14 @@ public class TomahawkSQLiteHelper extends SQLiteOpenHelper {
             if (oldVersion < 20) {
                 db.execSQL(CREATE_TABLE_STATIONS);
             }
+            if (oldVersion >= 19 && oldVersion < 21) {
+                // Versions before 19 have just recreated the media table including this column
+                db.execSQL("ALTER TABLE `" + TABLE_MEDIA + "` ADD COLUMN `"
+                        + MEDIA_SIZE + "` INTEGER");
+            }
+            if (oldVersion < 22) {
+                db.execSQL(CREATE_INDEX_TRACKS_PLAYLISTID);
+            }
         }
     }
 
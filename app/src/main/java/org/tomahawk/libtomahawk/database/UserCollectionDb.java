@@ -34,7 +34,7 @@ public class UserCollectionDb extends CollectionDb {
         super(context, collectionId);
     }
 
-    public void addArtists(List<Artist> artists, List<Long> lastModifieds) {
+    public synchronized void addArtists(List<Artist> artists, List<Long> lastModifieds) {
         mDb.beginTransaction();
         for (int i = 0, artistsSize = artists.size(); i < artistsSize; i++) {
             Artist artist = artists.get(i);
@@ -55,7 +55,7 @@ public class UserCollectionDb extends CollectionDb {
         mDb.endTransaction();
     }
 
-    public void remove(Artist artist) {
+    public synchronized void remove(Artist artist) {
         mDb.beginTransaction();
         mDb.delete(TABLE_ARTISTS, ARTISTS_ARTIST + " = ? AND " + ARTISTS_TYPE + " = ?",
                 new String[]{artist.getName(), String.valueOf(TYPE_HATCHET_EXPLICIT)});
@@ -79,7 +79,7 @@ public class UserCollectionDb extends CollectionDb {
         return isLoved;
     }
 
-    public void addAlbums(List<Album> albums, List<Long> lastModifieds) {
+    public synchronized void addAlbums(List<Album> albums, List<Long> lastModifieds) {
         // Add the album's artist as an implicitly loved entry
         mDb.beginTransaction();
         for (Album album : albums) {
@@ -115,7 +115,7 @@ public class UserCollectionDb extends CollectionDb {
         mDb.endTransaction();
     }
 
-    public void remove(Album album) {
+    public synchronized void remove(Album album) {
         mDb.beginTransaction();
         int albumArtistId = getArtistId(album.getArtist().getName(), TYPE_HATCHET_IMPLICIT);
         mDb.delete(TABLE_ARTISTS, ARTISTS_ARTIST + " = ? AND " + ARTISTS_TYPE + " = ?",
@@ -115,7 +115,8 @@ public class HatchetInfoPlugin implements InfoPlugin {
         } else {
             priority = TomahawkRunnable.PRIORITY_IS_INFOSYSTEM_MEDIUM;
         }
-        TomahawkRunnable runnable = new TomahawkRunnable(priority) {
+        TomahawkRunnable runnable = new TomahawkRunnable(priority,
+                TomahawkRunnable.POOL_NETWORK) {
             @Override
             public void run() {
                 try {
@@ -257,7 +258,7 @@ public class HatchetInfoPlugin implements InfoPlugin {
     public void send(final InfoRequestData infoRequestData, AuthenticatorUtils authenticatorUtils) {
         mHatchetAuthenticatorUtils = (HatchetAuthenticatorUtils) authenticatorUtils;
         TomahawkRunnable runnable = new TomahawkRunnable(
-                TomahawkRunnable.PRIORITY_IS_INFOSYSTEM_MEDIUM) {
+                TomahawkRunnable.PRIORITY_IS_INFOSYSTEM_MEDIUM, TomahawkRunnable.POOL_NETWORK) {
             @Override
             public void run() {
                 ArrayList<String> doneRequestsIds = new ArrayList<>();
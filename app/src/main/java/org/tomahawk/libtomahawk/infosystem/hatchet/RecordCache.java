@@ -0,0 +1,269 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.infosystem.hatchet;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The cache of all records that the {@link Store} has parsed, mapped to their type and id.
+ *
+ * Every type has its own least recently used cache with a maximum number of records and an
+ * optional maximum age, after which a record is being dropped and fetched again if needed. Heavy
+ * records can be held via {@link SoftReference}s, so that the VM is able to reclaim them when it
+ * runs low on memory. The hit, miss and eviction counts of a type are being logged every {@link
+ * #EVICTION_LOG_INTERVAL} evictions. All methods can safely be called from multiple threads.
+ *
+ * Every record that is being put or found by a thread between {@link #beginPinning()} and the
+ * matching {@link #endPinning()} is pinned until then. Pinned records are neither evicted nor
+ * expired, so that records which can't be fetched by their id are still there when the rest of
+ * a response is being parsed, even if a response contains more records than the cache can hold.
+ */
+class RecordCache {
+
+    private static final String TAG = RecordCache.class.getSimpleName();
+
+    public static final long NO_MAX_AGE = -1;
+
+    // The stats of a type are being logged every time this number of records has been evicted
+    private static final int EVICTION_LOG_INTERVAL = 500;
+
+    private final Map<Class<?>, TypeCache> mCaches = new ConcurrentHashMap<>();
+
+    // The records that the current thread has pinned, mapped to their TypeCache
+    private final ThreadLocal<PinSession> mPinSession = new ThreadLocal<>();
+
+    private static class Entry {
+
+        private final Object mValue;
+
+        private final long mTimeStamp;
+
+        // The number of threads that have pinned this entry. Guarded by the TypeCache's lock.
+        private int mPinCount;
+
+        private Entry(Object value, boolean softValue) {
+            mValue = softValue ? new SoftReference<>(value) : value;
+            mTimeStamp = SystemClock.elapsedRealtime();
+        }
+
+        private Object getValue() {
+            if (mValue instanceof SoftReference) {
+                return ((SoftReference<?>) mValue).get();
+            }
+            return mValue;
+        }
+    }
+
+    private static class PinSession {
+
+        private int mDepth;
+
+        private final Map<TypeCache, Set<String>> mPinnedIds = new HashMap<>();
+    }
+
+    private static class TypeCache {
+
+        private final String mName;
+
+        private final int mMaxSize;
+
+        private final long mMaxAge;
+
+        private final boolean mSoftValues;
+
+        // access-ordered, so that the eldest entry is the least recently used one
+        private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+        private long mHitCount;
+
+        private long mMissCount;
+
+        private long mEvictionCount;
+
+        private TypeCache(String name, int maxSize, long maxAge, boolean softValues) {
+            mName = name;
+            mMaxSize = maxSize;
+            mMaxAge = maxAge;
+            mSoftValues = softValues;
+        }
+
+        private synchronized Object getValue(String id, boolean pin) {
+            Entry entry = mEntries.get(id);
+            Object value = null;
+            if (entry != null) {
+                if (mMaxAge != NO_MAX_AGE && entry.mPinCount == 0
+                        && SystemClock.elapsedRealtime() - entry.mTimeStamp > mMaxAge) {
+                    mEntries.remove(id);
+                    onEvicted();
+                } else {
+                    value = entry.getValue();
+                    if (value == null) {
+                        // The soft reference has been cleared by the garbage collector
+                        mEntries.remove(id);
+                        onEvicted();
+                    } else if (pin) {
+                        entry.mPinCount++;
+                    }
+                }
+            }
+            if (value != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+            return value;
+        }
+
+        private synchronized void putValue(String id, Object value, boolean pin) {
+            Entry entry = new Entry(value, mSoftValues);
+            Entry previousEntry = mEntries.put(id, entry);
+            if (previousEntry != null) {
+                entry.mPinCount = previousEntry.mPinCount;
+            }
+            if (pin) {
+                entry.mPinCount++;
+            }
+            trimToSize();
+        }
+
+        private synchronized void unpin(Set<String> ids) {
+            for (String id : ids) {
+                Entry entry = mEntries.get(id);
+                if (entry != null && entry.mPinCount > 0) {
+                    entry.mPinCount--;
+                }
+            }
+            trimToSize();
+        }
+
+        /**
+         * Evict the least recently used records that aren't pinned, until there are no more than
+         * {@link #mMaxSize} records left.
+         */
+        private void trimToSize() {
+            Iterator<Entry> iterator = mEntries.values().iterator();
+            while (mEntries.size() > mMaxSize && iterator.hasNext()) {
+                if (iterator.next().mPinCount == 0) {
+                    iterator.remove();
+                    onEvicted();
+                }
+            }
+        }
+
+        private void onEvicted() {
+            mEvictionCount++;
+            if (mEvictionCount % EVICTION_LOG_INTERVAL == 0) {
+                Log.d(TAG, "onEvicted - " + getStats());
+            }
+        }
+
+        private synchronized String getStats() {
+            return mName + ": size=" + mEntries.size() + "/" + mMaxSize + ", hits=" + mHitCount
+                    + ", misses=" + mMissCount + ", evictions=" + mEvictionCount;
+        }
+    }
+
+    /**
+     * Add a cache for records of the given type.
+     *
+     * @param clss       the type of the records
+     * @param maxSize    the maximum number of records. The least recently used records are being
+     *                   evicted once it has been exceeded.
+     * @param maxAge     the maximum age of a record in milliseconds or {@link #NO_MAX_AGE}
+     * @param softValues whether or not the records should only be softly referenced
+     */
+    public void addCache(Class<?> clss, int maxSize, long maxAge, boolean softValues) {
+        mCaches.put(clss, new TypeCache(clss.getSimpleName(), maxSize, maxAge, softValues));
+    }
+
+    public <T> void put(Class<T> clss, String id, T object) {
+        TypeCache cache = mCaches.get(clss);
+        cache.putValue(id, object, addPin(cache, id));
+    }
+
+    public <T> T get(Class<T> clss, String id) {
+        TypeCache cache = mCaches.get(clss);
+        PinSession session = mPinSession.get();
+        boolean pin = session != null && !isPinned(session, cache, id);
+        Object value = cache.getValue(id, pin);
+        if (pin && value != null) {
+            addPin(cache, id);
+        }
+        return clss.cast(value);
+    }
+
+    /**
+     * Start pinning every record that is being put or found by the current thread. Calls can be
+     * nested, the records stay pinned until the outermost call has been ended.
+     */
+    public void beginPinning() {
+        PinSession session = mPinSession.get();
+        if (session == null) {
+            session = new PinSession();
+            mPinSession.set(session);
+        }
+        session.mDepth++;
+    }
+
+    /**
+     * End a call to {@link #beginPinning()}. If it was the outermost one, all records that the
+     * current thread has pinned are being unpinned and may be evicted again.
+     */
+    public void endPinning() {
+        PinSession session = mPinSession.get();
+        if (session != null && --session.mDepth == 0) {
+            mPinSession.remove();
+            for (Map.Entry<TypeCache, Set<String>> entry : session.mPinnedIds.entrySet()) {
+                entry.getKey().unpin(entry.getValue());
+            }
+        }
+    }
+
+    private static boolean isPinned(PinSession session, TypeCache cache, String id) {
+        Set<String> ids = session.mPinnedIds.get(cache);
+        return ids != null && ids.contains(id);
+    }
+
+    /**
+     * Remember that the current thread has pinned the given record.
+     *
+     * @return false, if the current thread isn't pinning records or has already pinned it
+     */
+    private boolean addPin(TypeCache cache, String id) {
+        PinSession session = mPinSession.get();
+        if (session == null) {
+            return false;
+        }
+        Set<String> ids = session.mPinnedIds.get(cache);
+        if (ids == null) {
+            ids = new HashSet<>();
+            session.mPinnedIds.put(cache, ids);
+        }
+        return ids.add(id);
+    }
+}
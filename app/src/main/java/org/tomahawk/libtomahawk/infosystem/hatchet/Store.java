@@ -54,8 +54,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -77,28 +79,17 @@ public class Store {
 
     public static final String HATCHET_API_VERSION = "/v2";
 
-    private final Cache mCache = new Cache();
+    // The maximum number of ids that are being fetched with a single request
+    private static final int MAX_IDS_PER_REQUEST = 50;
 
-    private static class Cache {
+    // The types of records that can be fetched by their ids. Records that reference records of
+    // other types come first, so that those referenced records are being fetched along with them.
+    private static final Class<?>[] FETCHABLE_TYPES = new Class<?>[]{Playlist.class, User.class,
+            Query.class, Album.class, Artist.class, Image.class};
 
-        private Map<Class, Map> mCaches = new HashMap<>();
+    private static final long MINUTE_MILLIS = 60 * 1000;
 
-        public Cache() {
-        }
-
-        public <T> void addCache(Class<T> clss) {
-            mCaches.put(clss, new HashMap<String, T>());
-        }
-
-        public <T> void put(Class<T> clss, String id, T object) {
-            mCaches.get(clss).put(id, object);
-        }
-
-        public <T> T get(Class<T> clss, String id) {
-            return (T) mCaches.get(clss).get(id);
-        }
-
-    }
+    private final RecordCache mCache = new RecordCache();
 
     private final OkHttpClient mOkHttpClient;
 
@@ -152,20 +143,24 @@ public class Store {
                 .build();
         mHatchetBackground = restAdapter.create(Hatchet.class);
 
-        mCache.addCache(Image.class);
-        mCache.addCache(Artist.class);
-        mCache.addCache(Album.class);
-        mCache.addCache(Query.class);
-        mCache.addCache(ChartItem.class);
-        mCache.addCache(Chart.class);
-        mCache.addCache(PlaybackLogEntry.class);
-        mCache.addCache(PlaylistEntry.class);
-        mCache.addCache(User.class);
-        mCache.addCache(Playlist.class);
-        mCache.addCache(SocialAction.class);
-        mCache.addCache(Search.class);
-        mCache.addCache(SearchResult.class);
-        mCache.addCache(Relationship.class);
+        // Entities are being referenced all over the place, so they are kept for a whole session
+        mCache.addCache(Image.class, 2000, RecordCache.NO_MAX_AGE, false);
+        mCache.addCache(Artist.class, 2000, RecordCache.NO_MAX_AGE, false);
+        mCache.addCache(Album.class, 2000, RecordCache.NO_MAX_AGE, false);
+        mCache.addCache(Query.class, 2000, RecordCache.NO_MAX_AGE, false);
+        mCache.addCache(User.class, 500, 60 * MINUTE_MILLIS, false);
+        // Heavy records that hold lists of other records
+        mCache.addCache(Playlist.class, 200, 60 * MINUTE_MILLIS, true);
+        mCache.addCache(PlaylistEntry.class, 2000, 60 * MINUTE_MILLIS, false);
+        mCache.addCache(Chart.class, 20, 60 * MINUTE_MILLIS, true);
+        mCache.addCache(Search.class, 20, 10 * MINUTE_MILLIS, true);
+        // Feed-like records, which are rarely being looked up again. Records that can't be fetched
+        // by their id are being pinned while a response is being parsed, see storeRecords.
+        mCache.addCache(ChartItem.class, 1000, 60 * MINUTE_MILLIS, false);
+        mCache.addCache(PlaybackLogEntry.class, 1000, 30 * MINUTE_MILLIS, false);
+        mCache.addCache(SocialAction.class, 500, 30 * MINUTE_MILLIS, false);
+        mCache.addCache(SearchResult.class, 1000, 10 * MINUTE_MILLIS, false);
+        mCache.addCache(Relationship.class, 500, 30 * MINUTE_MILLIS, false);
     }
 
     public Hatchet getImplementation(boolean isBackgroundRequest) {
@@ -176,23 +171,9 @@ public class Store {
             throws IOException {
         T record = mCache.get(resultType, id);
         if (record == null) {
-            Hatchet hatchet = getImplementation(isBackgroundRequest);
             List<String> ids = new ArrayList<>();
             ids.add(String.valueOf(id));
-            if (resultType == Image.class) {
-                storeRecords(hatchet.getImages(ids), resultType, isBackgroundRequest);
-            } else if (resultType == Artist.class) {
-                storeRecords(hatchet.getArtists(ids, null), resultType, isBackgroundRequest);
-            } else if (resultType == Album.class) {
-                storeRecords(hatchet.getAlbums(ids, null, null), resultType, isBackgroundRequest);
-            } else if (resultType == PlaylistEntry.class) {
-                storeRecords(hatchet.getTracks(ids, null, null), resultType, isBackgroundRequest);
-            } else if (resultType == User.class) {
-                storeRecords(hatchet.getUsers(ids, null, null, null), resultType,
-                        isBackgroundRequest);
-            } else if (resultType == Playlist.class) {
-                storeRecords(hatchet.getPlaylists(ids), resultType, isBackgroundRequest);
-            }
+            fetchRecords(ids, resultType, isBackgroundRequest);
             record = mCache.get(resultType, id);
             if (record == null) {
                 throw new IOException("Couldn't fetch entity from server.");
@@ -214,9 +195,194 @@ public class Store {
         return storeRecords(object, resultType, requestType, isBackgroundRequest, null);
     }
 
+    /**
+     * Fetch the records of the given type with the given ids and store them in the cache.
+     */
+    private <T> void fetchRecords(List<String> ids, Class<T> resultType,
+            boolean isBackgroundRequest) throws IOException {
+        Hatchet hatchet = getImplementation(isBackgroundRequest);
+        if (resultType == Image.class) {
+            storeRecords(hatchet.getImages(ids), resultType, isBackgroundRequest);
+        } else if (resultType == Artist.class) {
+            storeRecords(hatchet.getArtists(ids, null), resultType, isBackgroundRequest);
+        } else if (resultType == Album.class) {
+            storeRecords(hatchet.getAlbums(ids, null, null), resultType, isBackgroundRequest);
+        } else if (resultType == Query.class) {
+            storeRecords(hatchet.getTracks(ids, null, null), resultType, isBackgroundRequest);
+        } else if (resultType == User.class) {
+            storeRecords(hatchet.getUsers(ids, null, null, null), resultType,
+                    isBackgroundRequest);
+        } else if (resultType == Playlist.class) {
+            storeRecords(hatchet.getPlaylists(ids), resultType, isBackgroundRequest);
+        }
+    }
+
+    /**
+     * Fetch all records that are being referenced in the given response, but are neither cached
+     * nor contained in the response itself. Instead of a request per record, there's a single
+     * request per type and {@link #MAX_IDS_PER_REQUEST} records. Afterwards {@link
+     * #findRecord(String, Class, boolean)} finds every referenced record in the cache.
+     */
+    private void fetchMissingRecords(JsonObject object, boolean isBackgroundRequest)
+            throws IOException {
+        Map<Class<?>, Set<String>> referencedIds = new HashMap<>();
+        for (JsonObject o : getObjects(object, "artists")) {
+            addFirstId(referencedIds, Image.class, o, "images");
+        }
+        for (JsonObject o : getObjects(object, "albums")) {
+            addId(referencedIds, Artist.class, o, "artist");
+            addFirstId(referencedIds, Image.class, o, "images");
+        }
+        for (JsonObject o : getObjects(object, "tracks")) {
+            addId(referencedIds, Artist.class, o, "artist");
+        }
+        for (JsonObject o : getObjects(object, "users")) {
+            addId(referencedIds, Query.class, o, "nowplaying");
+            addId(referencedIds, Image.class, o, "avatar");
+        }
+        for (JsonObject o : getObjects(object, "playlistEntries")) {
+            addId(referencedIds, Query.class, o, "track");
+        }
+        for (JsonObject o : getObjects(object, "playlists")) {
+            addIds(referencedIds, Artist.class, o, "popularArtists");
+        }
+        List<JsonObject> referencingObjects = getObjects(object, "socialActions");
+        referencingObjects.addAll(getObjects(object, "searchResults"));
+        for (JsonObject o : referencingObjects) {
+            addId(referencedIds, Query.class, o, "track");
+            addId(referencedIds, Artist.class, o, "artist");
+            addId(referencedIds, Album.class, o, "album");
+            addId(referencedIds, User.class, o, "user");
+            addId(referencedIds, User.class, o, "target");
+            addId(referencedIds, Playlist.class, o, "playlist");
+        }
+        for (JsonObject o : getObjects(object, "relationships")) {
+            addId(referencedIds, User.class, o, "user");
+            addId(referencedIds, Query.class, o, "targetTrack");
+            addId(referencedIds, Album.class, o, "targetAlbum");
+            addId(referencedIds, Artist.class, o, "targetArtist");
+        }
+        for (JsonObject o : getObjects(object, "chartItems")) {
+            addId(referencedIds, Query.class, o, "track");
+        }
+        for (JsonObject o : getObjects(object, "playbacklogEntries")) {
+            addId(referencedIds, Query.class, o, "track");
+        }
+        // Records that are contained in the response are being stored along with it
+        removeIds(referencedIds, Image.class, object, "images");
+        removeIds(referencedIds, Artist.class, object, "artists");
+        removeIds(referencedIds, Album.class, object, "albums");
+        removeIds(referencedIds, Query.class, object, "tracks");
+        removeIds(referencedIds, User.class, object, "users");
+        removeIds(referencedIds, Playlist.class, object, "playlists");
+
+        for (Class<?> type : FETCHABLE_TYPES) {
+            Set<String> ids = referencedIds.get(type);
+            if (ids == null) {
+                continue;
+            }
+            List<String> missingIds = new ArrayList<>();
+            for (String id : ids) {
+                // Check the cache right before fetching, the records of previous types might
+                // have brought some of the records along
+                if (mCache.get(type, id) == null) {
+                    missingIds.add(id);
+                }
+            }
+            for (int i = 0; i < missingIds.size(); i += MAX_IDS_PER_REQUEST) {
+                List<String> chunk = missingIds.subList(i,
+                        Math.min(i + MAX_IDS_PER_REQUEST, missingIds.size()));
+                Log.d(TAG, "fetchMissingRecords - fetching " + chunk.size() + " records of type "
+                        + type.getSimpleName());
+                fetchRecords(new ArrayList<>(chunk), type, isBackgroundRequest);
+            }
+        }
+    }
+
+    /**
+     * @return all JsonObjects that are contained in the array with the given name. Doesn't follow
+     * any links.
+     */
+    private static List<JsonObject> getObjects(JsonObject object, String memberName) {
+        List<JsonObject> objects = new ArrayList<>();
+        JsonElement elements = object.get(memberName);
+        if (elements instanceof JsonArray) {
+            for (JsonElement element : (JsonArray) elements) {
+                if (element instanceof JsonObject) {
+                    objects.add((JsonObject) element);
+                }
+            }
+        }
+        return objects;
+    }
+
+    private static void addId(Map<Class<?>, Set<String>> ids, Class<?> type, JsonObject object,
+            String memberName) {
+        addId(ids, type, object.get(memberName));
+    }
+
+    private static void addIds(Map<Class<?>, Set<String>> ids, Class<?> type, JsonObject object,
+            String memberName) {
+        JsonElement elements = object.get(memberName);
+        if (elements instanceof JsonArray) {
+            for (JsonElement element : (JsonArray) elements) {
+                addId(ids, type, element);
+            }
+        }
+    }
+
+    private static void addFirstId(Map<Class<?>, Set<String>> ids, Class<?> type, JsonObject object,
+            String memberName) {
+        JsonElement elements = object.get(memberName);
+        if (elements instanceof JsonArray && ((JsonArray) elements).size() > 0) {
+            addId(ids, type, ((JsonArray) elements).get(0));
+        }
+    }
+
+    private static void addId(Map<Class<?>, Set<String>> ids, Class<?> type, JsonElement element) {
+        if (element != null && element.isJsonPrimitive()) {
+            Set<String> typeIds = ids.get(type);
+            if (typeIds == null) {
+                typeIds = new HashSet<>();
+                ids.put(type, typeIds);
+            }
+            typeIds.add(element.getAsString());
+        }
+    }
+
+    private static void removeIds(Map<Class<?>, Set<String>> ids, Class<?> type, JsonObject object,
+            String memberName) {
+        Set<String> typeIds = ids.get(type);
+        if (typeIds != null) {
+            for (JsonObject o : getObjects(object, memberName)) {
+                JsonElement id = o.get("id");
+                if (id != null && id.isJsonPrimitive()) {
+                    typeIds.remove(id.getAsString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse the given response and store all contained records in the cache. Every record that
+     * is being stored or looked up while doing so is pinned until the outermost call has returned,
+     * so that no record is being evicted before the records that reference it have been parsed.
+     */
     public <T> List<T> storeRecords(JsonObject object, Class<T> resultType, int requestType,
             boolean isBackgroundRequest, QueryParams params)
             throws IOException {
+        mCache.beginPinning();
+        try {
+            return parseRecords(object, resultType, requestType, isBackgroundRequest, params);
+        } finally {
+            mCache.endPinning();
+        }
+    }
+
+    private <T> List<T> parseRecords(JsonObject object, Class<T> resultType, int requestType,
+            boolean isBackgroundRequest, QueryParams params)
+            throws IOException {
+        fetchMissingRecords(object, isBackgroundRequest);
         List<T> results = new ArrayList<>();
         JsonElement elements = object.get("images");
         if (elements instanceof JsonArray) {
@@ -19,6 +19,7 @@ package org.tomahawk.libtomahawk.resolver;/*
 * Major modifications in 2015 by Enno Gottschalk <mrmaffen@googlemail.com>
 */
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -31,6 +32,90 @@ public class Bitap {
         public int errors = -1;
     }
 
+    /**
+     * A pattern whose alphabet has been initialised once into primitive lookup tables, so that it
+     * can be matched against any number of texts without being rebuilt. Instances are immutable and
+     * can therefore be shared between threads.
+     */
+    public static class Pattern {
+
+        private static final int ASCII_SIZE = 128;
+
+        private final char[] mChars;
+
+        private final int mMatchMask;
+
+        private final int[] mAsciiMasks = new int[ASCII_SIZE];
+
+        // Sorted, so that non-ascii chars can be looked up via binary search
+        private final char[] mOtherChars;
+
+        private final int[] mOtherMasks;
+
+        /**
+         * @param pattern The pattern to compile. Must not be longer than 32 chars.
+         */
+        public Pattern(String pattern) {
+            mChars = pattern.toCharArray();
+            mMatchMask = 1 << (mChars.length - 1);
+
+            char[] otherChars = new char[mChars.length];
+            int otherCount = 0;
+            for (char c : mChars) {
+                int index = Arrays.binarySearch(otherChars, 0, otherCount, c);
+                if (c >= ASCII_SIZE && index < 0) {
+                    int insertAt = -index - 1;
+                    System.arraycopy(otherChars, insertAt, otherChars, insertAt + 1,
+                            otherCount - insertAt);
+                    otherChars[insertAt] = c;
+                    otherCount++;
+                }
+            }
+            mOtherChars = Arrays.copyOf(otherChars, otherCount);
+            mOtherMasks = new int[otherCount];
+            for (int i = 0; i < mChars.length; i++) {
+                char c = mChars[i];
+                int bit = 1 << (mChars.length - i - 1);
+                if (c < ASCII_SIZE) {
+                    mAsciiMasks[c] |= bit;
+                } else {
+                    mOtherMasks[Arrays.binarySearch(mOtherChars, c)] |= bit;
+                }
+            }
+        }
+
+        public int length() {
+            return mChars.length;
+        }
+
+        private int charMask(char c) {
+            if (c < ASCII_SIZE) {
+                return mAsciiMasks[c];
+            }
+            int index = Arrays.binarySearch(mOtherChars, c);
+            return index >= 0 ? mOtherMasks[index] : 0;
+        }
+    }
+
+    /**
+     * Reusable bit arrays for {@link #indexOf(char[], int, int, Pattern, int, Scratch, Result)}.
+     * Not thread-safe, so every thread should use its own instance.
+     */
+    public static class Scratch {
+
+        private int[] mRd = new int[64];
+
+        private int[] mLastRd = new int[64];
+
+        private void ensureCapacity(int size) {
+            if (mRd.length < size) {
+                int newSize = Math.max(size, mRd.length * 2);
+                mRd = new int[newSize];
+                mLastRd = new int[newSize];
+            }
+        }
+    }
+
     /**
      * Locate the best instance of 'pattern' in 'text' near 'loc' using the Bitap algorithm. Returns
      * -1 if no match found.
@@ -88,6 +173,82 @@ public class Bitap {
         return result;
     }
 
+    /**
+     * Locate the best instance of the given compiled {@link Pattern} in the given range of 'text'
+     * using the Bitap algorithm. Behaves exactly like {@link #indexOf(String, String, int)}, but
+     * doesn't allocate anything.
+     *
+     * @param text      The char array containing the text to search.
+     * @param offset    The index of the first char of the text to search.
+     * @param length    The number of chars of the text to search.
+     * @param pattern   The compiled pattern to search for.
+     * @param tolerance The maximum number of errors that are allowed.
+     * @param scratch   The bit arrays to work with.
+     * @param result    The {@link Result} which is being filled with the best match index
+     *                  (relative to 'offset') and the number of errors. The index is -1 if no
+     *                  match has been found.
+     */
+    public static void indexOf(char[] text, int offset, int length, Pattern pattern,
+            int tolerance, Scratch scratch, Result result) {
+        result.index = -1;
+        result.errors = -1;
+
+        // Is there an exact match? (speedup)
+        int exactIndex = exactIndexOf(text, offset, length, pattern.mChars);
+        if (exactIndex != -1) {
+            result.index = exactIndex;
+            result.errors = 0;
+            return;
+        }
+
+        int patternLength = pattern.mChars.length;
+        scratch.ensureCapacity(length + patternLength + 2);
+        int[] rd = scratch.mRd;
+        int[] last_rd = scratch.mLastRd;
+        for (int d = 0; d <= tolerance; d++) {
+            rd[length + patternLength + 1] = (1 << d) - 1;
+            for (int j = length + patternLength; j > 0; j--) {
+                int charMatch;
+                if (length <= j - 1) {
+                    // Out of range.
+                    charMatch = 0;
+                } else {
+                    charMatch = pattern.charMask(text[offset + j - 1]);
+                }
+                if (d == 0) {
+                    // First pass: exact match.
+                    rd[j] = ((rd[j + 1] << 1) | 1) & charMatch;
+                } else {
+                    // Subsequent passes: fuzzy match.
+                    rd[j] = (((rd[j + 1] << 1) | 1) & charMatch)
+                            | (((last_rd[j + 1] | last_rd[j]) << 1) | 1) | last_rd[j + 1];
+                }
+                if ((rd[j] & pattern.mMatchMask) != 0) {
+                    result.index = j - 1;
+                    result.errors = d;
+                    return;
+                }
+            }
+            int[] swap = last_rd;
+            last_rd = rd;
+            rd = swap;
+        }
+    }
+
+    private static int exactIndexOf(char[] text, int offset, int length, char[] pattern) {
+        int max = length - pattern.length;
+        for (int i = 0; i <= max; i++) {
+            int k = 0;
+            while (k < pattern.length && text[offset + i + k] == pattern[k]) {
+                k++;
+            }
+            if (k == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Initialise the alphabet for the Bitap algorithm.
      *
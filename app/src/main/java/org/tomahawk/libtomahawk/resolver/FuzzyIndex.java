@@ -18,15 +18,22 @@
 package org.tomahawk.libtomahawk.resolver;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.miscellaneous.ASCIIFoldingFilter;
+import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
+import org.apache.lucene.analysis.ngram.NGramTokenFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntField;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.FuzzyQuery;
@@ -34,6 +41,7 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.SearcherFactory;
 import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
@@ -46,6 +54,7 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -57,9 +66,93 @@ public class FuzzyIndex {
             TomahawkApp.getContext().getFilesDir().getAbsolutePath() + File.separator + "lucene"
                     + File.separator;
 
-    private static final String LAST_FUZZY_INDEX_UPDATE_SUFFIX = "_last_fuzzy_index_update";
+    private static final String FUZZY_INDEX_REVISION_SUFFIX = "_fuzzy_index_revision";
 
-    private final String mLastUpdateStorageKey;
+    private static final String FUZZY_INDEX_VERSION_SUFFIX = "_fuzzy_index_version";
+
+    /**
+     * Increase this whenever the structure of the indexed {@link Document}s changes. A mismatch
+     * between this and the stored version triggers a full rebuild of the index.
+     */
+    private static final int INDEX_VERSION = 3;
+
+    private static final String FIELD_ID = "id";
+
+    private static final String FIELD_KEY = "key";
+
+    private static final String FIELD_ARTIST = "artist";
+
+    private static final String FIELD_ALBUM = "album";
+
+    private static final String FIELD_TRACK = "track";
+
+    // Contains artist, album and track name
+    private static final String FIELD_FULLTEXT = "fulltext";
+
+    // Fields with this suffix contain the edge n-grams (prefixes) of every normalized word
+    private static final String SUFFIX_EDGE_NGRAM = "_edge";
+
+    // Fields with this suffix contain the trigrams of every normalized word
+    private static final String SUFFIX_TRIGRAM = "_trigram";
+
+    private static final int TRIGRAM_SIZE = 3;
+
+    /**
+     * Words shorter than this are only matched by prefix. Words at least as long as this are also
+     * matched fuzzily.
+     */
+    private static final int MIN_FUZZY_LENGTH = 3;
+
+    /**
+     * Words at least as long as this are matched via their trigrams instead of via a FuzzyQuery.
+     * Edge n-grams are only indexed up to this length, since longer words are never matched by
+     * prefix.
+     */
+    private static final int MIN_NGRAM_LENGTH = 8;
+
+    private static final int FUZZY_MAX_EDITS = 1;
+
+    // Number of leading chars that have to match exactly, which keeps the term enumeration short
+    private static final int FUZZY_PREFIX_LENGTH = 1;
+
+    // Minimum fraction of a long word's trigrams that have to match
+    private static final float NGRAM_MIN_MATCH_RATIO = 0.6f;
+
+    private static final int MAX_RESULTS = 50;
+
+    private static final Analyzer sAnalyzer = new FuzzyIndexAnalyzer();
+
+    /**
+     * Normalizes every word (lower case, ASCII folding). Depending on the field's suffix it then
+     * emits the words themselves, their edge n-grams or their trigrams.
+     */
+    private static class FuzzyIndexAnalyzer extends Analyzer {
+
+        public FuzzyIndexAnalyzer() {
+            // Every field needs its own token stream components
+            super(PER_FIELD_REUSE_STRATEGY);
+        }
+
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+            Tokenizer source = new StandardTokenizer(Version.LUCENE_47, reader);
+            TokenStream result = new LowerCaseFilter(Version.LUCENE_47, source);
+            result = new ASCIIFoldingFilter(result);
+            if (fieldName.endsWith(SUFFIX_EDGE_NGRAM)) {
+                result = new EdgeNGramTokenFilter(Version.LUCENE_47, result, 1,
+                        MIN_NGRAM_LENGTH - 1);
+            } else if (fieldName.endsWith(SUFFIX_TRIGRAM)) {
+                result = new NGramTokenFilter(Version.LUCENE_47, result, TRIGRAM_SIZE,
+                        TRIGRAM_SIZE);
+            }
+            return new TokenStreamComponents(source, result);
+        }
+    }
+
+    // The revision of the CollectionDb's change log that the index is up to date with
+    private final String mRevisionStorageKey;
+
+    private final String mVersionStorageKey;
 
     private CollectionDb mCollectionDb;
 
@@ -80,76 +173,164 @@ public class FuzzyIndex {
         Log.d(TAG, "FuzzyIndex constructor called: " + collectionDb.getCollectionId());
         mCollectionDb = collectionDb;
         mLucenePath = LUCENE_ROOT_FOLDER + collectionDb.getCollectionId();
-        mLastUpdateStorageKey = collectionDb.getCollectionId() + LAST_FUZZY_INDEX_UPDATE_SUFFIX;
+        mRevisionStorageKey = collectionDb.getCollectionId() + FUZZY_INDEX_REVISION_SUFFIX;
+        mVersionStorageKey = collectionDb.getCollectionId() + FUZZY_INDEX_VERSION_SUFFIX;
         ensureIndex();
     }
 
     /**
-     * Make sure that the FuzzyIndex contains all tracks that are stored in the CollectionDb.
-     *
-     * @return whether or not the process has been successful
+     * Make sure that the FuzzyIndex contains all tracks that are stored in the CollectionDb. The
+     * index is only rebuilt from scratch if its version marker has changed or if the CollectionDb's
+     * change log doesn't reach back to the revision the index is up to date with (e.g. because the
+     * app has been killed before a lot of changes could be applied). Otherwise only the changes
+     * since that revision are applied.
      */
     public synchronized void ensureIndex() {
-        Log.d(TAG, "addToIndex - using CollectionDb " + mCollectionDb.hashCode() + " with id "
+        Log.d(TAG, "ensureIndex - using CollectionDb " + mCollectionDb.hashCode() + " with id "
                 + mCollectionDb.getCollectionId());
-        long lastDbUpdate = mCollectionDb.getLastUpdated();
-        long lastIndexUpdate = PreferenceUtils.getLong(mLastUpdateStorageKey, -2);
-        Log.d(TAG, "addToIndex - recreate: " + (lastDbUpdate > lastIndexUpdate));
-        if (lastDbUpdate > lastIndexUpdate) {
+        long indexRevision = PreferenceUtils.getLong(mRevisionStorageKey, -1);
+        int indexVersion = PreferenceUtils.getInt(mVersionStorageKey, -1);
+        CollectionDb.ChangeSet changeSet = null;
+        if (indexVersion == INDEX_VERSION && indexRevision >= 0
+                && new File(mLucenePath).exists()) {
+            changeSet = mCollectionDb.getChangesSince(indexRevision);
+        }
+        boolean recreate = changeSet == null;
+        Log.d(TAG, "ensureIndex - recreate: " + recreate);
+        if (recreate) {
             Cursor cursor = null;
             try {
+                // Get the revision first. Changes that are committed while we're reading the
+                // tracks are simply applied again afterwards.
+                long revision = mCollectionDb.getChangeLogRevision();
                 String[] fields = new String[]{CollectionDb.TABLE_TRACKS + "." + CollectionDb.ID,
                         CollectionDb.ARTISTS_ARTIST, CollectionDb.ALBUMS_ALBUM,
                         CollectionDb.TRACKS_TRACK};
                 cursor = mCollectionDb.tracks(null, null, fields);
                 beginIndexing(true);
-                Log.d(TAG, "addToIndex - Adding tracks to index - count: " + cursor.getCount());
+                Log.d(TAG, "ensureIndex - Adding tracks to index - count: " + cursor.getCount());
                 cursor.moveToFirst();
                 if (!cursor.isAfterLast()) {
                     do {
-                        Document document = new Document();
-                        document.add(new IntField("id", cursor.getInt(0),
-                                Field.Store.YES));
-                        document.add(new StringField("artist", cursor.getString(1),
-                                Field.Store.YES));
-                        document.add(new StringField("album", cursor.getString(2),
-                                Field.Store.YES));
-                        document.add(new StringField("track", cursor.getString(3),
-                                Field.Store.YES));
-                        mLuceneWriter.addDocument(document);
+                        mLuceneWriter.addDocument(createDocument(cursor.getInt(0),
+                                cursor.getString(1), cursor.getString(2), cursor.getString(3)));
                     } while (cursor.moveToNext());
                 }
-                PreferenceUtils.edit().putLong(mLastUpdateStorageKey, System.currentTimeMillis())
+                mLuceneWriter.commit();
+                PreferenceUtils.edit()
+                        .putLong(mRevisionStorageKey, revision)
+                        .putInt(mVersionStorageKey, INDEX_VERSION)
                         .commit();
             } catch (IOException e) {
-                Log.e(TAG, "addToIndex - " + e.getClass() + ": " + e.getLocalizedMessage());
+                Log.e(TAG, "ensureIndex - " + e.getClass() + ": " + e.getLocalizedMessage());
             } finally {
                 if (cursor != null) {
                     cursor.close();
                 }
-                endIndexing();
+            }
+        } else {
+            try {
+                beginIndexing(false);
+                writeChanges(changeSet);
+            } catch (IOException e) {
+                Log.e(TAG, "ensureIndex - " + e.getClass() + ": " + e.getLocalizedMessage());
             }
         }
         updateSearcherManager();
     }
 
+    /**
+     * Apply the given {@link CollectionDb.ChangeSet} to the index by deleting and updating only the
+     * affected {@link Document}s. Afterwards the {@link SearcherManager} is refreshed from the
+     * {@link IndexWriter}, so that the changes become visible without reopening the index.
+     */
+    public synchronized void applyChanges(CollectionDb.ChangeSet changeSet) {
+        if (mLuceneWriter == null) {
+            Log.e(TAG, "applyChanges - IndexWriter not available, rebuilding index");
+            ensureIndex();
+            return;
+        }
+        try {
+            writeChanges(changeSet);
+            if (mSearcherManager != null) {
+                mSearcherManager.maybeRefresh();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "applyChanges - " + e.getClass() + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Write the given {@link CollectionDb.ChangeSet} to the index and remember its revision. Change
+     * sets that the index is already up to date with are being skipped.
+     */
+    private void writeChanges(CollectionDb.ChangeSet changeSet) throws IOException {
+        long indexRevision = PreferenceUtils.getLong(mRevisionStorageKey, -1);
+        if (changeSet.getRevision() >= 0 && changeSet.getRevision() <= indexRevision) {
+            Log.d(TAG, "writeChanges - already up to date with revision "
+                    + changeSet.getRevision());
+            return;
+        }
+        long time = System.currentTimeMillis();
+        if (changeSet.isWiped()) {
+            mLuceneWriter.deleteAll();
+        }
+        for (Integer id : changeSet.getRemovedTrackIds()) {
+            mLuceneWriter.deleteDocuments(new Term(FIELD_KEY, String.valueOf(id)));
+        }
+        for (CollectionDb.ChangeSet.Entry entry : changeSet.getAddedTracks()) {
+            mLuceneWriter.updateDocument(new Term(FIELD_KEY, String.valueOf(entry.id)),
+                    createDocument(entry.id, entry.artist, entry.album, entry.track));
+        }
+        mLuceneWriter.commit();
+        if (changeSet.getRevision() >= 0) {
+            PreferenceUtils.edit().putLong(mRevisionStorageKey, changeSet.getRevision()).commit();
+        }
+        Log.d(TAG, "writeChanges - revision: " + changeSet.getRevision() + ", wiped: "
+                + changeSet.isWiped() + ", added: " + changeSet.getAddedTracks().size()
+                + ", removed: " + changeSet.getRemovedTrackIds().size() + " in "
+                + (System.currentTimeMillis() - time) + "ms");
+    }
+
+    private static Document createDocument(int id, String artist, String album, String track) {
+        String fulltext = artist + " " + album + " " + track;
+        Document document = new Document();
+        document.add(new IntField(FIELD_ID, id, Field.Store.YES));
+        document.add(new StringField(FIELD_KEY, String.valueOf(id), Field.Store.NO));
+        document.add(new TextField(FIELD_ARTIST, artist, Field.Store.NO));
+        document.add(new TextField(FIELD_ARTIST + SUFFIX_EDGE_NGRAM, artist, Field.Store.NO));
+        document.add(new TextField(FIELD_ARTIST + SUFFIX_TRIGRAM, artist, Field.Store.NO));
+        document.add(new TextField(FIELD_ALBUM, album, Field.Store.NO));
+        document.add(new TextField(FIELD_TRACK, track, Field.Store.NO));
+        document.add(new TextField(FIELD_TRACK + SUFFIX_EDGE_NGRAM, track, Field.Store.NO));
+        document.add(new TextField(FIELD_TRACK + SUFFIX_TRIGRAM, track, Field.Store.NO));
+        document.add(new TextField(FIELD_FULLTEXT, fulltext, Field.Store.NO));
+        document.add(new TextField(FIELD_FULLTEXT + SUFFIX_EDGE_NGRAM, fulltext, Field.Store.NO));
+        document.add(new TextField(FIELD_FULLTEXT + SUFFIX_TRIGRAM, fulltext, Field.Store.NO));
+        return document;
+    }
+
     private void updateSearcherManager() {
         Log.d(TAG, "updateSearcherManager");
         try {
             if (mSearcherManager != null) {
                 mSearcherManager.close();
+                mSearcherManager = null;
+            }
+            if (mLuceneWriter != null) {
+                mSearcherManager = new SearcherManager(mLuceneWriter, true, new SearcherFactory());
+            } else {
+                File indexDirFile = new File(mLucenePath);
+                Directory dir = FSDirectory.open(indexDirFile);
+                mSearcherManager = new SearcherManager(dir, new SearcherFactory());
             }
-            File indexDirFile = new File(mLucenePath);
-            Directory dir = FSDirectory.open(indexDirFile);
-            mSearcherManager = new SearcherManager(dir, new SearcherFactory());
         } catch (IOException e) {
             Log.e(TAG, "updateSearcherManager - " + e.getClass() + ": " + e.getLocalizedMessage());
         }
     }
 
-    public void close() {
+    public synchronized void close() {
         Log.d(TAG, "close");
-        endIndexing();
         if (mSearcherManager != null) {
             try {
                 mSearcherManager.close();
@@ -158,51 +339,50 @@ public class FuzzyIndex {
             }
             mSearcherManager = null;
         }
+        endIndexing();
     }
 
     public synchronized List<IndexResult> searchIndex(Query query) {
         List<IndexResult> indexResults = new ArrayList<>();
         try {
-            BooleanQuery qry = new BooleanQuery();
+            BooleanQuery qry;
             if (query.isFullTextQuery()) {
-                String escapedQuery = MultiFieldQueryParser.escape(query.getFullTextQuery());
-                Term term = new Term("track", escapedQuery);
-                org.apache.lucene.search.Query fqry = new FuzzyQuery(term);
-                qry.add(fqry, BooleanClause.Occur.SHOULD);
-                term = new Term("artist", escapedQuery);
-                fqry = new FuzzyQuery(term);
-                qry.add(fqry, BooleanClause.Occur.SHOULD);
-                term = new Term("fulltext", escapedQuery);
-                fqry = new FuzzyQuery(term);
-                qry.add(fqry, BooleanClause.Occur.SHOULD);
-                Log.d(TAG, "searchIndex - fulltext: " + escapedQuery);
+                qry = buildFieldQuery(FIELD_FULLTEXT, query.getFullTextQuery());
+                Log.d(TAG, "searchIndex - fulltext: " + query.getFullTextQuery());
             } else {
-                String escapedTrackName = MultiFieldQueryParser
-                        .escape(query.getBasicTrack().getName());
-                String escapedArtistName = MultiFieldQueryParser
-                        .escape(query.getArtist().getName());
-                Term term = new Term("track", escapedTrackName);
-                org.apache.lucene.search.Query fqry = new FuzzyQuery(term);
-                qry.add(fqry, BooleanClause.Occur.MUST);
-                term = new Term("artist", escapedArtistName);
-                fqry = new FuzzyQuery(term);
-                qry.add(fqry, BooleanClause.Occur.MUST);
-                Log.d(TAG, "searchIndex - non-fulltext: " + escapedArtistName + ", "
-                        + escapedTrackName);
+                qry = new BooleanQuery();
+                BooleanQuery trackQuery =
+                        buildFieldQuery(FIELD_TRACK, query.getBasicTrack().getName());
+                if (!trackQuery.clauses().isEmpty()) {
+                    qry.add(trackQuery, BooleanClause.Occur.MUST);
+                }
+                BooleanQuery artistQuery =
+                        buildFieldQuery(FIELD_ARTIST, query.getArtist().getName());
+                if (!artistQuery.clauses().isEmpty()) {
+                    qry.add(artistQuery, BooleanClause.Occur.MUST);
+                }
+                Log.d(TAG, "searchIndex - non-fulltext: " + query.getArtist().getName() + ", "
+                        + query.getBasicTrack().getName());
+            }
+            if (qry.clauses().isEmpty()) {
+                return indexResults;
             }
             IndexSearcher searcher = mSearcherManager.acquire();
-            long time = System.currentTimeMillis();
-            ScoreDoc[] hits = searcher.search(qry, 50).scoreDocs;
-            Log.d(TAG,
-                    "searchIndex - searching took " + (System.currentTimeMillis() - time) + "ms");
-            for (ScoreDoc doc : hits) {
-                Document document = searcher.doc(doc.doc);
-                IndexResult indexResult = new IndexResult();
-                indexResult.id = document.getField("id").numericValue().intValue();
-                indexResult.score = doc.score;
-                indexResults.add(indexResult);
+            try {
+                long time = System.currentTimeMillis();
+                ScoreDoc[] hits = searcher.search(qry, MAX_RESULTS).scoreDocs;
+                Log.d(TAG, "searchIndex - searching took "
+                        + (System.currentTimeMillis() - time) + "ms");
+                for (ScoreDoc doc : hits) {
+                    Document document = searcher.doc(doc.doc);
+                    IndexResult indexResult = new IndexResult();
+                    indexResult.id = document.getField(FIELD_ID).numericValue().intValue();
+                    indexResult.score = doc.score;
+                    indexResults.add(indexResult);
+                }
+            } finally {
+                mSearcherManager.release(searcher);
             }
-            mSearcherManager.release(searcher);
         } catch (IOException e) {
             Log.e(TAG, "searchIndex - " + e.getClass() + ": " + e.getLocalizedMessage());
         }
@@ -210,7 +390,70 @@ public class FuzzyIndex {
     }
 
     /**
-     * Initializes the IndexWriter to be able to add entries to the index.
+     * Plans the query for the given text on the given field. The text is normalized in the same way
+     * as the indexed values. Every resulting word must match, and the way a word is matched
+     * depends on its length:
+     * <ul>
+     * <li>shorter than {@link #MIN_FUZZY_LENGTH}: by prefix via the edge n-gram field</li>
+     * <li>shorter than {@link #MIN_NGRAM_LENGTH}: by prefix or via a {@link FuzzyQuery} on the
+     * normalized words</li>
+     * <li>otherwise: exactly or via a minimum number of matching trigrams</li>
+     * </ul>
+     */
+    private static BooleanQuery buildFieldQuery(String field, String text) throws IOException {
+        BooleanQuery fieldQuery = new BooleanQuery();
+        for (String word : analyze(field, text)) {
+            BooleanQuery wordQuery = new BooleanQuery();
+            TermQuery exactQuery = new TermQuery(new Term(field, word));
+            exactQuery.setBoost(2f);
+            wordQuery.add(exactQuery, BooleanClause.Occur.SHOULD);
+            if (word.length() < MIN_NGRAM_LENGTH) {
+                wordQuery.add(new TermQuery(new Term(field + SUFFIX_EDGE_NGRAM, word)),
+                        BooleanClause.Occur.SHOULD);
+                if (word.length() >= MIN_FUZZY_LENGTH) {
+                    wordQuery.add(new FuzzyQuery(new Term(field, word), FUZZY_MAX_EDITS,
+                            FUZZY_PREFIX_LENGTH), BooleanClause.Occur.SHOULD);
+                }
+            } else {
+                BooleanQuery trigramQuery = new BooleanQuery();
+                List<String> trigrams = analyze(field + SUFFIX_TRIGRAM, word);
+                for (String trigram : trigrams) {
+                    trigramQuery.add(new TermQuery(new Term(field + SUFFIX_TRIGRAM, trigram)),
+                            BooleanClause.Occur.SHOULD);
+                }
+                trigramQuery.setMinimumNumberShouldMatch(
+                        (int) Math.ceil(trigrams.size() * NGRAM_MIN_MATCH_RATIO));
+                wordQuery.add(trigramQuery, BooleanClause.Occur.SHOULD);
+            }
+            fieldQuery.add(wordQuery, BooleanClause.Occur.MUST);
+        }
+        return fieldQuery;
+    }
+
+    /**
+     * @return the tokens that the {@link FuzzyIndexAnalyzer} produces for the given text on the
+     * given field
+     */
+    private static List<String> analyze(String field, String text) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        TokenStream stream = sAnalyzer.tokenStream(field, text);
+        try {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(term.toString());
+            }
+            stream.end();
+        } finally {
+            stream.close();
+        }
+        return tokens;
+    }
+
+    /**
+     * Initializes the IndexWriter to be able to add entries to the index. The IndexWriter is kept
+     * open afterwards, so that change sets can be applied and near-real-time searchers can be
+     * obtained from it.
      *
      * @param recreate whether or not to wipe any previously existing index
      */
@@ -219,13 +462,12 @@ public class FuzzyIndex {
         endIndexing();
         File indexDirFile = new File(mLucenePath);
         Directory dir = FSDirectory.open(indexDirFile);
-        Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_47);
-        IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_47, analyzer);
+        IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_47, sAnalyzer);
         if (recreate) {
-            PreferenceUtils.edit().putLong(mLastUpdateStorageKey, -2).commit();
+            PreferenceUtils.edit().putLong(mRevisionStorageKey, -1).commit();
             iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
         } else {
-            iwc.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+            iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
         }
         mLuceneWriter = new IndexWriter(dir, iwc);
     }
@@ -23,9 +23,13 @@ import org.tomahawk.libtomahawk.collection.DbCollection;
 import org.tomahawk.libtomahawk.collection.UserCollection;
 import org.tomahawk.libtomahawk.resolver.models.ScriptResolverUrlResult;
 import org.tomahawk.tomahawk_android.TomahawkApp;
+import org.tomahawk.tomahawk_android.utils.CancellationToken;
 import org.tomahawk.tomahawk_android.utils.ThreadManager;
 import org.tomahawk.tomahawk_android.utils.TomahawkRunnable;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -33,9 +37,14 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.greenrobot.event.EventBus;
 
@@ -62,6 +71,14 @@ public class PipeLine {
 
     private static final float FULLTEXT_MINSCORE = 0f;
 
+    // The time in ms during which Queries are being collected before they are dispatched as a batch
+    private static final long BATCH_WINDOW = 50;
+
+    private static final int MAX_BATCH_SIZE = 50;
+
+    // The maximum number of Queries that are being remembered for a single loading plugin
+    private static final int MAX_WAITING_QUERIES = 1000;
+
     private static class Holder {
 
         private static final PipeLine instance = new PipeLine();
@@ -97,23 +114,59 @@ public class PipeLine {
     private final Set<ScriptResolver> mResolvers =
             Collections.newSetFromMap(new ConcurrentHashMap<ScriptResolver, Boolean>());
 
-    private final Set<String> mWaitingUrlLookups =
-            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * The queries and URL lookups that have been started while a plugin was still loading. They
+     * are being passed on to the plugin's resolver once it has been loaded.
+     */
+    private static class WaitingJobs {
+
+        // Maps the Queries to their forceOnlyLocal
+        private final Map<Query, Boolean> mQueries = new ConcurrentHashMap<>();
+
+        private final Set<String> mUrls =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        private void addQuery(Query query, boolean forceOnlyLocal) {
+            // A plugin that never finishes loading mustn't make us remember every Query forever
+            if (mQueries.size() < MAX_WAITING_QUERIES) {
+                mQueries.put(query, forceOnlyLocal);
+            }
+        }
+    }
 
-    private final Set<Query> mWaitingQueries =
-            Collections.newSetFromMap(new ConcurrentHashMap<Query, Boolean>());
+    // Maps the plugins that are still loading to the jobs that are waiting for them
+    private final Map<ScriptAccount, WaitingJobs> mLoadingPlugins = new ConcurrentHashMap<>();
 
-    private final Set<ScriptAccount> mLoadingPlugins =
+    // The lazy ScriptAccounts that haven't been requested yet
+    private final Set<ScriptAccount> mLazyPlugins =
             Collections.newSetFromMap(new ConcurrentHashMap<ScriptAccount, Boolean>());
 
+    private final ResolutionCache mResolutionCache = new ResolutionCache();
+
+    private final AtomicBoolean mFirstPlayableResultReported = new AtomicBoolean(false);
+
+    private final Map<ScriptResolver, Map<Query, CancellationToken>> mPendingBatches =
+            new HashMap<>();
+
+    // Flushes the batches off the main thread. Only the actual WebView call is being posted to the
+    // main thread by the ScriptRuntime.
+    private final Handler mBatchHandler;
+
     private PipeLine() {
+        HandlerThread batchThread = new HandlerThread("pipeline_batches");
+        batchThread.start();
+        mBatchHandler = new Handler(batchThread.getLooper());
         try {
             String[] plugins = TomahawkApp.getContext().getAssets().list("js/resolvers");
             for (String plugin : plugins) {
                 String path = "/js/resolvers/" + plugin;
                 ScriptAccount account = new ScriptAccount(path, false);
                 mScriptAccounts.add(account);
-                mLoadingPlugins.add(account);
+                if (account.isLazy()) {
+                    mLazyPlugins.add(account);
+                } else {
+                    mLoadingPlugins.put(account, new WaitingJobs());
+                }
             }
             String manualResolverDirPath = TomahawkApp.getContext().getFilesDir().getAbsolutePath()
                     + File.separator + "manualresolvers";
@@ -127,7 +180,11 @@ public class PipeLine {
                         if (pluginFile.isDirectory()) {
                             ScriptAccount account = new ScriptAccount(pluginPath, true);
                             mScriptAccounts.add(account);
-                            mLoadingPlugins.add(account);
+                            if (account.isLazy()) {
+                                mLazyPlugins.add(account);
+                            } else {
+                                mLoadingPlugins.put(account, new WaitingJobs());
+                            }
                         }
                     }
                 }
@@ -141,31 +198,70 @@ public class PipeLine {
         return Holder.instance;
     }
 
+    public ResolutionCache getResolutionCache() {
+        return mResolutionCache;
+    }
+
+    /**
+     * Called whenever the given {@link ScriptAccount} has registered its resolver. All queries and
+     * URL lookups that have been started while the plugin was still loading are being passed on to
+     * the new resolver right away, which queues them until it has been initialized. All other
+     * sources have already been asked.
+     */
     public void onPluginLoaded(ScriptAccount account) {
-        mLoadingPlugins.remove(account);
-        if (mLoadingPlugins.isEmpty()) {
-            Log.d(TAG, "All plugins loaded. Resolving "
-                    + mWaitingQueries.size() + " waiting queries. Looking up "
-                    + mWaitingUrlLookups.size() + " waiting URLs.");
-            for (Query query : mWaitingQueries) {
-                resolve(query);
+        WaitingJobs waitingJobs = mLoadingPlugins.remove(account);
+        if (waitingJobs == null) {
+            return;
+        }
+        Log.d(TAG, "Plugin " + account.getName() + " loaded after "
+                + (SystemClock.elapsedRealtime() - TomahawkApp.getStartTime())
+                + "ms. Resolving " + waitingJobs.mQueries.size() + " waiting queries. Looking up "
+                + waitingJobs.mUrls.size() + " waiting URLs.");
+        final ScriptResolver resolver = account.getScriptResolver();
+        if (resolver != null) {
+            for (final Map.Entry<Query, Boolean> entry : waitingJobs.mQueries.entrySet()) {
+                ThreadManager.get().execute(
+                        new TomahawkRunnable(TomahawkRunnable.PRIORITY_IS_RESOLVING) {
+                            @Override
+                            public void run() {
+                                dispatch(resolver, entry.getKey(), entry.getValue(),
+                                        getCancellationToken());
+                            }
+                        }, entry.getKey());
             }
-            mWaitingQueries.clear();
-            for (String url : mWaitingUrlLookups) {
-                lookupUrl(url);
+            for (String url : waitingJobs.mUrls) {
+                resolver.lookupUrl(url);
+            }
+        }
+        if (mLoadingPlugins.isEmpty()) {
+            Log.d(TAG, "All plugins loaded after "
+                    + (SystemClock.elapsedRealtime() - TomahawkApp.getStartTime()) + "ms");
+        }
+    }
+
+    /**
+     * Load all lazy {@link ScriptAccount}s, which haven't been loaded yet. Lazy {@link
+     * ScriptAccount}s only provide a disabled resolver, so they are only being loaded once they
+     * are actually needed, e.g. when the user wants to configure them.
+     */
+    public void loadLazyPlugins() {
+        for (ScriptAccount account : mLazyPlugins) {
+            if (mLazyPlugins.remove(account)) {
+                mLoadingPlugins.put(account, new WaitingJobs());
+                ScriptRuntimePool.get().loadNow(account);
             }
-            mWaitingUrlLookups.clear();
         }
     }
 
     public void addScriptAccount(ScriptAccount scriptAccount) {
         mManualScriptAccounts.add(scriptAccount);
         mScriptAccounts.add(scriptAccount);
-        mLoadingPlugins.add(scriptAccount);
+        mLoadingPlugins.put(scriptAccount, new WaitingJobs());
     }
 
     public void addResolver(ScriptResolver resolver) {
         mResolvers.add(resolver);
+        mResolutionCache.invalidate(ResolutionCache.getSourceId(resolver));
         ResolversChangedEvent event = new ResolversChangedEvent();
         event.mScriptResolver = resolver;
         event.mManuallyAdded = mManualScriptAccounts.contains(resolver.getScriptAccount());
@@ -174,6 +270,7 @@ public class PipeLine {
 
     public void removeResolver(ScriptResolver resolver) {
         mResolvers.remove(resolver);
+        mResolutionCache.invalidate(ResolutionCache.getSourceId(resolver));
         EventBus.getDefault().post(new ResolversChangedEvent());
     }
 
@@ -237,30 +334,125 @@ public class PipeLine {
         final TomahawkRunnable r = new TomahawkRunnable(TomahawkRunnable.PRIORITY_IS_RESOLVING) {
             @Override
             public void run() {
-                if (!mLoadingPlugins.isEmpty()) {
-                    mWaitingQueries.add(q);
-                } else {
-                    for (ScriptResolver resolver : mResolvers) {
-                        if (shouldResolve(resolver, q, forceOnlyLocal)) {
-                            resolver.resolve(q);
-                        }
-                    }
-                    for (Collection collection : CollectionManager.get().getCollections()) {
-                        if (!(collection instanceof UserCollection)
-                                && shouldResolve(collection, q, forceOnlyLocal)) {
-                            ((DbCollection) collection).resolve(q);
-                        }
-                    }
-                }
-                if (shouldResolve(CollectionManager.get().getUserCollection(), q, forceOnlyLocal)) {
-                    CollectionManager.get().getUserCollection().resolve(q);
+                // Remember the query, so that it can be passed on to every plugin that is still
+                // loading
+                for (WaitingJobs waitingJobs : mLoadingPlugins.values()) {
+                    waitingJobs.addQuery(q, forceOnlyLocal);
                 }
+                dispatch(q, forceOnlyLocal, getCancellationToken());
             }
         };
         ThreadManager.get().execute(r, q);
         return q;
     }
 
+    /**
+     * Dispatch the given {@link Query} to every source that is currently available and hasn't
+     * already been asked.
+     *
+     * @param token the {@link CancellationToken} that is being passed on to every source, so that
+     *              the sources can stop resolving once the {@link Query} isn't needed anymore
+     */
+    private void dispatch(Query q, boolean forceOnlyLocal, CancellationToken token) {
+        if (token != null && token.isCancelled()) {
+            return;
+        }
+        UserCollection userCollection = CollectionManager.get().getUserCollection();
+        if (shouldResolve(userCollection, q, forceOnlyLocal)
+                && mResolutionCache.shouldDispatch(q,
+                ResolutionCache.getSourceId(userCollection))) {
+            userCollection.resolve(q, token);
+        }
+        for (Collection collection : CollectionManager.get().getCollections()) {
+            if (!(collection instanceof UserCollection)
+                    && shouldResolve(collection, q, forceOnlyLocal)
+                    && mResolutionCache.shouldDispatch(q,
+                    ResolutionCache.getSourceId(collection))) {
+                ((DbCollection) collection).resolve(q, token);
+            }
+        }
+        for (ScriptResolver resolver : mResolvers) {
+            dispatch(resolver, q, forceOnlyLocal, token);
+        }
+    }
+
+    /**
+     * Dispatch the given {@link Query} to the given {@link ScriptResolver}, if it hasn't already
+     * been asked.
+     */
+    private void dispatch(ScriptResolver resolver, Query q, boolean forceOnlyLocal,
+            CancellationToken token) {
+        if (token != null && token.isCancelled()) {
+            return;
+        }
+        if (shouldResolve(resolver, q, forceOnlyLocal)
+                && mResolutionCache.shouldDispatch(q, ResolutionCache.getSourceId(resolver))) {
+            if (q.isFullTextQuery()) {
+                resolver.resolve(q, token);
+            } else {
+                addToBatch(resolver, q, token);
+            }
+        }
+    }
+
+    /**
+     * Add the given {@link Query} to the pending batch of the given {@link ScriptResolver}. The
+     * batch is being dispatched with a single call as soon as it is full or the batch window has
+     * passed, so that resolving a whole list of {@link Query}s doesn't cost a WebView round-trip
+     * per {@link Query}. {@link Query}s that have been cancelled in the meantime are being left
+     * out.
+     */
+    private void addToBatch(final ScriptResolver resolver, Query query,
+            CancellationToken token) {
+        Map<Query, CancellationToken> fullBatch = null;
+        synchronized (mPendingBatches) {
+            Map<Query, CancellationToken> batch = mPendingBatches.get(resolver);
+            if (batch == null) {
+                batch = new LinkedHashMap<>();
+                mPendingBatches.put(resolver, batch);
+                mBatchHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatchBatch(resolver);
+                    }
+                }, BATCH_WINDOW);
+            }
+            if (token != null) {
+                // Keep the token around as long as the Query is waiting in the batch
+                token.acquire();
+            }
+            CancellationToken previousToken = batch.put(query, token);
+            if (previousToken != null) {
+                previousToken.release();
+            }
+            if (batch.size() >= MAX_BATCH_SIZE) {
+                fullBatch = mPendingBatches.remove(resolver);
+            }
+        }
+        if (fullBatch != null) {
+            resolveBatch(resolver, fullBatch);
+        }
+    }
+
+    private void dispatchBatch(ScriptResolver resolver) {
+        Map<Query, CancellationToken> batch;
+        synchronized (mPendingBatches) {
+            batch = mPendingBatches.remove(resolver);
+        }
+        if (batch != null) {
+            resolveBatch(resolver, batch);
+        }
+    }
+
+    private void resolveBatch(ScriptResolver resolver, Map<Query, CancellationToken> batch) {
+        resolver.resolve(batch);
+        for (CancellationToken token : batch.values()) {
+            if (token != null) {
+                token.release();
+            }
+        }
+    }
+
     /**
      * Method to determine if a given Resolver should resolve the query or not
      */
@@ -338,6 +530,12 @@ public class PipeLine {
                                     }
                                 }
                             }
+                            if (query.isPlayable()
+                                    && mFirstPlayableResultReported.compareAndSet(false, true)) {
+                                Log.d(TAG, "First playable result from " + resolverId
+                                        + " after " + (SystemClock.elapsedRealtime()
+                                        - TomahawkApp.getStartTime()) + "ms");
+                            }
                             if (shouldReport) {
                                 ResultsEvent event = new ResultsEvent();
                                 event.mQuery = query;
@@ -351,14 +549,15 @@ public class PipeLine {
 
     public void lookupUrl(final String url) {
         Log.d(TAG, "lookupUrl - looking up url: " + url);
-        if (!mLoadingPlugins.isEmpty()) {
-            mWaitingUrlLookups.add(url);
-        } else {
-            for (Resolver resolver : mResolvers) {
-                if (resolver instanceof ScriptResolver) {
-                    ScriptResolver scriptResolver = (ScriptResolver) resolver;
-                    scriptResolver.lookupUrl(url);
-                }
+        // Every resolver might be able to look up the url, whether it is enabled or not
+        loadLazyPlugins();
+        for (WaitingJobs waitingJobs : mLoadingPlugins.values()) {
+            waitingJobs.mUrls.add(url);
+        }
+        for (Resolver resolver : mResolvers) {
+            if (resolver instanceof ScriptResolver) {
+                ScriptResolver scriptResolver = (ScriptResolver) resolver;
+                scriptResolver.lookupUrl(url);
             }
         }
     }
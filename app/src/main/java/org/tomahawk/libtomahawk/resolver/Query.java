@@ -59,6 +59,8 @@ public class Query extends Cacheable implements AlphaComparable, ArtistAlphaComp
 
     private boolean mIsFetchedViaHatchet;
 
+    private volatile ResultScoring.CompiledQuery[] mCompiledQueries;
+
     private final ConcurrentSkipListSet<Result> mTrackResults
             = new ConcurrentSkipListSet<>(new ResultComparator());
 
@@ -337,50 +339,93 @@ public class Query extends Cacheable implements AlphaComparable, ArtistAlphaComp
      * This method determines how similar the given result is to the search string.
      */
     public float howSimilar(Result r) {
-        String resultArtistName = ResultScoring.cleanUpString(r.getArtist().getName(), false);
-        String resultAlbumName = ResultScoring.cleanUpString(r.getAlbum().getName(), false);
-        String resultTrackName = ResultScoring.cleanUpString(r.getTrack().getName(), false);
+        ResultScoring.CompiledQuery[] compiledQueries = getCompiledQueries();
+        ResultScoring.Scratch scratch = ResultScoring.getScratch();
+        ResultScoring.Text resultArtistName = scratch.mArtistName;
+        ResultScoring.Text resultAlbumName = scratch.mAlbumName;
+        ResultScoring.Text resultTrackName = scratch.mTrackName;
+        resultArtistName.setCleanedUp(r.getArtist().getName(), false);
+        resultAlbumName.setCleanedUp(r.getAlbum().getName(), false);
+        resultTrackName.setCleanedUp(r.getTrack().getName(), false);
         if (isFullTextQuery()) {
-            String fullTextQuery = ResultScoring.cleanUpString(mFullTextQuery, true);
+            ResultScoring.CompiledQuery fullTextQuery = compiledQueries[0];
             float maxResult = 0f;
-            maxResult = Math.max(maxResult, ResultScoring.calculateScore(
-                    resultTrackName + " " + resultAlbumName + " " + resultArtistName,
-                    fullTextQuery));
-            maxResult = Math.max(maxResult, ResultScoring.calculateScore(
-                    resultTrackName + " " + resultArtistName + " " + resultAlbumName,
-                    fullTextQuery));
-            maxResult = Math.max(maxResult, ResultScoring.calculateScore(
-                    resultArtistName + " " + resultTrackName + " " + resultAlbumName,
-                    fullTextQuery));
-            maxResult = Math.max(maxResult, ResultScoring.calculateScore(
-                    resultArtistName + " " + resultAlbumName + " " + resultTrackName,
-                    fullTextQuery));
-            maxResult = Math.max(maxResult, ResultScoring.calculateScore(
-                    resultAlbumName + " " + resultArtistName + " " + resultTrackName,
-                    fullTextQuery));
-            maxResult = Math.max(maxResult, ResultScoring.calculateScore(
-                    resultAlbumName + " " + resultTrackName + " " + resultArtistName,
-                    fullTextQuery));
+            maxResult = Math.max(maxResult, calculateScore(fullTextQuery, scratch,
+                    resultTrackName, resultAlbumName, resultArtistName));
+            maxResult = Math.max(maxResult, calculateScore(fullTextQuery, scratch,
+                    resultTrackName, resultArtistName, resultAlbumName));
+            maxResult = Math.max(maxResult, calculateScore(fullTextQuery, scratch,
+                    resultArtistName, resultTrackName, resultAlbumName));
+            maxResult = Math.max(maxResult, calculateScore(fullTextQuery, scratch,
+                    resultArtistName, resultAlbumName, resultTrackName));
+            maxResult = Math.max(maxResult, calculateScore(fullTextQuery, scratch,
+                    resultAlbumName, resultArtistName, resultTrackName));
+            maxResult = Math.max(maxResult, calculateScore(fullTextQuery, scratch,
+                    resultAlbumName, resultTrackName, resultArtistName));
             return maxResult;
         } else {
-            String queryArtistName =
-                    ResultScoring.cleanUpString(mBasicTrack.getArtist().getName(), false);
-            float artistScore = ResultScoring.calculateScore(resultArtistName, queryArtistName);
-            String queryTrackName =
-                    ResultScoring.cleanUpString(mBasicTrack.getName(), false);
-            float trackScore = ResultScoring.calculateScore(resultTrackName, queryTrackName);
-            String queryAlbumName =
-                    ResultScoring.cleanUpString(mBasicTrack.getAlbum().getName(), false);
+            float artistScore = ResultScoring.calculateScore(resultArtistName,
+                    compiledQueries[0], scratch);
+            float trackScore = ResultScoring.calculateScore(resultTrackName,
+                    compiledQueries[1], scratch);
+            ResultScoring.CompiledQuery queryAlbumName = compiledQueries[2];
             float albumScore;
             if (queryAlbumName.isEmpty()) {
                 return (artistScore + trackScore) / 2;
             } else {
-                albumScore = ResultScoring.calculateScore(resultAlbumName, queryAlbumName);
+                albumScore = ResultScoring.calculateScore(resultAlbumName, queryAlbumName,
+                        scratch);
                 return (artistScore * 3 + albumScore + trackScore * 4) / 8;
             }
         }
     }
 
+    /**
+     * Scores the concatenation "first second third" against the given {@link
+     * ResultScoring.CompiledQuery}.
+     */
+    private static float calculateScore(ResultScoring.CompiledQuery query,
+            ResultScoring.Scratch scratch, ResultScoring.Text first, ResultScoring.Text second,
+            ResultScoring.Text third) {
+        ResultScoring.Text combined = scratch.mCombined;
+        combined.clear();
+        combined.append(first);
+        combined.append(' ');
+        combined.append(second);
+        combined.append(' ');
+        combined.append(third);
+        return ResultScoring.calculateScore(combined, query, scratch);
+    }
+
+    /**
+     * @return the cleaned up and compiled query Strings, which are being lazily created once and
+     * then reused for every {@link Result} that is being scored against this {@link Query}. For a
+     * fulltext query this only contains the fulltext query, otherwise it contains the artist,
+     * track and album name (in that order).
+     */
+    private ResultScoring.CompiledQuery[] getCompiledQueries() {
+        ResultScoring.CompiledQuery[] compiledQueries = mCompiledQueries;
+        if (compiledQueries == null) {
+            if (isFullTextQuery()) {
+                compiledQueries = new ResultScoring.CompiledQuery[]{
+                        new ResultScoring.CompiledQuery(
+                                ResultScoring.cleanUpString(mFullTextQuery, true))
+                };
+            } else {
+                compiledQueries = new ResultScoring.CompiledQuery[]{
+                        new ResultScoring.CompiledQuery(ResultScoring.cleanUpString(
+                                mBasicTrack.getArtist().getName(), false)),
+                        new ResultScoring.CompiledQuery(ResultScoring.cleanUpString(
+                                mBasicTrack.getName(), false)),
+                        new ResultScoring.CompiledQuery(ResultScoring.cleanUpString(
+                                mBasicTrack.getAlbum().getName(), false))
+                };
+            }
+            mCompiledQueries = compiledQueries;
+        }
+        return compiledQueries;
+    }
+
     public String getName() {
         if (isFullTextQuery()) {
             return mFullTextQuery;
@@ -0,0 +1,209 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.resolver;
+
+import org.tomahawk.libtomahawk.collection.Collection;
+import org.tomahawk.tomahawk_android.TomahawkApp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of which {@link Query} has already been dispatched to which resolving source (a
+ * {@link ScriptResolver} or a {@link Collection}). Since the {@link Result}s are being stored in the
+ * {@link Query} itself, a source that has already answered a {@link Query} doesn't have to be
+ * asked again until its TTL has expired. A source that is still busy resolving the same {@link
+ * Query} isn't asked a second time either.
+ */
+public class ResolutionCache {
+
+    private final static String TAG = ResolutionCache.class.getSimpleName();
+
+    private static final long DEFAULT_TTL = 15 * 60 * 1000;
+
+    private static final long SUBSCRIPTION_TTL = 30 * 60 * 1000;
+
+    // Collections are explicitly invalidated whenever their content changes
+    private static final long COLLECTION_TTL = 60 * 60 * 1000;
+
+    // After this time a source that hasn't answered yet is being asked again
+    private static final long IN_FLIGHT_TIMEOUT = 30 * 1000;
+
+    private static final String COLLECTION_SOURCE_PREFIX = "collection_";
+
+    private static final int STATS_LOG_INTERVAL = 500;
+
+    private static final int SWEEP_INTERVAL = 1000;
+
+    private static class Entry {
+
+        private final String mSourceId;
+
+        private final boolean mAnswered;
+
+        private final long mTimeStamp;
+
+        private Entry(String sourceId, boolean answered, long timeStamp) {
+            mSourceId = sourceId;
+            mAnswered = answered;
+            mTimeStamp = timeStamp;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Long> mTtls = new ConcurrentHashMap<>();
+
+    private final AtomicLong mHits = new AtomicLong();
+
+    private final AtomicLong mMisses = new AtomicLong();
+
+    private final AtomicLong mCoalesced = new AtomicLong();
+
+    private final AtomicLong mRequests = new AtomicLong();
+
+    public ResolutionCache() {
+        mTtls.put(TomahawkApp.PLUGINNAME_SPOTIFY, SUBSCRIPTION_TTL);
+        mTtls.put(TomahawkApp.PLUGINNAME_DEEZER, SUBSCRIPTION_TTL);
+        mTtls.put(TomahawkApp.PLUGINNAME_BEATSMUSIC, SUBSCRIPTION_TTL);
+        mTtls.put(TomahawkApp.PLUGINNAME_GMUSIC, SUBSCRIPTION_TTL);
+    }
+
+    /**
+     * @return the id with which the given {@link Collection} is being tracked in this cache
+     */
+    public static String getSourceId(Collection collection) {
+        return COLLECTION_SOURCE_PREFIX + collection.getId();
+    }
+
+    /**
+     * @return the id with which the given {@link Resolver} is being tracked in this cache
+     */
+    public static String getSourceId(Resolver resolver) {
+        return resolver.getId();
+    }
+
+    private long getTtl(String sourceId) {
+        Long ttl = mTtls.get(sourceId);
+        if (ttl != null) {
+            return ttl;
+        }
+        return sourceId.startsWith(COLLECTION_SOURCE_PREFIX) ? COLLECTION_TTL : DEFAULT_TTL;
+    }
+
+    private static String getKey(Query query, String sourceId) {
+        return query.getCacheKey() + "♠" + sourceId;
+    }
+
+    /**
+     * Determine whether or not the given {@link Query} should be dispatched to the source with the
+     * given id. If so, the {@link Query} is being marked as in-flight for that source, so that
+     * concurrent requests for the same pair are coalesced.
+     *
+     * @return true, if the caller should dispatch the {@link Query} to the source. false, if the
+     * source has already answered or is currently resolving the {@link Query}.
+     */
+    public boolean shouldDispatch(Query query, String sourceId) {
+        String key = getKey(query, sourceId);
+        long now = SystemClock.elapsedRealtime();
+        countRequest();
+        while (true) {
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                if (entry.mAnswered && now - entry.mTimeStamp < getTtl(sourceId)) {
+                    mHits.incrementAndGet();
+                    return false;
+                }
+                if (!entry.mAnswered && now - entry.mTimeStamp < IN_FLIGHT_TIMEOUT) {
+                    mCoalesced.incrementAndGet();
+                    return false;
+                }
+            }
+            Entry inFlight = new Entry(sourceId, false, now);
+            if (entry == null ? mEntries.putIfAbsent(key, inFlight) == null
+                    : mEntries.replace(key, entry, inFlight)) {
+                mMisses.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Mark the given {@link Query} as answered by the source with the given id.
+     */
+    public void onAnswered(Query query, String sourceId) {
+        mEntries.put(getKey(query, sourceId),
+                new Entry(sourceId, true, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Forget everything about the given {@link Query} and the source with the given id, so that the
+     * next request is being dispatched again. Should be called if resolving has failed.
+     */
+    public void invalidate(Query query, String sourceId) {
+        mEntries.remove(getKey(query, sourceId));
+    }
+
+    /**
+     * Forget all answers of the source with the given id. Should be called whenever the content of
+     * that source has changed.
+     */
+    public void invalidate(String sourceId) {
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            if (it.next().mSourceId.equals(sourceId)) {
+                it.remove();
+            }
+        }
+    }
+
+    private void countRequest() {
+        long requests = mRequests.incrementAndGet();
+        if (requests % SWEEP_INTERVAL == 0) {
+            sweep();
+        }
+        if (requests % STATS_LOG_INTERVAL == 0) {
+            Log.d(TAG, toString());
+        }
+    }
+
+    /**
+     * Remove all entries that have expired, so that the cache doesn't grow forever.
+     */
+    private void sweep() {
+        long now = SystemClock.elapsedRealtime();
+        for (Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+                it.hasNext(); ) {
+            Entry entry = it.next().getValue();
+            long maxAge = entry.mAnswered ? getTtl(entry.mSourceId) : IN_FLIGHT_TIMEOUT;
+            if (now - entry.mTimeStamp >= maxAge) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "(hits: " + mHits.get() + ", misses: " + mMisses.get() + ", coalesced: "
+                + mCoalesced.get() + ", entries: " + mEntries.size() + ")";
+    }
+}
@@ -24,16 +24,169 @@ public class ResultScoring {
 
     private static final int ERROR_TOLERANCE_RATIO = 5;
 
+    private static final int MAX_PATTERN_LENGTH = 32; // bitap only allows a max of 32 chars per run
+
     private static final char[] sDelimiters =
             new char[]{'(', '[', '{', ' ', '\n', '-', '/', '\\', ' ', ')', '[', '}'};
 
+    private static final ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * A query String that has been split up and compiled into {@link Bitap.Pattern}s once. It can
+     * then be scored against any number of results without rebuilding the Bitap alphabets.
+     * Instances are immutable and can be shared between threads.
+     */
+    public static class CompiledQuery {
+
+        private final Bitap.Pattern[] mParts;
+
+        private final int[] mTolerances;
+
+        private final boolean mIsEmpty;
+
+        /**
+         * @param query the already cleaned up query String (see {@link #cleanUpString(String,
+         *              boolean)})
+         */
+        public CompiledQuery(String query) {
+            List<String> queryParts = splitUp(query, MAX_PATTERN_LENGTH);
+            mParts = new Bitap.Pattern[queryParts.size()];
+            mTolerances = new int[queryParts.size()];
+            for (int i = 0; i < queryParts.size(); i++) {
+                String queryPart = queryParts.get(i);
+                mParts[i] = new Bitap.Pattern(queryPart);
+                // how many errors do we allow
+                mTolerances[i] = queryPart.length() / ERROR_TOLERANCE_RATIO;
+            }
+            mIsEmpty = query.isEmpty();
+        }
+
+        public boolean isEmpty() {
+            return mIsEmpty;
+        }
+    }
+
+    /**
+     * A reusable char buffer, which holds a cleaned up String or a concatenation of them.
+     */
+    public static class Text {
+
+        private char[] mChars = new char[64];
+
+        private int mLength;
+
+        public int length() {
+            return mLength;
+        }
+
+        public void clear() {
+            mLength = 0;
+        }
+
+        /**
+         * Replace the content of this {@link Text} with the cleaned up version of the given String.
+         * Equivalent to {@link #cleanUpString(String, boolean)}.
+         */
+        public void setCleanedUp(String in, boolean replaceArticle) {
+            ensureCapacity(in.length());
+            int start = 0;
+            int end = in.length();
+            // trim
+            while (start < end && Character.toLowerCase(in.charAt(start)) <= ' ') {
+                start++;
+            }
+            while (end > start && Character.toLowerCase(in.charAt(end - 1)) <= ' ') {
+                end--;
+            }
+            mLength = 0;
+            int i = start;
+            while (i < end) {
+                char c = Character.toLowerCase(in.charAt(i));
+                if (isWhitespace(c)) {
+                    // replace every run of at least two whitespace chars with a single space
+                    int runEnd = i + 1;
+                    while (runEnd < end && isWhitespace(Character.toLowerCase(in.charAt(runEnd)))) {
+                        runEnd++;
+                    }
+                    mChars[mLength++] = runEnd - i > 1 ? ' ' : c;
+                    i = runEnd;
+                } else {
+                    mChars[mLength++] = c;
+                    i++;
+                }
+            }
+            if (replaceArticle && mLength >= 4 && mChars[0] == 't' && mChars[1] == 'h'
+                    && mChars[2] == 'e' && mChars[3] == ' ') {
+                System.arraycopy(mChars, 4, mChars, 0, mLength - 4);
+                mLength -= 4;
+            }
+        }
+
+        public void append(Text text) {
+            ensureCapacity(mLength + text.mLength);
+            System.arraycopy(text.mChars, 0, mChars, mLength, text.mLength);
+            mLength += text.mLength;
+        }
+
+        public void append(char c) {
+            ensureCapacity(mLength + 1);
+            mChars[mLength++] = c;
+        }
+
+        private void ensureCapacity(int size) {
+            if (mChars.length < size) {
+                char[] chars = new char[Math.max(size, mChars.length * 2)];
+                System.arraycopy(mChars, 0, chars, 0, mLength);
+                mChars = chars;
+            }
+        }
+
+        /**
+         * Same definition of whitespace as the regex character class "\\s"
+         */
+        private static boolean isWhitespace(char c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+        }
+    }
+
+    /**
+     * Per-thread buffers that are being reused when scoring results against a {@link
+     * CompiledQuery}.
+     */
+    public static class Scratch {
+
+        public final Text mArtistName = new Text();
+
+        public final Text mAlbumName = new Text();
+
+        public final Text mTrackName = new Text();
+
+        public final Text mCombined = new Text();
+
+        private final Bitap.Scratch mBitapScratch = new Bitap.Scratch();
+
+        private final Bitap.Result mBitapResult = new Bitap.Result();
+    }
+
+    /**
+     * @return the {@link Scratch} buffers of the current thread
+     */
+    public static Scratch getScratch() {
+        return sScratch.get();
+    }
+
     /**
      * This method determines how similar the given result is to the search string.
      */
     public static float calculateScore(String result, String query) {
         float totalScore = 0f;
         int lastIndex = 0;
-        List<String> queryParts = splitUp(query, 32); // bitap only allows a max of 32 chars per run
+        List<String> queryParts = splitUp(query, MAX_PATTERN_LENGTH);
         for (String queryPart : queryParts) {
             // how many errors do we allow
             int tolerance = queryPart.length() / ERROR_TOLERANCE_RATIO;
@@ -65,6 +218,46 @@ public class ResultScoring {
         return totalScore;
     }
 
+    /**
+     * This method determines how similar the given result is to the given {@link CompiledQuery}.
+     * Produces the same score as {@link #calculateScore(String, String)}, but doesn't allocate
+     * anything.
+     */
+    public static float calculateScore(Text result, CompiledQuery query, Scratch scratch) {
+        float totalScore = 0f;
+        int lastIndex = 0;
+        int resultLength = result.mLength;
+        Bitap.Result r = scratch.mBitapResult;
+        for (int i = 0; i < query.mParts.length; i++) {
+            Bitap.Pattern queryPart = query.mParts[i];
+            int tolerance = query.mTolerances[i];
+            Bitap.indexOf(result.mChars, lastIndex, resultLength - lastIndex, queryPart,
+                    tolerance, scratch.mBitapScratch, r);
+            if (r.index >= 0) {
+                float errorPenalty = 0f;
+                if (tolerance > 0) {
+                    // worst case 30% score penalty
+                    errorPenalty = (float) r.errors / tolerance * .3f;
+                }
+                float patternRatio;
+                float denominator = (float) Math.max(resultLength, queryPart.length());
+                if (denominator > 0) {
+                    patternRatio = (float) Math.min(resultLength, queryPart.length()) / denominator;
+                } else {
+                    // both query and result are empty Strings
+                    patternRatio = 1f;
+                }
+                totalScore += patternRatio * (1f - errorPenalty); // apply the error penalty
+                lastIndex = r.index + queryPart.length();
+                if (lastIndex >= resultLength) {
+                    // nothing to search for anymore
+                    break;
+                }
+            }
+        }
+        return totalScore;
+    }
+
     private static List<String> splitUp(String s, int maxLength) {
         List<String> parts = new ArrayList<>();
         if (s.length() <= maxLength) {
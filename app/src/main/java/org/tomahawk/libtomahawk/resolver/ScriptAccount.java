@@ -19,6 +19,7 @@ package org.tomahawk.libtomahawk.resolver;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.google.gson.reflect.TypeToken;
 
 import com.squareup.okhttp.Response;
@@ -44,15 +45,7 @@ import org.tomahawk.tomahawk_android.activities.TomahawkMainActivity;
 import org.tomahawk.tomahawk_android.utils.IdGenerator;
 import org.tomahawk.tomahawk_android.utils.PreferenceUtils;
 
-import android.annotation.SuppressLint;
-import android.content.Context;
-import android.os.Build;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
-import android.webkit.CookieManager;
-import android.webkit.WebSettings;
-import android.webkit.WebView;
 import android.widget.ImageView;
 
 import java.io.File;
@@ -60,12 +53,16 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.greenrobot.event.EventBus;
 
-public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyListener {
+public class ScriptAccount {
 
     private final static String TAG = ScriptAccount.class.getSimpleName();
 
@@ -75,15 +72,43 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
 
     public final static String ENABLED_KEY = "_enabled_";
 
+    public final static String PLUGIN_TYPES = "plugin_types";
+
+    public final static int LOAD_PRIORITY_COLLECTION = 0;
+
+    public final static int LOAD_PRIORITY_SUBSCRIPTION = 1;
+
+    public final static int LOAD_PRIORITY_DEFAULT = 2;
+
+    private final static String HEAP_SIZE_SCRIPT = "(window.performance && performance.memory"
+            + " ? performance.memory.usedJSHeapSize : -1)";
+
     private String mPath;
 
     private boolean mManuallyInstalled;
 
     private String mName;
 
-    private WebView mWebView;
+    private boolean mLazy;
+
+    private volatile ScriptRuntime mRuntime;
+
+    private volatile String mContextId;
+
+    private long mLoadStartTime;
+
+    private long mLoadTime = -1;
 
-    private HashMap<String, ScriptJob> mJobs = new HashMap<>();
+    private long mHeapDelta = -1;
+
+    private final Map<String, ScriptJob> mJobs = new ConcurrentHashMap<>();
+
+    private volatile ScriptMessageChannel mMessageChannel;
+
+    // The total time that has been spent on the main thread to evaluate JavaScript
+    private final AtomicLong mMainThreadNanos = new AtomicLong();
+
+    private final ScriptResponseStore mResponseStore = new ScriptResponseStore();
 
     private HashMap<String, ScriptObject> mObjects = new HashMap<>();
 
@@ -106,7 +131,6 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
 
     private ScriptResolverMetaData mMetaData;
 
-    @SuppressLint({"AddJavascriptInterface", "SetJavaScriptEnabled"})
     public ScriptAccount(String path, boolean manuallyInstalled) {
         String prefix = manuallyInstalled ? "file://" : "file:///android_asset";
         mPath = prefix + path;
@@ -143,85 +167,104 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
             }
         }
 
-        CookieManager.setAcceptFileSchemeCookies(true);
+        mLazy = canBeLoadedLazily();
+        ScriptRuntimePool.get().load(this, mLazy);
+    }
 
-        mWebView = new WebView(TomahawkApp.getContext());
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            CookieManager.getInstance().setAcceptThirdPartyCookies(mWebView, true);
-        }
-        WebSettings settings = mWebView.getSettings();
-        settings.setJavaScriptEnabled(true);
-        settings.setDatabaseEnabled(true);
-        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.JELLY_BEAN_MR2) {
-            //noinspection deprecation
-            settings.setDatabasePath(
-                    TomahawkApp.getContext().getDir("databases", Context.MODE_PRIVATE)
-                            .getPath());
+    /**
+     * @return the html of the context in which this {@link ScriptAccount}'s scripts are being
+     * loaded
+     */
+    String getContextHtml(String scriptInterfaceName) {
+        String data = "<!DOCTYPE html>" + "<html>"
+                + "<head><title>" + mName + "</title></head>"
+                + "<body>"
+                + "<script type=\"text/javascript\">"
+                + "var Tomahawk = window['" + scriptInterfaceName + "']"
+                + " || parent['" + scriptInterfaceName + "'];"
+                + "var heapSizeBefore = " + HEAP_SIZE_SCRIPT + ";"
+                + "</script>"
+                + "<script src=\"file:///android_asset/js/rsvp-latest.min.js"
+                + "\" type=\"text/javascript\"></script>"
+                + "<script src=\"file:///android_asset/js/cryptojs-core.js"
+                + "\" type=\"text/javascript\"></script>";
+        if (mMetaData.manifest.scripts != null) {
+            for (String scriptPath : mMetaData.manifest.scripts) {
+                data += "<script src=\"" + mPath + "/content/" + scriptPath
+                        + "\" type=\"text/javascript\"></script>";
+            }
         }
-        settings.setDomStorageEnabled(true);
-        mWebView.setWebChromeClient(new TomahawkWebChromeClient());
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-            mWebView.getSettings().setAllowUniversalAccessFromFileURLs(true);
+        try {
+            String[] cryptoJsScripts =
+                    TomahawkApp.getContext().getAssets().list("js/cryptojs");
+            for (String scriptPath : cryptoJsScripts) {
+                data += "<script src=\"file:///android_asset/js/cryptojs/"
+                        + scriptPath
+                        + "\" type=\"text/javascript\"></script>";
+            }
+        } catch (IOException e) {
+            Log.e(TAG,
+                    "ScriptResolver: " + e.getClass() + ": " + e.getLocalizedMessage());
         }
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            WebView.setWebContentsDebuggingEnabled(true);
+        data += "<script src=\"file:///android_asset/js/tomahawk_android_pre.js"
+                + "\" type=\"text/javascript\"></script>"
+                + "<script src=\"file:///android_asset/js/tomahawk.js"
+                + "\" type=\"text/javascript\"></script>"
+                + "<script src=\"file:///android_asset/js/tomahawk-infosystem.js"
+                + "\" type=\"text/javascript\"></script>"
+                + "<script src=\"file:///android_asset/js/tomahawk_android_post.js"
+                + "\" type=\"text/javascript\"></script>"
+                + "<script src=\"" + mPath + "/content/" + mMetaData.manifest.main
+                + "\" type=\"text/javascript\"></script>"
+                + "<script type=\"text/javascript\">"
+                + "Tomahawk.onContextLoaded(JSON.stringify({"
+                + "heapSizeBefore: heapSizeBefore, heapSizeAfter: " + HEAP_SIZE_SCRIPT + "}));"
+                + "</script>"
+                + "</body></html>";
+        return data;
+    }
+
+    /**
+     * Called by the {@link ScriptRuntime} on the main thread, when this {@link ScriptAccount} has
+     * been assigned to it.
+     */
+    void onAttached(ScriptRuntime runtime, String contextId) {
+        mContextId = contextId;
+        mRuntime = runtime;
+        if (ScriptMessageChannel.isSupported()) {
+            mMessageChannel = new ScriptMessageChannel(runtime, this);
         }
+    }
 
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
-            @Override
-            public void run() {
-                //initalize WebView
-                String data = "<!DOCTYPE html>" + "<html>"
-                        + "<head><title>" + mName + "</title></head>"
-                        + "<body>"
-                        + "<script src=\"file:///android_asset/js/rsvp-latest.min.js"
-                        + "\" type=\"text/javascript\"></script>"
-                        + "<script src=\"file:///android_asset/js/cryptojs-core.js"
-                        + "\" type=\"text/javascript\"></script>";
-                if (mMetaData.manifest.scripts != null) {
-                    for (String scriptPath : mMetaData.manifest.scripts) {
-                        data += "<script src=\"" + mPath + "/content/" + scriptPath
-                                + "\" type=\"text/javascript\"></script>";
-                    }
-                }
-                try {
-                    String[] cryptoJsScripts =
-                            TomahawkApp.getContext().getAssets().list("js/cryptojs");
-                    for (String scriptPath : cryptoJsScripts) {
-                        data += "<script src=\"file:///android_asset/js/cryptojs/"
-                                + scriptPath
-                                + "\" type=\"text/javascript\"></script>";
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG,
-                            "ScriptResolver: " + e.getClass() + ": " + e.getLocalizedMessage());
-                }
-                data += "<script src=\"file:///android_asset/js/tomahawk_android_pre.js"
-                        + "\" type=\"text/javascript\"></script>"
-                        + "<script src=\"file:///android_asset/js/tomahawk.js"
-                        + "\" type=\"text/javascript\"></script>"
-                        + "<script src=\"file:///android_asset/js/tomahawk-infosystem.js"
-                        + "\" type=\"text/javascript\"></script>"
-                        + "<script src=\"file:///android_asset/js/tomahawk_android_post.js"
-                        + "\" type=\"text/javascript\"></script>"
-                        + "<script src=\"" + mPath + "/content/" + mMetaData.manifest.main
-                        + "\" type=\"text/javascript\"></script>"
-                        + "</body></html>";
-                mWebView.setWebViewClient(new ScriptWebViewClient(ScriptAccount.this));
-                mWebView.addJavascriptInterface(new ScriptInterface(ScriptAccount.this),
-                        SCRIPT_INTERFACE_NAME);
-                mWebView.loadDataWithBaseURL("file:///android_asset/test.html", data,
-                        "text/html", null, null);
-            }
-        });
+    /**
+     * Called by the {@link ScriptRuntime} on the main thread, right before the context of this
+     * {@link ScriptAccount} is being loaded.
+     */
+    void onLoadStarted() {
+        mLoadStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Called through the {@link ScriptInterface} as soon as all scripts of this {@link
+     * ScriptAccount} have been loaded.
+     *
+     * @param stats the JsonObject containing the JS heap size before and after loading the
+     *              scripts. If the WebView doesn't support performance.memory, both sizes are -1.
+     */
+    public void onContextLoaded(JsonObject stats) {
+        mLoadTime = System.currentTimeMillis() - mLoadStartTime;
+        long heapSizeBefore = stats.get("heapSizeBefore").getAsLong();
+        long heapSizeAfter = stats.get("heapSizeAfter").getAsLong();
+        mHeapDelta = heapSizeBefore >= 0 ? heapSizeAfter - heapSizeBefore : -1;
+        mRuntime.onContextLoaded(this);
+        onContextReady();
     }
 
     /**
-     * This method is being called, when the {@link ScriptWebViewClient} has completely loaded the
-     * given .js script.
+     * This method is being called, when all scripts of this {@link ScriptAccount} have been
+     * loaded.
      */
-    @Override
-    public void onWebViewClientReady() {
+    private void onContextReady() {
         //TODO: Remove this hack once we can get rid of Tomahawk.resolver.instance completely
         evaluateJavaScript("Tomahawk.resolver.instance = Tomahawk.resolver.instance "
                 + "|| Tomahawk.extend(Tomahawk.Resolver, {});"
@@ -229,6 +272,99 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
                 + "', Tomahawk.resolver.instance);");
     }
 
+    public String getContextId() {
+        return mContextId;
+    }
+
+    /**
+     * @return the time in ms it took to load all scripts of this {@link ScriptAccount}
+     */
+    public long getLoadTime() {
+        return mLoadTime;
+    }
+
+    /**
+     * @return the number of bytes the JS heap has grown while loading the scripts of this {@link
+     * ScriptAccount}, -1 if unknown
+     */
+    public long getHeapDelta() {
+        return mHeapDelta;
+    }
+
+    /**
+     * Loading this {@link ScriptAccount} can be deferred, if the last time it has been loaded it
+     * only registered a resolver and that resolver is disabled.
+     */
+    private boolean canBeLoadedLazily() {
+        Set<String> pluginTypes = PreferenceUtils.getStringSet(mName + "_" + PLUGIN_TYPES);
+        if (pluginTypes == null || pluginTypes.isEmpty()) {
+            return false;
+        }
+        for (String type : pluginTypes) {
+            if (!ScriptObject.TYPE_RESOLVER.equals(type)) {
+                return false;
+            }
+        }
+        return !isResolverEnabled();
+    }
+
+    /**
+     * @return whether or not this {@link ScriptAccount} is only being loaded once it is being
+     * requested via {@link PipeLine#loadLazyPlugins()}
+     */
+    public boolean isLazy() {
+        return mLazy;
+    }
+
+    /**
+     * @return the priority with which this {@link ScriptAccount} is being loaded. Plugins that
+     * provide a collection come first, then enabled subscription resolvers and then the rest. Lower
+     * values mean higher priority.
+     */
+    public int getLoadPriority() {
+        Set<String> pluginTypes = PreferenceUtils.getStringSet(mName + "_" + PLUGIN_TYPES);
+        if (pluginTypes != null && pluginTypes.contains(ScriptObject.TYPE_COLLECTION)) {
+            return LOAD_PRIORITY_COLLECTION;
+        }
+        if (isResolverEnabled() && (TomahawkApp.PLUGINNAME_SPOTIFY.equals(mName)
+                || TomahawkApp.PLUGINNAME_DEEZER.equals(mName)
+                || TomahawkApp.PLUGINNAME_BEATSMUSIC.equals(mName)
+                || TomahawkApp.PLUGINNAME_GMUSIC.equals(mName))) {
+            return LOAD_PRIORITY_SUBSCRIPTION;
+        }
+        return LOAD_PRIORITY_DEFAULT;
+    }
+
+    /**
+     * @return whether or not the resolver of this {@link ScriptAccount} has been enabled
+     */
+    public boolean isResolverEnabled() {
+        Object enabled = getConfig().get(ENABLED_KEY);
+        if (enabled != null) {
+            return (Boolean) enabled;
+        }
+        // Enable soundcloud and jamendo by default
+        return TomahawkApp.PLUGINNAME_JAMENDO.equals(mName)
+                || TomahawkApp.PLUGINNAME_SOUNDCLOUD.equals(mName);
+    }
+
+    /**
+     * Remember which types of plugins this {@link ScriptAccount} has registered, so that we can
+     * decide whether or not it can be loaded lazily next time.
+     */
+    private void storePluginType(String type) {
+        String key = mName + "_" + PLUGIN_TYPES;
+        Set<String> pluginTypes = PreferenceUtils.getStringSet(key);
+        if (pluginTypes == null || !pluginTypes.contains(type)) {
+            Set<String> newPluginTypes = new HashSet<>();
+            if (pluginTypes != null) {
+                newPluginTypes.addAll(pluginTypes);
+            }
+            newPluginTypes.add(type);
+            PreferenceUtils.edit().putStringSet(key, newPluginTypes).apply();
+        }
+    }
+
     public ScriptResolver getScriptResolver() {
         return mScriptResolver;
     }
@@ -323,25 +459,68 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
     public void startJob(final ScriptJob job) {
         final String requestId = IdGenerator.getSessionUniqueStringId();
         mJobs.put(requestId, job);
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
-            @Override
-            public void run() {
-                evaluateJavaScript("Tomahawk.PluginManager.invoke("
-                        + "'" + requestId + "',"
-                        + "'" + job.getScriptObject().getId() + "',"
-                        + "'" + job.getMethodName() + "',"
-                        + GsonHelper.get().toJson(job.getArguments()) + ")");
-            }
-        });
+        final Map<String, Object> arguments;
+        if (job.isChunked()) {
+            // Chunks have to be reported with the requestId, so the JS side needs to know it
+            arguments = job.getArguments() != null
+                    ? new HashMap<>(job.getArguments()) : new HashMap<String, Object>();
+            arguments.put("requestId", requestId);
+        } else {
+            arguments = job.getArguments();
+        }
+        JsonObject message = new JsonObject();
+        message.addProperty("type", ScriptMessageChannel.TYPE_INVOKE);
+        message.addProperty("requestId", requestId);
+        message.addProperty("objectId", job.getScriptObject().getId());
+        message.addProperty("methodName", job.getMethodName());
+        message.add("params", GsonHelper.get().toJsonTree(arguments));
+        sendMessage(message);
     }
 
-    private void evaluateJavaScript(final String code) {
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
-            @Override
-            public void run() {
-                mWebView.loadUrl("javascript: " + code);
-            }
-        });
+    /**
+     * Send the given message to the JS side, where it is being dispatched by
+     * Tomahawk.MessageChannel. If possible the message is being pulled through the {@link
+     * ScriptMessageChannel}. Otherwise (API < 19) it is being inlined into a "javascript:" URL.
+     */
+    private void sendMessage(JsonObject message) {
+        if (mMessageChannel != null) {
+            mMessageChannel.send(message);
+        } else {
+            evaluateJavaScript("Tomahawk.MessageChannel.dispatch("
+                    + GsonHelper.get().toJson(message) + ");");
+        }
+    }
+
+    /**
+     * @return a serialized JSON array containing all messages that are waiting to be pulled by the
+     * JS side
+     */
+    public String takeMessages() {
+        return mMessageChannel != null ? mMessageChannel.takeMessages() : "[]";
+    }
+
+    private void evaluateJavaScript(String code) {
+        if (mRuntime != null) {
+            mRuntime.evaluateJavaScript(this, code);
+        } else {
+            Log.e(TAG, "evaluateJavaScript - ScriptAccount:" + mName + " hasn't been loaded yet");
+        }
+    }
+
+    /**
+     * Called by the {@link ScriptRuntime} whenever it has spent the given time on the main thread
+     * to evaluate JavaScript in the context of this {@link ScriptAccount}.
+     */
+    void onMainThreadTimeSpent(long nanos) {
+        mMainThreadNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return the total time in nanoseconds that has been spent on the main thread to evaluate
+     * JavaScript in this {@link ScriptAccount}
+     */
+    public long getMainThreadNanos() {
+        return mMainThreadNanos.get();
     }
 
     public void reportScriptJobResult(JsonObject result) {
@@ -351,7 +530,7 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
             requestId = result.get("requestId").getAsString();
         }
         if (requestId != null && !requestId.isEmpty()) {
-            ScriptJob job = mJobs.get(requestId);
+            ScriptJob job = mJobs.remove(requestId);
             if (job != null) {
                 JsonElement errorNode = result.get("error");
                 if (errorNode == null) {
@@ -371,12 +550,28 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
         }
     }
 
+    public void reportScriptJobChunk(JsonObject chunk) {
+        JsonElement requestIdNode = chunk.get("requestId");
+        String requestId = null;
+        if (requestIdNode != null && requestIdNode.isJsonPrimitive()) {
+            requestId = requestIdNode.getAsString();
+        }
+        ScriptJob job = requestId != null ? mJobs.get(requestId) : null;
+        if (job != null) {
+            job.reportChunk(chunk.get("data"));
+        } else {
+            Log.e(TAG, "reportScriptJobChunk - ScriptAccount:" + mName
+                    + ", couldn't find ScriptJob with given requestId");
+        }
+    }
+
     public void registerScriptPlugin(String type, String objectId) {
         ScriptObject object = mObjects.get(objectId);
         if (object == null) {
             object = new ScriptObject(objectId, this);
             mObjects.put(objectId, object);
         }
+        storePluginType(type);
         switch (type) {
             case ScriptObject.TYPE_RESOLVER:
                 mResolverPluginFactory.registerPlugin(object, this);
@@ -441,30 +636,30 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
             CollectionDb collectionDb = CollectionDbManager.get().getCollectionDb(id);
             collectionDb.addTracks(tracks);
 
-            reportNativeScriptJobResult(requestId, "'" + collectionDb.getRevision() + "'");
+            reportNativeScriptJobResult(requestId, collectionDb.getRevision());
         } else if (methodName.equals("collectionWipe")) {
             String id = params.get("id").getAsString();
 
             CollectionDbManager.get().getCollectionDb(id).wipe();
 
-            reportNativeScriptJobResult(requestId, null);
+            reportNativeScriptJobResult(requestId, (JsonElement) null);
         } else if (methodName.equals("collectionRevision")) {
             String id = params.get("id").getAsString();
 
             CollectionDb collectionDb = CollectionDbManager.get().getCollectionDb(id);
 
-            reportNativeScriptJobResult(requestId, "'" + collectionDb.getRevision() + "'");
+            reportNativeScriptJobResult(requestId, collectionDb.getRevision());
         } else if (methodName.equals("collectionInitialized")) {
             String id = params.get("id").getAsString();
 
             CollectionDbManager.get().getCollectionDb(id).wipe();
 
-            reportNativeScriptJobResult(requestId, null);
+            reportNativeScriptJobResult(requestId, (JsonElement) null);
         } else if (methodName.equals("httpRequest")) {
             ScriptInterfaceRequestOptions options =
                     GsonHelper.get().fromJson(paramsString, ScriptInterfaceRequestOptions.class);
 
-            reportNativeScriptJobResult(requestId, GsonHelper.get().toJson(jsHttpRequest(options)));
+            reportNativeScriptJobResult(requestId, jsHttpRequest(options));
         } else if (methodName.equals("showWebView")) {
             String url = params.get("url").getAsString();
 
@@ -478,21 +673,25 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
         }
     }
 
-    private void reportNativeScriptJobResult(int requestId, String result) {
-        if (result == null) {
-            evaluateJavaScript("Tomahawk.NativeScriptJobManager.reportNativeScriptJobResult( "
-                    + requestId + " );");
-        } else {
-            evaluateJavaScript("Tomahawk.NativeScriptJobManager.reportNativeScriptJobResult( "
-                    + requestId + ", " + result + " );");
+    private void reportNativeScriptJobResult(int requestId, JsonElement result) {
+        JsonObject message = new JsonObject();
+        message.addProperty("type", ScriptMessageChannel.TYPE_NATIVE_RESULT);
+        message.addProperty("requestId", requestId);
+        if (result != null) {
+            message.add("result", result);
         }
+        sendMessage(message);
+    }
+
+    private void reportNativeScriptJobResult(int requestId, String result) {
+        reportNativeScriptJobResult(requestId, result != null ? new JsonPrimitive(result) : null);
     }
 
     public void onShowWebViewFinished(int requestId, String url) {
         if (url != null) {
-            HashMap<String, Object> args = new HashMap<>();
-            args.put("url", url);
-            reportNativeScriptJobResult(requestId, GsonHelper.get().toJson(args));
+            JsonObject args = new JsonObject();
+            args.addProperty("url", url);
+            reportNativeScriptJobResult(requestId, args);
         }
     }
 
@@ -506,6 +705,7 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
             String password = null;
             String data = null;
             boolean isTestingConfig = false;
+            int timeout = NetworkUtils.DEFAULT_TIMEOUT;
             if (options != null) {
                 url = options.url;
                 headers = options.headers;
@@ -514,13 +714,25 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
                 password = options.password;
                 data = options.data;
                 isTestingConfig = options.isTestingConfig;
+                if (options.timeout > 0) {
+                    timeout = options.timeout;
+                }
             }
             java.net.CookieManager cookieManager = getCookieManager(isTestingConfig);
             response = NetworkUtils.httpRequest(method, url, headers, username, password, data,
-                    true, cookieManager);
-            // We have to encode the %-chars because the Android WebView automatically decodes
-            // percentage-escaped chars ... for whatever reason. Seems likely that this is a bug.
-            String responseText = response.body().string().replace("%", "%25");
+                    true, cookieManager, timeout);
+            JsonObject result = new JsonObject();
+            long heapBefore = getUsedHeap();
+            ScriptResponseStore.StoredBody body = mResponseStore.store(response.body());
+            if (body.mResponseId != null) {
+                // Big bodies aren't held in memory. The JS side reads them in chunks instead.
+                result.addProperty("responseId", body.mResponseId);
+                Log.d(TAG, "jsHttpRequest - " + mName + " - streaming " + body.mSize
+                        + " bytes from " + url + ", heap growth: "
+                        + (getUsedHeap() - heapBefore) / 1024 + "kB");
+            } else {
+                result.addProperty("responseText", body.mText);
+            }
             JsonObject responseHeaders = new JsonObject();
             for (String headerName : response.headers().names()) {
                 String concatenatedValues = "";
@@ -530,15 +742,11 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
                     }
                     concatenatedValues += response.headers(headerName).get(i);
                 }
-                String escapedKey = headerName.toLowerCase().replace("%", "%25");
-                String escapedValue = concatenatedValues.replace("%", "%25");
-                responseHeaders.addProperty(escapedKey, escapedValue);
+                responseHeaders.addProperty(headerName.toLowerCase(), concatenatedValues);
             }
             int status = response.code();
-            String statusText = response.message().replace("%", "%25");
+            String statusText = response.message();
 
-            JsonObject result = new JsonObject();
-            result.addProperty("responseText", responseText);
             result.add("responseHeaders", responseHeaders);
             result.addProperty("status", status);
             result.addProperty("statusText", statusText);
@@ -557,6 +765,27 @@ public class ScriptAccount implements ScriptWebViewClient.WebViewClientReadyList
         }
     }
 
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Read the next chunk of the streamed http response body with the given id.
+     *
+     * @return the next chunk, or null if the whole body has been read
+     */
+    public String readResponseChunk(String responseId) {
+        return mResponseStore.readChunk(responseId);
+    }
+
+    /**
+     * Discard the streamed http response body with the given id.
+     */
+    public void discardResponse(String responseId) {
+        mResponseStore.discard(responseId);
+    }
+
     public java.net.CookieManager getCookieManager(boolean isTestingConfig) {
         String cookieContextId;
         if (isTestingConfig) {
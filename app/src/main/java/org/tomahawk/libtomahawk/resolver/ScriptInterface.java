@@ -149,6 +149,56 @@ public class ScriptInterface {
         }
     }
 
+    @JavascriptInterface
+    public void reportScriptJobChunk(String chunkString) {
+        JsonElement node = GsonHelper.get().fromJson(chunkString, JsonElement.class);
+        if (node.isJsonObject()) {
+            mScriptAccount.reportScriptJobChunk((JsonObject) node);
+        }
+    }
+
+    /**
+     * This method is being called as soon as all scripts have been loaded into the context of the
+     * {@link ScriptAccount}.
+     *
+     * @param statsString a serialized JSON object containing the JS heap size before and after
+     *                    loading the scripts
+     */
+    @JavascriptInterface
+    public void onContextLoaded(String statsString) {
+        JsonElement node = GsonHelper.get().fromJson(statsString, JsonElement.class);
+        if (node.isJsonObject()) {
+            mScriptAccount.onContextLoaded((JsonObject) node);
+        }
+    }
+
+    /**
+     * This method is being called by Tomahawk.MessageChannel whenever it has been told to pull the
+     * messages that are waiting in the {@link ScriptMessageChannel}.
+     *
+     * @return a serialized JSON array containing all waiting messages
+     */
+    @JavascriptInterface
+    public String takeMessages() {
+        return mScriptAccount.takeMessages();
+    }
+
+    /**
+     * This method is being called by Tomahawk.MessageChannel to read a streamed http response body
+     * chunk by chunk.
+     *
+     * @return the next chunk, or null if the whole body has been read
+     */
+    @JavascriptInterface
+    public String readResponseChunk(String responseId) {
+        return mScriptAccount.readResponseChunk(responseId);
+    }
+
+    @JavascriptInterface
+    public void discardResponse(String responseId) {
+        mScriptAccount.discardResponse(responseId);
+    }
+
     @JavascriptInterface
     public void registerScriptPlugin(String type, String objectId) {
         mScriptAccount.registerScriptPlugin(type, objectId);
@@ -73,6 +73,16 @@ public class ScriptJob {
         void onReportResults();
     }
 
+    /**
+     * A callback for jobs that stream their results back in several chunks before reporting their
+     * final results. The requestId of such a job is being passed to the JS side as the argument
+     * "requestId", so that the chunks can be associated with it.
+     */
+    public interface ResultsChunkCallback extends ResultsObjectCallback {
+
+        void onReportChunk(JsonObject chunk);
+    }
+
     public static abstract class ResultsCallback<T> implements SuccessCallback {
 
         private Class<T> type;
@@ -264,6 +274,26 @@ public class ScriptJob {
         }
     }
 
+    /**
+     * This method is being called whenever a chunk of results has been streamed back by a job with
+     * a {@link ResultsChunkCallback}.
+     *
+     * @param data The returned chunk.
+     */
+    public void reportChunk(JsonElement data) {
+        if (data instanceof JsonObject && mSuccessCallback instanceof ResultsChunkCallback) {
+            ((ResultsChunkCallback) mSuccessCallback).onReportChunk((JsonObject) data);
+        } else {
+            Log.e(TAG, "reportChunk - ScriptAccount: "
+                    + mScriptObject.getScriptAccount().getName() + ", methodName: "
+                    + mMethodName + ", unexpected chunk!");
+        }
+    }
+
+    public boolean isChunked() {
+        return mSuccessCallback instanceof ResultsChunkCallback;
+    }
+
     /**
      * This method is being called if the request failed.
      *
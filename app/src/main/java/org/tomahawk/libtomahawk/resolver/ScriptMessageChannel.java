@@ -0,0 +1,105 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.resolver;
+
+import com.google.gson.JsonObject;
+
+import org.tomahawk.libtomahawk.utils.GsonHelper;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A queue of messages that are being sent from the Java side to the JS side of a {@link
+ * ScriptAccount}. Instead of being concatenated into the source of a script, the messages are
+ * being pulled by the JS side through {@link ScriptInterface#takeMessages()}. The {@link
+ * ScriptRuntime} only ever has to evaluate the constant script {@link #PULL_SCRIPT}, no matter how
+ * big the payload is.
+ *
+ * Requires WebView.evaluateJavascript, which is available since API 19.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class ScriptMessageChannel {
+
+    public static final String TYPE_INVOKE = "invoke";
+
+    public static final String TYPE_NATIVE_RESULT = "nativeResult";
+
+    private static final String PULL_SCRIPT = "Tomahawk.MessageChannel.pull();";
+
+    private final ScriptRuntime mRuntime;
+
+    private final ScriptAccount mScriptAccount;
+
+    private final ConcurrentLinkedQueue<String> mMessages = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean mPullScheduled = new AtomicBoolean(false);
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mPullRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Reset the flag before the JS side takes the messages, so that a message which is
+            // being sent in the meantime schedules another pull
+            mPullScheduled.set(false);
+            mRuntime.evaluateJavaScriptNow(mScriptAccount, PULL_SCRIPT);
+        }
+    };
+
+    public ScriptMessageChannel(ScriptRuntime runtime, ScriptAccount scriptAccount) {
+        mRuntime = runtime;
+        mScriptAccount = scriptAccount;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Put the given message into the queue and make sure that the JS side will pull it.
+     */
+    public void send(JsonObject message) {
+        mMessages.add(GsonHelper.get().toJson(message));
+        if (mPullScheduled.compareAndSet(false, true)) {
+            mHandler.post(mPullRunnable);
+        }
+    }
+
+    /**
+     * Take all messages out of the queue.
+     *
+     * @return a serialized JSON array containing all messages in the order they have been sent
+     */
+    public String takeMessages() {
+        StringBuilder sb = new StringBuilder("[");
+        String message;
+        while ((message = mMessages.poll()) != null) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(message);
+        }
+        return sb.append(']').toString();
+    }
+}
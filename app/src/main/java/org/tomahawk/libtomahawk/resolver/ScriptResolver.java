@@ -18,6 +18,7 @@
 package org.tomahawk.libtomahawk.resolver;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.reflect.TypeToken;
@@ -36,10 +37,12 @@ import org.tomahawk.libtomahawk.utils.ADeferredObject;
 import org.tomahawk.libtomahawk.utils.GsonHelper;
 import org.tomahawk.libtomahawk.utils.NetworkUtils;
 import org.tomahawk.tomahawk_android.TomahawkApp;
+import org.tomahawk.tomahawk_android.utils.CancellationToken;
 import org.tomahawk.tomahawk_android.utils.WeakReferenceHandler;
 
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.ImageView;
 
@@ -48,6 +51,7 @@ import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -80,20 +84,28 @@ public class ScriptResolver implements Resolver, ScriptPlugin {
 
     private boolean mEnabled;
 
-    private boolean mInitialized;
+    private volatile boolean mInitialized;
 
     private boolean mStopped;
 
     private final Set<String> mWaitingUrlLookups =
             Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-    private final Set<Query> mWaitingQueries =
-            Collections.newSetFromMap(new ConcurrentHashMap<Query, Boolean>());
+    // The Queries that have been started before this resolver was initialized, mapped to their
+    // acquired CancellationToken or null. Guarded by this ScriptResolver's lock.
+    private final Map<Query, CancellationToken> mWaitingQueries = new LinkedHashMap<>();
 
     private static final int TIMEOUT_HANDLER_MSG = 1337;
 
+    // The number of results after which a batch resolve request reports a chunk
+    private static final int BATCH_CHUNK_SIZE = 10;
+
+    // The maximum time in ms a result of a batch resolve request is being held back
+    private static final int BATCH_CHUNK_INTERVAL = 100;
+
     // Handler which sets the mStopped bool to true after the timeout has occured.
-    // Meaning this resolver is no longer being shown as resolving.
+    // Meaning this resolver is no longer being shown as resolving. It also releases the
+    // CancellationTokens of every job that hasn't reported back within the timeout.
     private final TimeOutHandler mTimeOutHandler = new TimeOutHandler(this);
 
     private static class TimeOutHandler extends WeakReferenceHandler<ScriptResolver> {
@@ -122,13 +134,7 @@ public class ScriptResolver implements Resolver, ScriptPlugin {
         mInitialized = false;
         mStopped = true;
         mId = mScriptAccount.getName();
-        if (getConfig().get(ScriptAccount.ENABLED_KEY) != null) {
-            mEnabled = (Boolean) getConfig().get(ScriptAccount.ENABLED_KEY);
-        } else {
-            // Enable soundcloud and jamendo by default
-            mEnabled = TomahawkApp.PLUGINNAME_JAMENDO.equals(mId)
-                    || TomahawkApp.PLUGINNAME_SOUNDCLOUD.equals(mId);
-        }
+        mEnabled = mScriptAccount.isResolverEnabled();
         settings();
         if (mEnabled) {
             init();
@@ -188,8 +194,8 @@ public class ScriptResolver implements Resolver, ScriptPlugin {
         ScriptJob.start(mScriptObject, "init", new ScriptJob.ResultsEmptyCallback() {
             @Override
             public void onReportResults() {
-                mInitialized = true;
-                Log.d(TAG, "ScriptResolver " + mId + " initialized successfully.");
+                Log.d(TAG, "ScriptResolver " + mId + " initialized successfully after "
+                        + (SystemClock.elapsedRealtime() - TomahawkApp.getStartTime()) + "ms.");
                 invokeWaitingJobs();
             }
         }, new ScriptJob.FailureCallback() {
@@ -200,13 +206,24 @@ public class ScriptResolver implements Resolver, ScriptPlugin {
         });
     }
 
-    private synchronized void invokeWaitingJobs() {
-        Log.d(TAG, "Resolving " + mWaitingQueries.size() + " waiting queries. Looking up "
+    private void invokeWaitingJobs() {
+        Map<Query, CancellationToken> waitingQueries;
+        synchronized (this) {
+            mInitialized = true;
+            waitingQueries = new LinkedHashMap<>(mWaitingQueries);
+            mWaitingQueries.clear();
+        }
+        Log.d(TAG, "Resolving " + waitingQueries.size() + " waiting queries. Looking up "
                 + mWaitingUrlLookups.size() + " waiting URLs.");
-        for (Query query : mWaitingQueries) {
-            resolve(query);
+        if (!waitingQueries.isEmpty()) {
+            // Resolve them all with a single batch, instead of a ScriptJob per Query
+            resolve(waitingQueries);
+            for (CancellationToken token : waitingQueries.values()) {
+                if (token != null) {
+                    token.release();
+                }
+            }
         }
-        mWaitingQueries.clear();
         for (String url : mWaitingUrlLookups) {
             lookupUrl(url);
         }
@@ -280,36 +297,309 @@ public class ScriptResolver implements Resolver, ScriptPlugin {
      */
     @Override
     public void resolve(final Query query) {
+        resolve(query, null);
+    }
+
+    /**
+     * Invoke the javascript to resolve the given {@link Query}. The results are being dropped, if
+     * the given {@link CancellationToken} has been cancelled in the meantime.
+     *
+     * @param query the {@link Query} which should be resolved
+     * @param token the {@link CancellationToken} of the given {@link Query} or null
+     */
+    public void resolve(final Query query, final CancellationToken token) {
+        if (token != null && token.isCancelled()) {
+            // Make sure that the query is being dispatched again next time
+            PipeLine.get().getResolutionCache().invalidate(query,
+                    ResolutionCache.getSourceId(ScriptResolver.this));
+            return;
+        }
         if (mInitialized) {
             mStopped = false;
-            mTimeOutHandler.removeCallbacksAndMessages(null);
+            mTimeOutHandler.removeMessages(TIMEOUT_HANDLER_MSG);
             mTimeOutHandler.sendEmptyMessageDelayed(TIMEOUT_HANDLER_MSG, mTimeout);
 
+            final Map<String, Query> queryIds = new ConcurrentHashMap<>();
+            final Map<String, CancellationToken> tokens = new ConcurrentHashMap<>();
+            queryIds.put(query.getCacheKey(), query);
+            if (token != null) {
+                token.acquire();
+                tokens.put(query.getCacheKey(), token);
+            }
+            final Runnable jobTimeout = postJobTimeout(queryIds, tokens);
             ScriptJob.ResultsObjectCallback callback = new ScriptJob.ResultsObjectCallback() {
                 @Override
                 public void onReportResults(JsonObject results) {
-                    JsonArray tracks = results.getAsJsonArray("tracks");
-                    ArrayList<Result> parsedResults =
-                            ScriptUtils.parseResultList(ScriptResolver.this, tracks);
-                    PipeLine.get().reportResults(query, parsedResults, mId);
-                    mTimeOutHandler.removeCallbacksAndMessages(null);
+                    if (token != null && token.isCancelled()) {
+                        PipeLine.get().getResolutionCache().invalidate(query,
+                                ResolutionCache.getSourceId(ScriptResolver.this));
+                    } else {
+                        JsonArray tracks = results.getAsJsonArray("tracks");
+                        ArrayList<Result> parsedResults =
+                                ScriptUtils.parseResultList(ScriptResolver.this, tracks);
+                        PipeLine.get().reportResults(query, parsedResults, mId);
+                        PipeLine.get().getResolutionCache().onAnswered(query,
+                                ResolutionCache.getSourceId(ScriptResolver.this));
+                    }
+                    mTimeOutHandler.removeCallbacks(jobTimeout);
+                    mTimeOutHandler.removeMessages(TIMEOUT_HANDLER_MSG);
                     mStopped = true;
+                    releaseAll(tokens);
+                }
+            };
+            ScriptJob.FailureCallback failureCallback = new ScriptJob.FailureCallback() {
+                @Override
+                public void onReportFailure(String errormessage) {
+                    Log.e(TAG, "resolve - " + mId + " failed to resolve query "
+                            + query.getCacheKey() + ": " + errormessage);
+                    // Make sure that the query is being dispatched again next time
+                    PipeLine.get().getResolutionCache().invalidate(query,
+                            ResolutionCache.getSourceId(ScriptResolver.this));
+                    mTimeOutHandler.removeCallbacks(jobTimeout);
+                    releaseAll(tokens);
                 }
             };
 
             if (query.isFullTextQuery()) {
                 HashMap<String, Object> args = new HashMap<>();
                 args.put("query", query.getFullTextQuery());
-                ScriptJob.start(mScriptObject, "_adapter_search", args, callback);
+                ScriptJob.start(mScriptObject, "_adapter_search", args, callback,
+                        failureCallback);
             } else {
                 HashMap<String, Object> args = new HashMap<>();
                 args.put("artist", query.getBasicTrack().getArtist().getName());
                 args.put("album", query.getBasicTrack().getAlbum().getName());
                 args.put("track", query.getBasicTrack().getName());
-                ScriptJob.start(mScriptObject, "_adapter_resolve", args, callback);
+                ScriptJob.start(mScriptObject, "_adapter_resolve", args, callback,
+                        failureCallback);
+            }
+        } else if (!addWaitingQuery(query, token)) {
+            resolve(query, token);
+        }
+    }
+
+    /**
+     * Remember the given {@link Query} until this resolver has been initialized. The given {@link
+     * CancellationToken} is being kept around until then.
+     *
+     * @return false, if this resolver has been initialized in the meantime
+     */
+    private synchronized boolean addWaitingQuery(Query query, CancellationToken token) {
+        if (mInitialized) {
+            return false;
+        }
+        if (token != null) {
+            token.acquire();
+        }
+        CancellationToken previousToken = mWaitingQueries.put(query, token);
+        if (previousToken != null) {
+            previousToken.release();
+        }
+        return true;
+    }
+
+    /**
+     * Invoke the javascript to resolve all of the given {@link Query}s with a single call. The
+     * results are being streamed back in chunks, so that the first results are being reported
+     * before the slowest {@link Query} has been resolved. Fulltext {@link Query}s aren't supported
+     * here and are being resolved one by one.
+     *
+     * @param queries the {@link Query}s which should be resolved, mapped to their {@link
+     *                CancellationToken} or null. {@link Query}s whose token has been cancelled are
+     *                being left out and the results of {@link Query}s whose token is being
+     *                cancelled while resolving are being dropped.
+     */
+    public void resolve(final Map<Query, CancellationToken> queries) {
+        if (!mInitialized) {
+            Map<Query, CancellationToken> lateQueries = new LinkedHashMap<>();
+            for (Map.Entry<Query, CancellationToken> entry : queries.entrySet()) {
+                if (!addWaitingQuery(entry.getKey(), entry.getValue())) {
+                    lateQueries.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (!lateQueries.isEmpty()) {
+                // This resolver has been initialized in the meantime
+                resolve(lateQueries);
+            }
+            return;
+        }
+        if (queries.size() == 1) {
+            Map.Entry<Query, CancellationToken> entry = queries.entrySet().iterator().next();
+            resolve(entry.getKey(), entry.getValue());
+            return;
+        }
+        mStopped = false;
+        mTimeOutHandler.removeMessages(TIMEOUT_HANDLER_MSG);
+        mTimeOutHandler.sendEmptyMessageDelayed(TIMEOUT_HANDLER_MSG, mTimeout);
+
+        final Map<String, Query> queryIds = new ConcurrentHashMap<>();
+        final Map<String, CancellationToken> tokens = new ConcurrentHashMap<>();
+        List<Map<String, Object>> queryArgs = new ArrayList<>();
+        for (Map.Entry<Query, CancellationToken> entry : queries.entrySet()) {
+            Query query = entry.getKey();
+            CancellationToken token = entry.getValue();
+            if (query.isFullTextQuery()
+                    || token != null && token.isCancelled()) {
+                resolve(query, token);
+                continue;
+            }
+            String qid = String.valueOf(queryArgs.size());
+            queryIds.put(qid, query);
+            if (token != null) {
+                token.acquire();
+                tokens.put(qid, token);
+            }
+            Map<String, Object> queryArg = new HashMap<>();
+            queryArg.put("qid", qid);
+            queryArg.put("artist", query.getBasicTrack().getArtist().getName());
+            queryArg.put("album", query.getBasicTrack().getAlbum().getName());
+            queryArg.put("track", query.getBasicTrack().getName());
+            queryArgs.add(queryArg);
+        }
+        if (queryArgs.isEmpty()) {
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        final long startMainThreadNanos = mScriptAccount.getMainThreadNanos();
+        final int queryCount = queryArgs.size();
+        final Runnable jobTimeout = postJobTimeout(queryIds, tokens);
+        ScriptJob.ResultsChunkCallback callback = new ScriptJob.ResultsChunkCallback() {
+            @Override
+            public void onReportChunk(JsonObject chunk) {
+                reportBatchResults(chunk, queryIds, tokens);
+            }
+
+            @Override
+            public void onReportResults(JsonObject results) {
+                reportBatchResults(results, queryIds, tokens);
+                // Queries that haven't been answered at all have to be dispatched again next time
+                for (Query query : queryIds.values()) {
+                    PipeLine.get().getResolutionCache().invalidate(query,
+                            ResolutionCache.getSourceId(ScriptResolver.this));
+                }
+                releaseAll(tokens);
+                mTimeOutHandler.removeCallbacks(jobTimeout);
+                mTimeOutHandler.removeMessages(TIMEOUT_HANDLER_MSG);
+                mStopped = true;
+                long mainThreadNanos = mScriptAccount.getMainThreadNanos() - startMainThreadNanos;
+                Log.d(TAG, "resolve - " + mId + " resolved " + queryCount + " queries in "
+                        + (System.currentTimeMillis() - startTime) + "ms, main thread time per "
+                        + "query: " + (mainThreadNanos / queryCount / 1000) + "µs");
+            }
+        };
+        ScriptJob.FailureCallback failureCallback = new ScriptJob.FailureCallback() {
+            @Override
+            public void onReportFailure(String errormessage) {
+                Log.e(TAG, "resolve - " + mId + " failed to resolve " + queryIds.size()
+                        + " queries: " + errormessage);
+                // Make sure that the queries are being dispatched again next time
+                for (Query query : queryIds.values()) {
+                    PipeLine.get().getResolutionCache().invalidate(query,
+                            ResolutionCache.getSourceId(ScriptResolver.this));
+                }
+                mTimeOutHandler.removeCallbacks(jobTimeout);
+                releaseAll(tokens);
+            }
+        };
+        HashMap<String, Object> args = new HashMap<>();
+        args.put("queries", queryArgs);
+        args.put("chunkSize", BATCH_CHUNK_SIZE);
+        args.put("chunkInterval", BATCH_CHUNK_INTERVAL);
+        ScriptJob.start(mScriptObject, "_adapter_resolveBatch", args, callback, failureCallback);
+    }
+
+    /**
+     * Report the results contained in the given chunk of a batch resolve request.
+     *
+     * @param chunk    the JsonObject containing an array "results" of objects, each with the qid
+     *                 and the "tracks" or the "error" of a single {@link Query}
+     * @param queryIds the Map of qids to the {@link Query}s that haven't been answered yet. Every
+     *                 answered {@link Query} is being removed from it.
+     * @param tokens   the Map of qids to the {@link CancellationToken}s of the {@link Query}s that
+     *                 haven't been answered yet. Every answered {@link Query}'s token is being
+     *                 removed from it and released.
+     */
+    private void reportBatchResults(JsonObject chunk, Map<String, Query> queryIds,
+            Map<String, CancellationToken> tokens) {
+        JsonArray results = chunk.getAsJsonArray("results");
+        if (results == null) {
+            return;
+        }
+        for (JsonElement element : results) {
+            if (!element.isJsonObject()) {
+                continue;
+            }
+            JsonObject result = element.getAsJsonObject();
+            JsonElement qid = result.get("qid");
+            Query query = qid != null ? queryIds.remove(qid.getAsString()) : null;
+            if (query == null) {
+                continue;
+            }
+            CancellationToken token = tokens.remove(qid.getAsString());
+            if (token != null) {
+                token.release();
+            }
+            JsonElement tracks = result.get("tracks");
+            if (token != null && token.isCancelled()) {
+                // Drop the results, the query is being dispatched again next time
+                PipeLine.get().getResolutionCache().invalidate(query,
+                        ResolutionCache.getSourceId(ScriptResolver.this));
+            } else if (tracks != null && tracks.isJsonArray()) {
+                ArrayList<Result> parsedResults = ScriptUtils.parseResultList(
+                        ScriptResolver.this, tracks.getAsJsonArray());
+                PipeLine.get().reportResults(query, parsedResults, mId);
+                PipeLine.get().getResolutionCache().onAnswered(query,
+                        ResolutionCache.getSourceId(ScriptResolver.this));
+            } else {
+                Log.e(TAG, "reportBatchResults - " + mId + " failed to resolve query "
+                        + query.getCacheKey() + ": " + result.get("error"));
+                PipeLine.get().getResolutionCache().invalidate(query,
+                        ResolutionCache.getSourceId(ScriptResolver.this));
+            }
+        }
+    }
+
+    /**
+     * Post a Runnable to the {@link #mTimeOutHandler}, which releases the given {@link
+     * CancellationToken}s, if the job they have been acquired for hasn't reported back within this
+     * resolver's timeout. Otherwise a job whose callbacks are never being invoked would keep its
+     * tokens acquired forever. {@link Query}s that haven't been answered until then are being
+     * dispatched again next time. Late results are still being reported.
+     *
+     * @param queryIds the Map of ids to the {@link Query}s of the job that haven't been answered
+     *                 yet
+     * @param tokens   the Map of ids to the acquired {@link CancellationToken}s of the job
+     * @return the posted Runnable, which has to be removed from the {@link #mTimeOutHandler} as
+     * soon as the job has reported back
+     */
+    private Runnable postJobTimeout(final Map<String, Query> queryIds,
+            final Map<String, CancellationToken> tokens) {
+        Runnable jobTimeout = new Runnable() {
+            @Override
+            public void run() {
+                if (!queryIds.isEmpty()) {
+                    Log.d(TAG, "postJobTimeout - " + mId + " timed out while resolving "
+                            + queryIds.size() + " queries");
+                }
+                for (Query query : queryIds.values()) {
+                    PipeLine.get().getResolutionCache().invalidate(query,
+                            ResolutionCache.getSourceId(ScriptResolver.this));
+                }
+                releaseAll(tokens);
+            }
+        };
+        if (mTimeout > 0) {
+            mTimeOutHandler.postDelayed(jobTimeout, mTimeout);
+        }
+        return jobTimeout;
+    }
+
+    private static void releaseAll(Map<String, CancellationToken> tokens) {
+        for (String qid : tokens.keySet()) {
+            CancellationToken token = tokens.remove(qid);
+            if (token != null) {
+                token.release();
             }
-        } else {
-            mWaitingQueries.add(query);
         }
     }
 
@@ -431,6 +721,7 @@ public class ScriptResolver implements Resolver, ScriptPlugin {
     public void setEnabled(boolean enabled) {
         Log.d(TAG, this.mId + " has been " + (enabled ? "enabled" : "disabled"));
         mEnabled = enabled;
+        PipeLine.get().getResolutionCache().invalidate(ResolutionCache.getSourceId(this));
         Map<String, Object> config = getConfig();
         config.put(ScriptAccount.ENABLED_KEY, enabled);
         setConfig(config);
@@ -0,0 +1,164 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.resolver;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.ResponseBody;
+
+import org.tomahawk.tomahawk_android.TomahawkApp;
+import org.tomahawk.tomahawk_android.utils.IdGenerator;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Stores large http response bodies in temporary files, so that they don't have to be held in
+ * memory as a whole. The JS side reads them incrementally in chunks via {@link
+ * ScriptInterface#readResponseChunk(String)}.
+ */
+public class ScriptResponseStore {
+
+    private final static String TAG = ScriptResponseStore.class.getSimpleName();
+
+    // Bodies that are bigger than this are being streamed
+    public static final long STREAMING_THRESHOLD = 256 * 1024;
+
+    // The number of chars that are being passed to the JS side at once
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final String RESPONSE_DIR = "scriptresponses";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<String, Reader> mReaders = new ConcurrentHashMap<>();
+
+    /**
+     * A http response body, which has either been read into memory or stored in a temporary file.
+     */
+    public static class StoredBody {
+
+        // The whole body, if it has been read into memory
+        public String mText;
+
+        // The id with which the body can be read, if it has been stored in a temporary file
+        public String mResponseId;
+
+        // The number of bytes that have been stored in the temporary file
+        public long mSize;
+    }
+
+    /**
+     * Read the given {@link ResponseBody} into memory, as long as it isn't bigger than {@link
+     * #STREAMING_THRESHOLD}. Bigger bodies are being written into a temporary file instead. Bodies
+     * of unknown size (e.g. chunked or gzipped ones) are being buffered up to the threshold first,
+     * so that small ones don't pay for the disk I/O.
+     */
+    public StoredBody store(ResponseBody body) throws IOException {
+        MediaType contentType = body.contentType();
+        Charset charset = contentType != null ? contentType.charset(UTF_8) : UTF_8;
+        BufferedSource source = body.source();
+        long contentLength = body.contentLength();
+        StoredBody storedBody = new StoredBody();
+        if (contentLength >= 0 && contentLength <= STREAMING_THRESHOLD
+                || contentLength < 0 && !source.request(STREAMING_THRESHOLD + 1)) {
+            storedBody.mText = source.readString(charset);
+            return storedBody;
+        }
+
+        File dir = new File(TomahawkApp.getContext().getCacheDir(), RESPONSE_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Wasn't able to create directory: " + dir.getPath());
+        }
+        String id = IdGenerator.getSessionUniqueStringId();
+        File file = new File(dir, id);
+        BufferedSink sink = null;
+        try {
+            sink = Okio.buffer(Okio.sink(file));
+            // Also writes whatever has already been buffered
+            storedBody.mSize = sink.writeAll(source);
+        } finally {
+            if (sink != null) {
+                sink.close();
+            }
+        }
+        mReaders.put(id, new InputStreamReader(new FileInputStream(file), charset));
+        // The file stays readable through the open reader, so we can delete it right away
+        if (!file.delete()) {
+            Log.e(TAG, "store - Wasn't able to delete file: " + file.getPath());
+        }
+        storedBody.mResponseId = id;
+        return storedBody;
+    }
+
+    /**
+     * Read the next chunk of the body with the given id. The body is being discarded as soon as
+     * it has been read completely.
+     *
+     * @return the next chunk, or null if the whole body has been read
+     */
+    public String readChunk(String id) {
+        Reader reader = mReaders.get(id);
+        if (reader == null) {
+            return null;
+        }
+        try {
+            char[] buffer = new char[CHUNK_SIZE];
+            int read = 0;
+            while (read < CHUNK_SIZE) {
+                int count = reader.read(buffer, read, CHUNK_SIZE - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            if (read > 0) {
+                return new String(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "readChunk: " + e.getClass() + ": " + e.getLocalizedMessage());
+        }
+        discard(id);
+        return null;
+    }
+
+    /**
+     * Discard the body with the given id without reading it.
+     */
+    public void discard(String id) {
+        Reader reader = mReaders.remove(id);
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Log.e(TAG, "discard: " + e.getClass() + ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.resolver;
+
+import org.tomahawk.libtomahawk.utils.GsonHelper;
+import org.tomahawk.tomahawk_android.TomahawkApp;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A {@link ScriptRuntime} is a single WebView that hosts the JavaScript of several {@link
+ * ScriptAccount}s. Every {@link ScriptAccount} gets its own context, which is an invisible iframe
+ * with its own global object and its own {@link ScriptInterface}. The contexts are being loaded one
+ * after the other, so that the load time and the JS heap growth can be attributed to a single
+ * {@link ScriptAccount}.
+ *
+ * Note that the contexts are not isolated from each other. All iframes share the origin of the
+ * host page, so the scripts of one {@link ScriptAccount} are able to reach the host page, the
+ * other contexts and their {@link ScriptInterface}s. That's why {@link ScriptRuntimePool} only lets
+ * the bundled plugins share a {@link ScriptRuntime}.
+ *
+ * All methods except {@link #evaluateJavaScript(ScriptAccount, String)} have to be called on the
+ * main thread.
+ */
+public class ScriptRuntime implements ScriptWebViewClient.WebViewClientReadyListener {
+
+    private final static String TAG = ScriptRuntime.class.getSimpleName();
+
+    private static final String CONTEXT_ID_PREFIX = "context";
+
+    private static final String HOST_PAGE = "<!DOCTYPE html>" + "<html>"
+            + "<head><title>ScriptRuntime</title>"
+            + "<script type=\"text/javascript\">"
+            + "function createContext(id, html) {"
+            + "    var frame = document.createElement('iframe');"
+            + "    frame.id = id;"
+            + "    frame.name = id;"
+            + "    frame.style.display = 'none';"
+            + "    document.body.appendChild(frame);"
+            + "    var doc = frame.contentWindow.document;"
+            + "    doc.open();"
+            + "    doc.write(html);"
+            + "    doc.close();"
+            + "}"
+            + "</script></head>"
+            + "<body></body></html>";
+
+    private static int sContextCounter = 0;
+
+    private final int mId;
+
+    private final WebView mWebView;
+
+    private boolean mReady;
+
+    private ScriptAccount mLoadingAccount;
+
+    private final LinkedList<ScriptAccount> mQueuedAccounts = new LinkedList<>();
+
+    private final List<ScriptAccount> mAccounts = new ArrayList<>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @SuppressLint("SetJavaScriptEnabled")
+    public ScriptRuntime(int id) {
+        mId = id;
+
+        CookieManager.setAcceptFileSchemeCookies(true);
+
+        mWebView = new WebView(TomahawkApp.getContext());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            CookieManager.getInstance().setAcceptThirdPartyCookies(mWebView, true);
+        }
+        WebSettings settings = mWebView.getSettings();
+        settings.setJavaScriptEnabled(true);
+        settings.setDatabaseEnabled(true);
+        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            //noinspection deprecation
+            settings.setDatabasePath(
+                    TomahawkApp.getContext().getDir("databases", Context.MODE_PRIVATE)
+                            .getPath());
+        }
+        settings.setDomStorageEnabled(true);
+        mWebView.setWebChromeClient(new TomahawkWebChromeClient());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mWebView.getSettings().setAllowUniversalAccessFromFileURLs(true);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            WebView.setWebContentsDebuggingEnabled(true);
+        }
+        mWebView.setWebViewClient(new ScriptWebViewClient(this));
+        mWebView.loadDataWithBaseURL("file:///android_asset/test.html", HOST_PAGE,
+                "text/html", null, null);
+    }
+
+    /**
+     * This method is being called, when the {@link ScriptWebViewClient} has completely loaded the
+     * host page.
+     */
+    @Override
+    public void onWebViewClientReady() {
+        if (!mReady) {
+            mReady = true;
+            loadNextContext();
+        }
+    }
+
+    /**
+     * Add a new context for the given {@link ScriptAccount} to this {@link ScriptRuntime}. The
+     * context is being loaded as soon as all previously added contexts have been loaded.
+     */
+    @SuppressLint("AddJavascriptInterface")
+    public void attach(ScriptAccount account) {
+        String contextId = CONTEXT_ID_PREFIX + sContextCounter++;
+        String interfaceName = ScriptAccount.SCRIPT_INTERFACE_NAME + "_" + contextId;
+        // The interface is being injected into every frame that is created from now on
+        mWebView.addJavascriptInterface(new ScriptInterface(account), interfaceName);
+        account.onAttached(this, contextId);
+        mAccounts.add(account);
+        mQueuedAccounts.add(account);
+        loadNextContext();
+    }
+
+    /**
+     * Called by the given {@link ScriptAccount} as soon as its context has been loaded completely.
+     */
+    public void onContextLoaded(final ScriptAccount account) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mLoadingAccount == account) {
+                    mLoadingAccount = null;
+                }
+                ScriptRuntimePool.get().onContextLoaded(account);
+                loadNextContext();
+            }
+        });
+    }
+
+    private void loadNextContext() {
+        if (!mReady || mLoadingAccount != null || mQueuedAccounts.isEmpty()) {
+            return;
+        }
+        mLoadingAccount = mQueuedAccounts.removeFirst();
+        String interfaceName = ScriptAccount.SCRIPT_INTERFACE_NAME + "_"
+                + mLoadingAccount.getContextId();
+        Log.d(TAG, "ScriptRuntime #" + mId + " - loading " + mLoadingAccount.getName());
+        mLoadingAccount.onLoadStarted();
+        evaluate("createContext('" + mLoadingAccount.getContextId() + "', "
+                + GsonHelper.get().toJson(mLoadingAccount.getContextHtml(interfaceName)) + ");");
+    }
+
+    /**
+     * Evaluate the given code in the context of the given {@link ScriptAccount}. Can be called
+     * from any thread.
+     */
+    public void evaluateJavaScript(final ScriptAccount account, final String code) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                evaluateJavaScriptNow(account, code);
+            }
+        });
+    }
+
+    /**
+     * Evaluate the given code in the context of the given {@link ScriptAccount} right away. Has to
+     * be called on the main thread.
+     */
+    public void evaluateJavaScriptNow(ScriptAccount account, String code) {
+        long time = System.nanoTime();
+        evaluate("frames['" + account.getContextId() + "'].eval("
+                + GsonHelper.get().toJson(code) + ");");
+        account.onMainThreadTimeSpent(System.nanoTime() - time);
+    }
+
+    private void evaluate(String script) {
+        if (ScriptMessageChannel.isSupported()) {
+            mWebView.evaluateJavascript(script, null);
+        } else {
+            // The WebView url-decodes "javascript:" URLs, so we have to encode the %-chars
+            mWebView.loadUrl("javascript: " + script.replace("%", "%25"));
+        }
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * @return the number of {@link ScriptAccount}s that have been attached to this {@link
+     * ScriptRuntime}
+     */
+    public int getContextCount() {
+        return mAccounts.size();
+    }
+
+    @Override
+    public String toString() {
+        String accounts = "";
+        for (ScriptAccount account : mAccounts) {
+            if (!accounts.isEmpty()) {
+                accounts += ", ";
+            }
+            accounts += account.getName() + " (" + account.getLoadTime() + "ms, "
+                    + (account.getHeapDelta() >= 0 ? account.getHeapDelta() / 1024 + "kB"
+                    : "unknown heap size") + ")";
+        }
+        return TAG + " #" + mId + ": " + accounts;
+    }
+}
@@ -0,0 +1,185 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.libtomahawk.resolver;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Distributes all {@link ScriptAccount}s over a small, bounded pool of {@link ScriptRuntime}s, so
+ * that we don't need a whole WebView per {@link ScriptAccount}. Only manually installed {@link
+ * ScriptAccount}s get a {@link ScriptRuntime} of their own, since the contexts of a {@link
+ * ScriptRuntime} aren't isolated from each other. {@link ScriptAccount}s are being loaded in the
+ * order of their {@link ScriptAccount#getLoadPriority()}. {@link ScriptAccount}s that are marked
+ * as lazy aren't loaded at all, until they are explicitly requested via {@link
+ * #loadNow(ScriptAccount)}.
+ */
+public class ScriptRuntimePool {
+
+    private final static String TAG = ScriptRuntimePool.class.getSimpleName();
+
+    private static final int MAX_RUNTIMES = 2;
+
+    private static class Holder {
+
+        private static final ScriptRuntimePool instance = new ScriptRuntimePool();
+
+    }
+
+    // All lists are only being accessed on the main thread
+    private final List<ScriptRuntime> mRuntimes = new ArrayList<>();
+
+    // The ScriptRuntimes of manually installed ScriptAccounts, which are never being shared
+    private final List<ScriptRuntime> mIsolatedRuntimes = new ArrayList<>();
+
+    private final List<ScriptAccount> mPendingAccounts = new ArrayList<>();
+
+    private final List<ScriptAccount> mLazyAccounts = new ArrayList<>();
+
+    // The number of attached ScriptAccounts that haven't been loaded yet
+    private int mLoadingCount;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mAttachPendingAccountsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mPendingAccounts.isEmpty()) {
+                Collections.sort(mPendingAccounts, new Comparator<ScriptAccount>() {
+                    @Override
+                    public int compare(ScriptAccount lhs, ScriptAccount rhs) {
+                        return lhs.getLoadPriority() - rhs.getLoadPriority();
+                    }
+                });
+                for (ScriptAccount account : mPendingAccounts) {
+                    attach(account);
+                }
+                mPendingAccounts.clear();
+            }
+        }
+    };
+
+    private ScriptRuntimePool() {
+    }
+
+    public static ScriptRuntimePool get() {
+        return Holder.instance;
+    }
+
+    /**
+     * Load the given {@link ScriptAccount} in one of the pooled {@link ScriptRuntime}s.
+     *
+     * @param lazy whether or not loading can be deferred until the {@link ScriptAccount} is being
+     *             requested via {@link #loadNow(ScriptAccount)}
+     */
+    public void load(final ScriptAccount account, final boolean lazy) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (lazy) {
+                    mLazyAccounts.add(account);
+                } else {
+                    // Collect all ScriptAccounts that are being loaded at the same time, so that
+                    // they can be attached in the order of their priority
+                    mPendingAccounts.add(account);
+                    mHandler.post(mAttachPendingAccountsRunnable);
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the given lazy {@link ScriptAccount} right away, if it hasn't been loaded yet.
+     */
+    public void loadNow(final ScriptAccount account) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mLazyAccounts.remove(account)) {
+                    attach(account);
+                }
+            }
+        });
+    }
+
+    private void attach(ScriptAccount account) {
+        mLoadingCount++;
+        if (account.isManuallyInstalled()) {
+            // Contexts within the same ScriptRuntime aren't isolated from each other, so untrusted
+            // plugins get a ScriptRuntime of their own
+            ScriptRuntime runtime =
+                    new ScriptRuntime(mRuntimes.size() + mIsolatedRuntimes.size());
+            mIsolatedRuntimes.add(runtime);
+            runtime.attach(account);
+        } else {
+            getRuntime().attach(account);
+        }
+    }
+
+    /**
+     * @return the {@link ScriptRuntime} with the least contexts. A new {@link ScriptRuntime} is
+     * only being created if every existing one is already in use and the pool isn't full yet.
+     */
+    private ScriptRuntime getRuntime() {
+        ScriptRuntime runtime = null;
+        for (ScriptRuntime r : mRuntimes) {
+            if (runtime == null || r.getContextCount() < runtime.getContextCount()) {
+                runtime = r;
+            }
+        }
+        if (runtime == null
+                || (runtime.getContextCount() > 0 && mRuntimes.size() < MAX_RUNTIMES)) {
+            runtime = new ScriptRuntime(mRuntimes.size() + mIsolatedRuntimes.size());
+            mRuntimes.add(runtime);
+        }
+        return runtime;
+    }
+
+    /**
+     * Called by a {@link ScriptRuntime} on the main thread whenever the context of the given {@link
+     * ScriptAccount} has been loaded.
+     */
+    void onContextLoaded(ScriptAccount account) {
+        Log.d(TAG, "Loaded " + account.getName() + " in " + account.getLoadTime()
+                + "ms, JS heap growth: " + (account.getHeapDelta() >= 0
+                ? account.getHeapDelta() / 1024 + "kB" : "unknown"));
+        mLoadingCount--;
+        if (mLoadingCount == 0) {
+            Log.d(TAG, toString() + "\n" + mLazyAccounts.size() + " lazy ScriptAccounts deferred");
+        }
+    }
+
+    @Override
+    public String toString() {
+        String result = TAG + " with " + mRuntimes.size() + " shared and "
+                + mIsolatedRuntimes.size() + " isolated runtimes:";
+        for (ScriptRuntime runtime : mRuntimes) {
+            result += "\n" + runtime.toString();
+        }
+        for (ScriptRuntime runtime : mIsolatedRuntimes) {
+            result += "\n" + runtime.toString();
+        }
+        return result;
+    }
+}
@@ -21,7 +21,8 @@ import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
 /**
- * Basic WebViewClient, which is being used to determine, when our javascript file has been loaded
+ * Basic WebViewClient, which is being used to determine, when the host page of a {@link
+ * ScriptRuntime} has been loaded
  */
 public class ScriptWebViewClient extends WebViewClient {
 
@@ -35,6 +35,9 @@ public class ScriptInterfaceRequestOptions {
 
     public boolean isTestingConfig;
 
+    // The connect and read timeout in ms, the ScriptAccount's default is being used if 0
+    public int timeout;
+
     public ScriptInterfaceRequestOptions() {
     }
 }
@@ -1,6 +1,10 @@
 package org.tomahawk.libtomahawk.utils;
 
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.ConnectionPool;
 import com.squareup.okhttp.Credentials;
+import com.squareup.okhttp.Interceptor;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
@@ -13,16 +17,24 @@ import org.tomahawk.tomahawk_android.TomahawkApp;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
 import java.net.Proxy;
+import java.net.URI;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class NetworkUtils {
 
@@ -31,8 +43,24 @@ public class NetworkUtils {
     private static final MediaType MEDIA_TYPE_FORM =
             MediaType.parse("application/x-www-form-urlencoded");
 
+    public static final int DEFAULT_TIMEOUT = 15000;
+
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+
+    // in minutes
+    private static final long KEEP_ALIVE_DURATION = 5;
+
+    private static final String HTTP_CACHE_DIR = "http";
+
+    private static final long HTTP_CACHE_SIZE = 10 * 1024 * 1024;
+
+    private static final int STATS_LOG_INTERVAL = 50;
+
     private static Map<String, CookieManager> sCookieManagerMap = new ConcurrentHashMap<>();
 
+    private static final ConcurrentHashMap<String, HostStats> sHostStats =
+            new ConcurrentHashMap<>();
+
     public static CookieManager getCookieManager(String cookieContextId) {
         if (sCookieManagerMap.containsKey(cookieContextId)) {
             return sCookieManagerMap.get(cookieContextId);
@@ -45,6 +73,132 @@ public class NetworkUtils {
         }
     }
 
+    /**
+     * Statistics about all requests that have been sent to a single host
+     */
+    public static class HostStats {
+
+        private final AtomicLong mRequestCount = new AtomicLong();
+
+        private final AtomicLong mReusedConnectionCount = new AtomicLong();
+
+        private final AtomicLong mCacheHitCount = new AtomicLong();
+
+        private final AtomicLong mTotalLatency = new AtomicLong();
+
+        /**
+         * @return the number of requests that have been sent over the network
+         */
+        public long getRequestCount() {
+            return mRequestCount.get();
+        }
+
+        /**
+         * @return the number of requests that have been sent over an already established connection
+         */
+        public long getReusedConnectionCount() {
+            return mReusedConnectionCount.get();
+        }
+
+        /**
+         * @return the number of requests that have been answered by the response cache
+         */
+        public long getCacheHitCount() {
+            return mCacheHitCount.get();
+        }
+
+        /**
+         * @return the average time in ms between sending a request and receiving the response
+         * headers
+         */
+        public long getAverageLatency() {
+            long requestCount = mRequestCount.get();
+            return requestCount > 0 ? mTotalLatency.get() / requestCount : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "requests: " + mRequestCount.get() + ", reused connections: "
+                    + mReusedConnectionCount.get() + ", cache hits: " + mCacheHitCount.get()
+                    + ", avg latency: " + getAverageLatency() + "ms";
+        }
+    }
+
+    /**
+     * Network interceptor that records the {@link HostStats} of every request that is actually
+     * sent over the network
+     */
+    private static class StatsInterceptor implements Interceptor {
+
+        private final Set<Connection> mSeenConnections =
+                Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            HostStats stats = getHostStats(chain.request().httpUrl().host());
+            Connection connection = chain.connection();
+            if (connection != null) {
+                synchronized (mSeenConnections) {
+                    if (!mSeenConnections.add(connection)) {
+                        stats.mReusedConnectionCount.incrementAndGet();
+                    }
+                }
+            }
+            long time = System.currentTimeMillis();
+            Response response = chain.proceed(chain.request());
+            stats.mTotalLatency.addAndGet(System.currentTimeMillis() - time);
+            if (stats.mRequestCount.incrementAndGet() % STATS_LOG_INTERVAL == 0) {
+                Log.d(TAG, chain.request().httpUrl().host() + " - " + stats);
+            }
+            return response;
+        }
+    }
+
+    private static class ClientHolder {
+
+        private static final OkHttpClient sClient = createClient();
+
+    }
+
+    /**
+     * @return the {@link OkHttpClient} that is shared by all requests, so that they share the same
+     * connection pool and response cache
+     */
+    private static OkHttpClient createClient() {
+        OkHttpClient client = new OkHttpClient();
+        client.setConnectionPool(
+                new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION, TimeUnit.MINUTES));
+        File cacheDir = new File(TomahawkApp.getContext().getCacheDir(), HTTP_CACHE_DIR);
+        client.setCache(new Cache(cacheDir, HTTP_CACHE_SIZE));
+        HttpLoggingInterceptor loggingInterceptor = new HttpLoggingInterceptor();
+        loggingInterceptor.setLevel(HttpLoggingInterceptor.Level.BASIC);
+        client.networkInterceptors().add(loggingInterceptor);
+        client.networkInterceptors().add(new StatsInterceptor());
+        return client;
+    }
+
+    /**
+     * @return the {@link HostStats} of the given host
+     */
+    public static HostStats getHostStats(String host) {
+        HostStats stats = sHostStats.get(host);
+        if (stats == null) {
+            stats = new HostStats();
+            HostStats existing = sHostStats.putIfAbsent(host, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return a Map of all hosts that requests have been sent to and their {@link HostStats}
+     */
+    public static Map<String, HostStats> getAllHostStats() {
+        return new HashMap<>(sHostStats);
+    }
+
     /**
      * Does a HTTP or HTTPS request
      *
@@ -63,17 +217,39 @@ public class NetworkUtils {
     public static Response httpRequest(String method, String urlString,
             Map<String, String> extraHeaders, final String username, final String password,
             String data, boolean followRedirects, CookieManager cookieManager) throws IOException {
-        OkHttpClient client = new OkHttpClient();
-        HttpLoggingInterceptor loggingInterceptor = new HttpLoggingInterceptor();
-        loggingInterceptor.setLevel(HttpLoggingInterceptor.Level.BASIC);
-        client.networkInterceptors().add(loggingInterceptor);
-        if (cookieManager != null) {
-            client.setCookieHandler(cookieManager);
-        }
+        return httpRequest(method, urlString, extraHeaders, username, password, data,
+                followRedirects, cookieManager, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Does a HTTP or HTTPS request. All requests share the same connection pool and response
+     * cache, so that connections to the same host are being kept alive and reused. Requests that
+     * carry credentials or cookies bypass the response cache.
+     *
+     * @param method          the method that should be used ("GET" or "POST"), defaults to "GET"
+     *                        (optional)
+     * @param urlString       the complete url string to do the request with
+     * @param extraHeaders    extra headers that should be added to the request (optional)
+     * @param username        the username for HTTP Basic Auth (optional)
+     * @param password        the password for HTTP Basic Auth (optional)
+     * @param data            the body data included in POST requests (optional)
+     * @param followRedirects whether or not to follow redirects (also defines what is being
+     *                        returned)
+     * @param cookieManager   the {@link CookieManager} that should be used for this request
+     * @param timeout         the connect and read timeout in ms
+     * @return a HttpURLConnection
+     */
+    public static Response httpRequest(String method, String urlString,
+            Map<String, String> extraHeaders, final String username, final String password,
+            String data, boolean followRedirects, CookieManager cookieManager, int timeout)
+            throws IOException {
+        // The clone shares the connection pool, the cache and the interceptors
+        OkHttpClient client = ClientHolder.sClient.clone();
+        client.setCookieHandler(cookieManager);
 
         //Set time-outs
-        client.setConnectTimeout(15000, TimeUnit.MILLISECONDS);
-        client.setReadTimeout(15000, TimeUnit.MILLISECONDS);
+        client.setConnectTimeout(timeout, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(timeout, TimeUnit.MILLISECONDS);
 
         client.setFollowRedirects(followRedirects);
 
@@ -128,7 +304,25 @@ public class NetworkUtils {
 
         // Build and execute the request and retrieve the response.
         Request request = builder.build();
-        return client.newCall(request).execute();
+        if (username != null || request.header("Authorization") != null
+                || request.header("Cookie") != null
+                || hasCookies(cookieManager, request.httpUrl().uri())) {
+            // The response cache is shared by all ScriptAccounts. A response that depends on the
+            // credentials or cookies of one of them mustn't be served to another one.
+            client.setCache(null);
+        }
+        Response response = client.newCall(request).execute();
+        if (response.networkResponse() == null && response.cacheResponse() != null) {
+            getHostStats(request.httpUrl().host()).mCacheHitCount.incrementAndGet();
+        }
+        return response;
+    }
+
+    /**
+     * @return whether or not the given {@link CookieManager} holds any cookies for the given uri
+     */
+    private static boolean hasCookies(CookieManager cookieManager, URI uri) {
+        return cookieManager != null && !cookieManager.getCookieStore().get(uri).isEmpty();
     }
 
     public static boolean isNetworkAvailable() {
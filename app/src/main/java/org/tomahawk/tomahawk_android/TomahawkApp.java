@@ -28,6 +28,7 @@ import org.tomahawk.tomahawk_android.utils.TomahawkHttpSender;
 import android.app.Application;
 import android.content.Context;
 import android.os.StrictMode;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -73,8 +74,12 @@ public class TomahawkApp extends Application {
 
     private static Context sApplicationContext;
 
+    private static long sStartTime;
+
     @Override
     public void onCreate() {
+        sStartTime = SystemClock.elapsedRealtime();
+
         ACRA.init(this);
         ACRA.getErrorReporter().setReportSender(
                 new TomahawkHttpSender(ACRA.getConfig().httpMethod(), ACRA.getConfig().reportType(),
@@ -101,4 +106,11 @@ public class TomahawkApp extends Application {
         return sApplicationContext;
     }
 
+    /**
+     * @return the {@link SystemClock#elapsedRealtime()} at which the app has been created
+     */
+    public static long getStartTime() {
+        return sStartTime;
+    }
+
 }
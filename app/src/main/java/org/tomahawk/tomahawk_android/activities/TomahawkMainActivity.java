@@ -628,7 +628,8 @@ public class TomahawkMainActivity extends AppCompatActivity {
                     || (intent.getType() != null
                     && intent.getType().equals("application/xspf+xml"))) {
                 TomahawkRunnable r = new TomahawkRunnable(
-                        TomahawkRunnable.PRIORITY_IS_INFOSYSTEM_HIGH) {
+                        TomahawkRunnable.PRIORITY_IS_INFOSYSTEM_HIGH,
+                        TomahawkRunnable.POOL_NETWORK) {
                     @Override
                     public void run() {
                         Playlist pl = XspfParser.parse(data);
@@ -763,6 +764,7 @@ public class TomahawkMainActivity extends AppCompatActivity {
     @Override
     public void onStop() {
         EventBus.getDefault().unregister(this);
+        ThreadManager.get().logStats();
 
         if (mMediaBrowser != null) {
             mMediaBrowser.disconnect();
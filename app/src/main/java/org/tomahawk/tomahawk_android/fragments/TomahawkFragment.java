@@ -620,28 +620,44 @@ public abstract class TomahawkFragment extends TomahawkListFragment
         if (mTomahawkListAdapter != null) {
             start = Math.max(start, 0);
             end = Math.min(end, mTomahawkListAdapter.getCount());
+            Set<Query> visibleQueries = new HashSet<>();
             for (int i = start; i < end; i++) {
                 Object object = mTomahawkListAdapter.getItem(i);
                 if (object instanceof List) {
                     for (Object item : (List) object) {
                         resolveItem(item);
+                        visibleQueries.add(getQuery(item));
                     }
                 } else {
                     resolveItem(object);
+                    visibleQueries.add(getQuery(object));
                 }
             }
+            // Stop resolving the Queries that have been scrolled out of view. They are being
+            // resolved again as soon as they become visible again.
+            for (Query query : mCorrespondingQueries) {
+                if (!visibleQueries.contains(query) && ThreadManager.get().stop(query)) {
+                    mCorrespondingQueries.remove(query);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the {@link Query} of the given item or null if it doesn't have one
+     */
+    private static Query getQuery(Object object) {
+        if (object instanceof PlaylistEntry) {
+            return ((PlaylistEntry) object).getQuery();
+        } else if (object instanceof Query) {
+            return (Query) object;
         }
+        return null;
     }
 
     private void resolveItem(final Object object) {
         if (object instanceof PlaylistEntry || object instanceof Query) {
-            Query query;
-            if (object instanceof PlaylistEntry) {
-                PlaylistEntry entry = (PlaylistEntry) object;
-                query = entry.getQuery();
-            } else {
-                query = (Query) object;
-            }
+            Query query = getQuery(object);
             if (!mCorrespondingQueries.contains(query)) {
                 mCorrespondingQueries.add(PipeLine.get().resolve(query));
             }
@@ -681,7 +697,8 @@ public abstract class TomahawkFragment extends TomahawkListFragment
             public void onDone(User user) {
                 if (mUser == null || mUser == user) {
                     TomahawkRunnable r = new TomahawkRunnable(
-                            TomahawkRunnable.PRIORITY_IS_DATABASEACTION) {
+                            TomahawkRunnable.PRIORITY_IS_DATABASEACTION,
+                            TomahawkRunnable.POOL_DISK) {
                         @Override
                         public void run() {
                             if (mResolvingItems.add(playlist)) {
@@ -0,0 +1,89 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.tomahawk_android.utils;
+
+import org.tomahawk.libtomahawk.resolver.Query;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks all the work that is being done to resolve a single {@link Query}, so that it can be
+ * cancelled via {@link ThreadManager#stop(Query)} once the {@link Query} isn't needed anymore.
+ *
+ * Queued {@link TomahawkRunnable}s are being removed from their pool right away. Everything that
+ * is already in flight (running runnables, pending javascript calls) has to check {@link
+ * #isCancelled()} itself and should drop its results if the token has been cancelled.
+ *
+ * Asynchronous work has to be wrapped in {@link #acquire()} and {@link #release()}, so that the
+ * {@link ThreadManager} keeps the token around until all of the work has been done.
+ */
+public class CancellationToken {
+
+    private final Query mQuery;
+
+    private volatile boolean mCancelled;
+
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+
+    private final Set<TomahawkRunnable> mRunnables =
+            Collections.newSetFromMap(new ConcurrentHashMap<TomahawkRunnable, Boolean>());
+
+    CancellationToken(Query query) {
+        mQuery = query;
+    }
+
+    public Query getQuery() {
+        return mQuery;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Register a pending piece of work.
+     */
+    public void acquire() {
+        mPendingCount.incrementAndGet();
+    }
+
+    /**
+     * Unregister a pending piece of work, that has previously been registered with {@link
+     * #acquire()}.
+     */
+    public void release() {
+        if (mPendingCount.decrementAndGet() == 0) {
+            ThreadManager.get().onIdle(this);
+        }
+    }
+
+    int getPendingCount() {
+        return mPendingCount.get();
+    }
+
+    Set<TomahawkRunnable> getRunnables() {
+        return mRunnables;
+    }
+}
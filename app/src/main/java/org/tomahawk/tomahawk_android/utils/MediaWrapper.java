@@ -83,6 +83,7 @@ public class MediaWrapper implements Parcelable {
     private boolean mIsPictureParsed;
     private int mFlags = 0;
     private long mLastModified = 0l;
+    private long mSize = 0l;
 
     /**
      * Create a new MediaWrapper
@@ -453,6 +454,17 @@ public class MediaWrapper implements Parcelable {
         this.mLastModified = mLastModified;
     }
 
+    /**
+     * @return the size of the file in bytes, or 0 if unknown
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    public void setSize(long size) {
+        mSize = size;
+    }
+
     public void addFlags(int flags) {
         mFlags |= flags;
     }
@@ -20,23 +20,54 @@ package org.tomahawk.tomahawk_android.utils;
 import org.tomahawk.libtomahawk.resolver.Query;
 import org.tomahawk.tomahawk_android.mediaplayers.TomahawkMediaPlayer;
 
-import java.util.Collection;
-import java.util.HashSet;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Executes {@link TomahawkRunnable}s in one of three pools, depending on {@link
+ * TomahawkRunnable#getPool()}. CPU-bound, disk-bound and network-bound runnables are being kept
+ * apart, so that e.g. a couple of slow http requests can't keep local resolving from running.
+ */
 public class ThreadManager {
 
+    private final static String TAG = ThreadManager.class.getSimpleName();
+
     /*
      * Gets the number of available cores
      * (not always the same as the maximum number of cores)
      */
     private static final int NUMBER_OF_CORES = Runtime.getRuntime().availableProcessors();
 
+    // SQLite only has a single writer, so more threads would mostly wait for each other
+    private static final int NUMBER_OF_DISK_THREADS = 2;
+
+    // Network threads mostly wait for responses, so we can afford more of them than cores
+    private static final int NUMBER_OF_NETWORK_THREADS = 4;
+
+    // The number of runnables each pool queues before applying back-pressure
+    private static final int CPU_QUEUE_CAPACITY = 512;
+
+    private static final int DISK_QUEUE_CAPACITY = 256;
+
+    private static final int NETWORK_QUEUE_CAPACITY = 128;
+
+    // Back-pressure is only being logged every n-th time it has been applied
+    private static final int REJECTION_LOG_INTERVAL = 100;
+
+    // The time in ms a background thread waits for room in a full queue before overflowing it.
+    // It's bounded, so that pools which are waiting for each other can't deadlock.
+    private static final long BACK_PRESSURE_TIMEOUT = 100;
+
     // Sets the amount of time an idle thread waits before terminating
     private static final int KEEP_ALIVE_TIME = 1;
 
@@ -49,17 +80,155 @@ public class ThreadManager {
 
     }
 
-    private final ThreadPoolExecutor mThreadPool;
+    /**
+     * Applies back-pressure once a pool's queue is full. Rejected runnables are never being run
+     * on the submitting thread, since that might be a thread of another pool (e.g. a blocking http
+     * request would occupy a CPU thread). Instead the pool tries the following:
+     *
+     * 1. Drop the cancellable runnable that would be run last, which is resolving work that can
+     * simply be requested again.
+     *
+     * 2. Let a background thread wait for room in the queue. The main thread and the pool's own
+     * threads must never wait, since the latter are the ones that make room.
+     *
+     * 3. Queue the runnable regardless of the queue's capacity.
+     */
+    private static class BackPressurePolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            Pool pool = (Pool) executor;
+            TomahawkRunnableQueue queue = (TomahawkRunnableQueue) pool.getQueue();
+            int count;
+            TomahawkRunnable dropped = queue.offerDroppingLast(r);
+            if (dropped != null) {
+                count = pool.mDroppedCount.incrementAndGet();
+                ThreadManager.get().onRemoved(dropped);
+            } else if (Looper.myLooper() == Looper.getMainLooper() || Pool.isCurrentPool(pool)
+                    || !offer(queue, r)) {
+                count = pool.mOverflowCount.incrementAndGet();
+                queue.forceOffer(r);
+            } else {
+                count = pool.mThrottledCount.incrementAndGet();
+            }
+            if (count % REJECTION_LOG_INTERVAL == 1) {
+                Log.w(TAG, "rejectedExecution - " + pool);
+            }
+        }
+
+        private static boolean offer(TomahawkRunnableQueue queue, Runnable r) {
+            try {
+                return queue.offer(r, BACK_PRESSURE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A {@link ThreadPoolExecutor} with a bounded {@link TomahawkRunnableQueue} that keeps track
+     * of the time its runnables spent waiting in the queue. A single priority may only occupy
+     * three quarters of the pool's threads (but at least one), so that there's always a thread
+     * left for other work.
+     */
+    private static class Pool extends ThreadPoolExecutor {
+
+        private final String mName;
+
+        private final AtomicLong mExecutedCount = new AtomicLong();
+
+        private final AtomicLong mWaitNanos = new AtomicLong();
+
+        private final AtomicLong mMaxWaitNanos = new AtomicLong();
+
+        private final AtomicInteger mOverflowCount = new AtomicInteger();
+
+        private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+        private final AtomicInteger mThrottledCount = new AtomicInteger();
+
+        // The Pool that owns the current thread, if any
+        private static final ThreadLocal<Pool> sCurrentPool = new ThreadLocal<>();
+
+        public Pool(String name, int threadCount, int queueCapacity) {
+            super(threadCount, threadCount, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT,
+                    new TomahawkRunnableQueue(queueCapacity, Math.max(1, threadCount * 3 / 4)),
+                    new BackPressurePolicy());
+            mName = name;
+            // Make sure that every runnable goes through the queue, which counts the running
+            // runnables of each priority
+            prestartAllCoreThreads();
+        }
+
+        /**
+         * @return whether or not the current thread is one of the given pool's threads
+         */
+        public static boolean isCurrentPool(Pool pool) {
+            return sCurrentPool.get() == pool;
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            super.beforeExecute(t, r);
+            sCurrentPool.set(this);
+            if (r instanceof TomahawkRunnable) {
+                long waitNanos = System.nanoTime() - ((TomahawkRunnable) r).getQueuedTime();
+                mExecutedCount.incrementAndGet();
+                mWaitNanos.addAndGet(waitNanos);
+                long maxWaitNanos = mMaxWaitNanos.get();
+                while (waitNanos > maxWaitNanos
+                        && !mMaxWaitNanos.compareAndSet(maxWaitNanos, waitNanos)) {
+                    maxWaitNanos = mMaxWaitNanos.get();
+                }
+            }
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            super.afterExecute(r, t);
+            ((TomahawkRunnableQueue) getQueue()).onFinished((TomahawkRunnable) r);
+            ThreadManager.get().onFinished((TomahawkRunnable) r);
+        }
+
+        public long getAverageWaitMillis() {
+            long executedCount = mExecutedCount.get();
+            if (executedCount == 0) {
+                return 0;
+            }
+            return TimeUnit.NANOSECONDS.toMillis(mWaitNanos.get() / executedCount);
+        }
+
+        public long getMaxWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos.get());
+        }
+
+        @Override
+        public String toString() {
+            return mName + " pool: " + getActiveCount() + " active, " + getQueue().size()
+                    + " queued, " + mExecutedCount.get() + " executed, waited "
+                    + getAverageWaitMillis() + "ms on average and " + getMaxWaitMillis()
+                    + "ms at most, " + mOverflowCount.get() + " overflows, "
+                    + mDroppedCount.get() + " dropped, " + mThrottledCount.get() + " throttled";
+        }
+    }
+
+    private final Pool[] mThreadPools;
 
     private final ConcurrentHashMap<TomahawkMediaPlayer, ThreadPoolExecutor> mPlaybackThreadPools
             = new ConcurrentHashMap<>();
 
-    private final Map<Query, Collection<TomahawkRunnable>> mQueryRunnableMap;
+    // The CancellationTokens of all Queries that are currently being resolved
+    private final Map<Query, CancellationToken> mCancellationTokens = new HashMap<>();
 
     private ThreadManager() {
-        mQueryRunnableMap = new ConcurrentHashMap<>();
-        mThreadPool = new ThreadPoolExecutor(NUMBER_OF_CORES, NUMBER_OF_CORES,
-                KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT, new PriorityBlockingQueue<Runnable>());
+        mThreadPools = new Pool[3];
+        mThreadPools[TomahawkRunnable.POOL_CPU] =
+                new Pool("CPU", NUMBER_OF_CORES, CPU_QUEUE_CAPACITY);
+        mThreadPools[TomahawkRunnable.POOL_DISK] =
+                new Pool("Disk", NUMBER_OF_DISK_THREADS, DISK_QUEUE_CAPACITY);
+        mThreadPools[TomahawkRunnable.POOL_NETWORK] =
+                new Pool("Network", NUMBER_OF_NETWORK_THREADS, NETWORK_QUEUE_CAPACITY);
     }
 
     public static ThreadManager get() {
@@ -67,29 +236,103 @@ public class ThreadManager {
     }
 
     public void execute(TomahawkRunnable r) {
-        mThreadPool.execute(r);
+        r.onQueued();
+        mThreadPools[r.getPool()].execute(r);
     }
 
+    /**
+     * Execute the given runnable as part of the work that is being done to resolve the given
+     * {@link Query}. All of that work can be cancelled via {@link #stop(Query)}.
+     */
     public void execute(TomahawkRunnable r, Query query) {
-        Collection<TomahawkRunnable> runnables = mQueryRunnableMap.get(query);
-        if (runnables == null) {
-            runnables = new HashSet<>();
+        CancellationToken token;
+        synchronized (mCancellationTokens) {
+            token = mCancellationTokens.get(query);
+            if (token == null) {
+                token = new CancellationToken(query);
+                mCancellationTokens.put(query, token);
+            }
+            token.acquire();
+        }
+        execute(r, token, false);
+    }
+
+    /**
+     * Execute the given runnable as part of the work that is being tracked by the given {@link
+     * CancellationToken}. Used to pass the token on to the follow-up work of a runnable.
+     */
+    public void execute(TomahawkRunnable r, CancellationToken token) {
+        if (token == null) {
+            execute(r);
+        } else {
+            execute(r, token, true);
+        }
+    }
+
+    private void execute(TomahawkRunnable r, CancellationToken token, boolean acquire) {
+        if (acquire) {
+            token.acquire();
         }
-        runnables.add(r);
-        mQueryRunnableMap.put(query, runnables);
-        mThreadPool.execute(r);
+        r.setCancellationToken(token);
+        token.getRunnables().add(r);
+        execute(r);
     }
 
+    /**
+     * Cancel all the work that is being done to resolve the given {@link Query}. Queued runnables
+     * are being removed, everything else is being notified through its {@link
+     * CancellationToken}.
+     *
+     * @return true, if there has been any work left to cancel
+     */
     public boolean stop(Query query) {
-        boolean success = false;
-        Collection<TomahawkRunnable> runnables = mQueryRunnableMap.remove(query);
-        if (runnables != null) {
-            for (TomahawkRunnable r : runnables) {
-                mThreadPool.remove(r);
-                success = true;
+        CancellationToken token;
+        synchronized (mCancellationTokens) {
+            token = mCancellationTokens.remove(query);
+        }
+        if (token == null) {
+            return false;
+        }
+        token.cancel();
+        for (TomahawkRunnable r : token.getRunnables()) {
+            if (mThreadPools[r.getPool()].remove(r)) {
+                onRemoved(r);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called after the given runnable has been removed from its queue without being run.
+     */
+    void onRemoved(TomahawkRunnable r) {
+        try {
+            r.onRemoved();
+        } finally {
+            onFinished(r);
+        }
+    }
+
+    /**
+     * Called after the given runnable has been run or removed from its queue.
+     */
+    void onFinished(TomahawkRunnable r) {
+        CancellationToken token = r.getCancellationToken();
+        if (token != null && token.getRunnables().remove(r)) {
+            token.release();
+        }
+    }
+
+    /**
+     * Called after all the work tracked by the given {@link CancellationToken} has been done.
+     */
+    void onIdle(CancellationToken token) {
+        synchronized (mCancellationTokens) {
+            if (token.getPendingCount() == 0
+                    && mCancellationTokens.get(token.getQuery()) == token) {
+                mCancellationTokens.remove(token.getQuery());
             }
         }
-        return success;
     }
 
     public void executePlayback(TomahawkMediaPlayer mp, Runnable r) {
@@ -108,6 +351,47 @@ public class ThreadManager {
                 return true;
             }
         }
-        return mThreadPool.getActiveCount() > 0 || mThreadPool.getQueue().size() > 0;
+        for (ThreadPoolExecutor pool : mThreadPools) {
+            if (pool.getActiveCount() > 0 || pool.getQueue().size() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param pool either {@link TomahawkRunnable#POOL_CPU}, {@link TomahawkRunnable#POOL_DISK}
+     *             or {@link TomahawkRunnable#POOL_NETWORK}
+     * @return the number of runnables that are currently waiting in the given pool's queue
+     */
+    public int getQueueDepth(int pool) {
+        return mThreadPools[pool].getQueue().size();
+    }
+
+    /**
+     * @param pool either {@link TomahawkRunnable#POOL_CPU}, {@link TomahawkRunnable#POOL_DISK}
+     *             or {@link TomahawkRunnable#POOL_NETWORK}
+     * @return the average time in ms that runnables have been waiting in the given pool's queue
+     */
+    public long getAverageWaitMillis(int pool) {
+        return mThreadPools[pool].getAverageWaitMillis();
+    }
+
+    /**
+     * @param pool either {@link TomahawkRunnable#POOL_CPU}, {@link TomahawkRunnable#POOL_DISK}
+     *             or {@link TomahawkRunnable#POOL_NETWORK}
+     * @return the longest time in ms that a runnable has been waiting in the given pool's queue
+     */
+    public long getMaxWaitMillis(int pool) {
+        return mThreadPools[pool].getMaxWaitMillis();
+    }
+
+    /**
+     * Write the queue depth and wait time metrics of all pools to the log.
+     */
+    public void logStats() {
+        for (Pool pool : mThreadPools) {
+            Log.d(TAG, "logStats - " + pool);
+        }
     }
 }
@@ -19,6 +19,17 @@ package org.tomahawk.tomahawk_android.utils;
 
 import android.support.annotation.NonNull;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Runnable} that is being executed by the {@link ThreadManager}.
+ *
+ * Runnables with a higher priority are being executed first. To make sure that runnables with a
+ * low priority don't starve, every runnable gains one point of priority for every {@link
+ * #AGING_INTERVAL} ms it has been waiting in the queue. Runnables with the same effective priority
+ * are being executed in the order they have been queued.
+ */
 public abstract class TomahawkRunnable implements Runnable, Comparable<TomahawkRunnable> {
 
     public static final int PRIORITY_IS_NOTIFICATION = 500;
@@ -45,18 +56,106 @@ public abstract class TomahawkRunnable implements Runnable, Comparable<TomahawkR
 
     public static final int PRIORITY_IS_REPORTING_WITH_HEADERREQUEST = 0;
 
+    // Runnables that are mostly busy computing something (e.g. scoring results)
+    public static final int POOL_CPU = 0;
+
+    // Runnables that mostly wait for the local storage (e.g. database queries)
+    public static final int POOL_DISK = 1;
+
+    // Runnables that mostly wait for the network (e.g. blocking http requests)
+    public static final int POOL_NETWORK = 2;
+
+    // The time in ms that makes up for one point of priority
+    public static final int AGING_INTERVAL = 20;
+
+    private static final AtomicLong sSequenceNumber = new AtomicLong();
+
     private final int mPriority;
 
+    private final int mPool;
+
+    private long mQueuedTime;
+
+    private long mSequenceNumber;
+
+    private long mSchedulingKey;
+
+    private CancellationToken mCancellationToken;
+
     public TomahawkRunnable(int priority) {
+        this(priority, POOL_CPU);
+    }
+
+    public TomahawkRunnable(int priority, int pool) {
         mPriority = priority;
+        mPool = pool;
     }
 
     public int getPriority() {
         return mPriority;
     }
 
+    /**
+     * @return the pool that this runnable should be executed in. Either {@link #POOL_CPU},
+     * {@link #POOL_DISK} or {@link #POOL_NETWORK}.
+     */
+    public int getPool() {
+        return mPool;
+    }
+
+    /**
+     * @return the {@link CancellationToken} of the {@link org.tomahawk.libtomahawk.resolver.Query}
+     * that this runnable is part of resolving, or null if it isn't part of resolving a Query
+     */
+    public CancellationToken getCancellationToken() {
+        return mCancellationToken;
+    }
+
+    void setCancellationToken(CancellationToken cancellationToken) {
+        mCancellationToken = cancellationToken;
+    }
+
+    /**
+     * @return whether or not the work that this runnable is part of has been cancelled
+     */
+    public boolean isCancelled() {
+        return mCancellationToken != null && mCancellationToken.isCancelled();
+    }
+
+    /**
+     * Called instead of {@link #run()}, if this runnable has been removed from its queue before
+     * it could be run. Either because the work it is part of has been cancelled or because it has
+     * been dropped to make room in a full queue. Subclasses should override this to undo whatever
+     * has been done in expectation of the runnable being run.
+     */
+    protected void onRemoved() {
+    }
+
+    long getQueuedTime() {
+        return mQueuedTime;
+    }
+
+    /**
+     * Called right before this runnable is being queued. Determines its position in the queue,
+     * which must not change as long as it is queued.
+     */
+    void onQueued() {
+        mQueuedTime = System.nanoTime();
+        mSequenceNumber = sSequenceNumber.incrementAndGet();
+        // Instead of increasing the priority of every queued runnable over time, we give the
+        // runnables with a higher priority a head start, which results in the same order
+        mSchedulingKey = TimeUnit.NANOSECONDS.toMillis(mQueuedTime)
+                - (long) mPriority * AGING_INTERVAL;
+    }
+
     @Override
     public int compareTo(@NonNull TomahawkRunnable other) {
-        return other.getPriority() - mPriority;
+        if (mSchedulingKey != other.mSchedulingKey) {
+            return mSchedulingKey < other.mSchedulingKey ? -1 : 1;
+        }
+        if (mSequenceNumber != other.mSequenceNumber) {
+            return mSequenceNumber < other.mSequenceNumber ? -1 : 1;
+        }
+        return 0;
     }
 }
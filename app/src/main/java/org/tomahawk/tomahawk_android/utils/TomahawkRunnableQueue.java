@@ -0,0 +1,366 @@
+/* == This file is part of Tomahawk Player - <http://tomahawk-player.org> ===
+ *
+ *   Copyright 2016, Enno Gottschalk <mrmaffen@googlemail.com>
+ *
+ *   Tomahawk is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Tomahawk is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Tomahawk. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.tomahawk.tomahawk_android.utils;
+
+import android.support.annotation.NonNull;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The work queue of a {@link ThreadManager} pool. {@link TomahawkRunnable}s are being taken in
+ * the order given by {@link TomahawkRunnable#compareTo(TomahawkRunnable)}, except for runnables
+ * whose priority already occupies the maximum number of threads. Those are being skipped until one
+ * of the running runnables with the same priority has finished, so that a single kind of work
+ * can't occupy every thread of the pool.
+ *
+ * The capacity is a soft limit. {@link #offer(Runnable)} refuses new runnables once it has been
+ * reached and {@link #offer(Runnable, long, TimeUnit)} waits for room, but {@link
+ * #forceOffer(Runnable)} and {@link #put(Runnable)} don't. {@link #offerDroppingLast(Runnable)}
+ * makes room by dropping cancellable work.
+ *
+ * {@link #onFinished(TomahawkRunnable)} has to be called after every runnable that has been taken
+ * from this queue has been run.
+ */
+class TomahawkRunnableQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    // Signalled whenever a runnable might have become available to be taken
+    private final Condition mAvailable = mLock.newCondition();
+
+    // Signalled whenever a runnable has been removed
+    private final Condition mNotFull = mLock.newCondition();
+
+    private final TreeSet<TomahawkRunnable> mRunnables = new TreeSet<>();
+
+    // The number of running runnables mapped to their priority
+    private final Map<Integer, Integer> mRunningCounts = new HashMap<>();
+
+    private final int mCapacity;
+
+    private final int mMaxRunningPerPriority;
+
+    public TomahawkRunnableQueue(int capacity, int maxRunningPerPriority) {
+        mCapacity = capacity;
+        mMaxRunningPerPriority = maxRunningPerPriority;
+    }
+
+    @Override
+    public boolean offer(@NonNull Runnable r) {
+        mLock.lock();
+        try {
+            if (mRunnables.size() >= mCapacity) {
+                return false;
+            }
+            return add((TomahawkRunnable) r);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable r, long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mRunnables.size() >= mCapacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = mNotFull.awaitNanos(nanos);
+            }
+            return add((TomahawkRunnable) r);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Add the given runnable regardless of the capacity, if the queued runnable that would be run
+     * last can be dropped in exchange. Only runnables with a {@link CancellationToken} can be
+     * dropped, since their work can simply be requested again. If the given runnable would be run
+     * last itself and can be dropped, it isn't added at all.
+     *
+     * @return the runnable that has been dropped (possibly the given one), or null if nothing
+     * could be dropped. In that case the given runnable hasn't been added.
+     */
+    public TomahawkRunnable offerDroppingLast(Runnable r) {
+        TomahawkRunnable runnable = (TomahawkRunnable) r;
+        mLock.lock();
+        try {
+            TomahawkRunnable last = mRunnables.isEmpty() ? null : mRunnables.last();
+            if (last != null && last.compareTo(runnable) > 0
+                    && last.getCancellationToken() != null) {
+                mRunnables.remove(last);
+                add(runnable);
+                return last;
+            }
+            if (runnable.getCancellationToken() != null) {
+                return runnable;
+            }
+            return null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Add the given runnable regardless of the capacity.
+     */
+    public void forceOffer(Runnable r) {
+        mLock.lock();
+        try {
+            add((TomahawkRunnable) r);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(@NonNull Runnable r) {
+        forceOffer(r);
+    }
+
+    private boolean add(TomahawkRunnable r) {
+        boolean added = mRunnables.add(r);
+        if (added) {
+            mAvailable.signal();
+        }
+        return added;
+    }
+
+    /**
+     * Remove the first runnable whose priority doesn't occupy the maximum number of threads yet
+     * and count it as running. Must only be called while holding the lock.
+     *
+     * @return the removed runnable or null if no runnable is available
+     */
+    private TomahawkRunnable pollAvailable() {
+        Iterator<TomahawkRunnable> iterator = mRunnables.iterator();
+        while (iterator.hasNext()) {
+            TomahawkRunnable r = iterator.next();
+            Integer runningCount = mRunningCounts.get(r.getPriority());
+            if (runningCount == null) {
+                runningCount = 0;
+            }
+            if (runningCount < mMaxRunningPerPriority) {
+                iterator.remove();
+                mRunningCounts.put(r.getPriority(), runningCount + 1);
+                mNotFull.signal();
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Has to be called after the given runnable, which has been taken from this queue, has been
+     * run.
+     */
+    public void onFinished(TomahawkRunnable r) {
+        mLock.lock();
+        try {
+            Integer runningCount = mRunningCounts.get(r.getPriority());
+            if (runningCount != null) {
+                if (runningCount > 1) {
+                    mRunningCounts.put(r.getPriority(), runningCount - 1);
+                } else {
+                    mRunningCounts.remove(r.getPriority());
+                }
+                mAvailable.signal();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        mLock.lock();
+        try {
+            return pollAvailable();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @NonNull
+    @Override
+    public Runnable take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            TomahawkRunnable r;
+            while ((r = pollAvailable()) == null) {
+                mAvailable.await();
+            }
+            return r;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            TomahawkRunnable r;
+            while ((r = pollAvailable()) == null && nanos > 0) {
+                nanos = mAvailable.awaitNanos(nanos);
+            }
+            return r;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        mLock.lock();
+        try {
+            return mRunnables.isEmpty() ? null : mRunnables.first();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mRunnables.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Math.max(0, mCapacity - size());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof TomahawkRunnable)) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            boolean removed = mRunnables.remove(o);
+            if (removed) {
+                mNotFull.signal();
+            }
+            return removed;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof TomahawkRunnable)) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            return mRunnables.contains(o);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(@NonNull Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(@NonNull Collection<? super Runnable> c, int maxElements) {
+        mLock.lock();
+        try {
+            int count = 0;
+            while (count < maxElements && !mRunnables.isEmpty()) {
+                c.add(mRunnables.pollFirst());
+                count++;
+            }
+            if (count > 0) {
+                mNotFull.signalAll();
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return an iterator over a snapshot of the queued runnables
+     */
+    @NonNull
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot;
+        mLock.lock();
+        try {
+            snapshot = new ArrayList<Runnable>(mRunnables);
+        } finally {
+            mLock.unlock();
+        }
+        return new Iterator<Runnable>() {
+
+            private int mIndex;
+
+            private Runnable mLast;
+
+            @Override
+            public boolean hasNext() {
+                return mIndex < snapshot.size();
+            }
+
+            @Override
+            public Runnable next() {
+                if (mIndex >= snapshot.size()) {
+                    throw new NoSuchElementException();
+                }
+                mLast = snapshot.get(mIndex++);
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                TomahawkRunnableQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+}